@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef.benchmarks;
+
+import com.cloudera.processors.cef.CefWriter;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//Conversion with the flowfile content streamed into the msg field. The mock framework keeps content in memory, so the
+//allocation rate includes the input and output content; anything above roughly twice the content size is conversion overhead.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ContentAsMsgBenchmark {
+
+    //1 KB, 1 MB and 50 MB
+    @Param({"1024", "1048576", "52428800"})
+    public int contentSize;
+
+    private TestRunner runner;
+    private byte[] content;
+
+    @Setup
+    public void setup() {
+        runner = TestRunners.newTestRunner(CefWriter.class);
+        runner.setProperty(CefWriter.CONTENT_AS_MSG, CefWriter.USE_CONTENT_AS_MSG);
+        runner.setProperty(CefWriter.SYSLOG_PREFIX, "CEF:1");
+        runner.setProperty(CefWriter.DEVICE_VENDOR, "Security");
+        runner.setProperty(CefWriter.DEVICE_PRODUCT, "threatmanager");
+        runner.setProperty(CefWriter.DEVICE_VERSION, "1.0");
+        runner.setProperty(CefWriter.DEVICE_CLASS_ID, "100");
+        runner.setProperty(CefWriter.EVENT_NAME, "worm successfully stopped");
+        runner.setProperty(CefWriter.EVENT_SEVERITY, "10");
+        runner.setProperty("src", "10.0.0.1");
+
+        //Log-like text: mostly printable ASCII with line breaks and the occasional character that has to be escaped
+        final String alphabet = "abcdefghijklmnopqrstuvwxyz ABCDEFGHIJKLMNOPQRSTUVWXYZ 0123456789 .:,;-_/";
+        final Random random = new Random(42);
+        content = new byte[contentSize];
+        for (int i = 0; i < contentSize; i++) {
+            final int r = random.nextInt(200);
+            if (r == 0) {
+                content[i] = '\n';
+            } else if (r == 1) {
+                content[i] = '=';
+            } else if (r == 2) {
+                content[i] = '\\';
+            } else {
+                content[i] = (byte) alphabet.charAt(random.nextInt(alphabet.length()));
+            }
+        }
+
+        runner.enqueue(content);
+        runner.run(1, false, true);
+        runner.clearTransferState();
+    }
+
+    @Benchmark
+    public void convert() {
+        runner.enqueue(content);
+        runner.run(1, false, false);
+        runner.clearTransferState();
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef.benchmarks;
+
+import com.cloudera.processors.cef.CefEscaper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+//Escaping of single field values, the innermost loop of every conversion
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EscapeBenchmark {
+
+    //"clean" values need no escaping at all, "escapeHeavy" values have a character to escape every few characters
+    @Param({"clean", "escapeHeavy"})
+    public String input;
+
+    @Param({"32", "1024"})
+    public int length;
+
+    private String value;
+    private byte[] bytes;
+    private byte[] out;
+    private StringBuilder builder;
+
+    @Setup
+    public void setup() {
+        final String pattern = "clean".equals(input) ? "worm successfully stopped " : "a=b|c\\d\ne ";
+        final StringBuilder sb = new StringBuilder(length);
+        while (sb.length() < length) {
+            sb.append(pattern);
+        }
+        sb.setLength(length);
+        value = sb.toString();
+        bytes = value.getBytes(StandardCharsets.UTF_8);
+        out = new byte[bytes.length * 2];
+        builder = new StringBuilder(length * 2);
+    }
+
+    @Benchmark
+    public String escapeHeader() {
+        return CefEscaper.escape(CefEscaper.Mode.HEADER, value);
+    }
+
+    @Benchmark
+    public String escapeExtension() {
+        return CefEscaper.escape(CefEscaper.Mode.EXTENSION, value);
+    }
+
+    @Benchmark
+    public int escapeExtensionIntoBuilder() {
+        builder.setLength(0);
+        CefEscaper.escape(CefEscaper.Mode.EXTENSION, value, 0, value.length(), builder);
+        return builder.length();
+    }
+
+    @Benchmark
+    public int escapeExtensionBytes() {
+        return CefEscaper.escape(CefEscaper.Mode.EXTENSION, bytes, 0, bytes.length, out, 0);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef.benchmarks;
+
+import com.cloudera.processors.cef.CefParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+//Tokenizing complete CEF records, with and without materialising the extension fields
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+
+    @Param({"5", "60"})
+    public int extensions;
+
+    //Length of the msg value, the long extension field that is slow to match with regular expressions
+    @Param({"64", "4096"})
+    public int msgLength;
+
+    private final CefParser parser = new CefParser();
+    private byte[] record;
+
+    @Setup
+    public void setup() {
+        final StringBuilder sb = new StringBuilder("April 30 08:26:10 host.example.com CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|");
+        for (int i = 0; i < extensions; i++) {
+            sb.append("cs").append(i).append("=value ").append(i).append(' ');
+        }
+        sb.append("msg=");
+        while (sb.length() < msgLength) {
+            sb.append("a\\=b c\\\\d ");
+        }
+        record = sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public int tokenize() {
+        parser.parse(record);
+        return parser.extensionCount();
+    }
+
+    @Benchmark
+    public Map<String, String> tokenizeToMap() {
+        parser.parse(record);
+        return parser.extensions();
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef.benchmarks;
+
+import com.cloudera.processors.cef.CefWriter;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+//Full record assembly through CefWriter.onTrigger, one operation being one converted flowfile. Flowfiles are converted
+//in batches so the per-run overhead of the mock framework is spread over many events.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+@OperationsPerInvocation(RecordAssemblyBenchmark.BATCH)
+public class RecordAssemblyBenchmark {
+
+    static final int BATCH = 1000;
+
+    @Param({"0", "10", "50"})
+    public int dynamicProperties;
+
+    @Param({"simple", "complex"})
+    public String header;
+
+    private TestRunner runner;
+    private byte[] content;
+    private Map<String, String> attributes;
+
+    @Setup
+    public void setup() {
+        runner = TestRunners.newTestRunner(CefWriter.class);
+        runner.setValidateExpressionUsage(false);
+        runner.setProperty(CefWriter.BATCH_SIZE, String.valueOf(BATCH));
+        runner.setProperty(CefWriter.SYSLOG_PREFIX, "CEF:1");
+        runner.setProperty(CefWriter.DEVICE_VENDOR, "Security");
+        runner.setProperty(CefWriter.DEVICE_PRODUCT, "threatmanager");
+        runner.setProperty(CefWriter.DEVICE_VERSION, "1.0");
+        runner.setProperty(CefWriter.DEVICE_CLASS_ID, "${class.id}");
+        runner.setProperty(CefWriter.EVENT_NAME, "${event.name}");
+        runner.setProperty(CefWriter.EVENT_SEVERITY, "10");
+        if ("complex".equals(header)) {
+            runner.setProperty(CefWriter.COMPLEX_HEADER, CefWriter.USE_COMPLEX_HEADER);
+            runner.setProperty(CefWriter.EVENT_DATE, "${event.date}");
+            runner.setProperty(CefWriter.EVENT_HOST, "host.example.com");
+        }
+
+        attributes = new HashMap<>();
+        attributes.put("class.id", "100");
+        attributes.put("event.name", "worm successfully stopped");
+        attributes.put("event.date", "Apr 30 08:26:10");
+
+        //Half of the extension fields are expression language over attributes, half are literals
+        for (int i = 0; i < dynamicProperties; i++) {
+            if (i % 2 == 0) {
+                runner.setProperty("cs" + i, "${attr." + i + "}");
+                attributes.put("attr." + i, "value=" + i + " with|some\\characters");
+            } else {
+                runner.setProperty("cn" + i, String.valueOf(i));
+            }
+        }
+
+        content = "This is a test file".getBytes(StandardCharsets.UTF_8);
+
+        //Schedule the processor once so that the benchmark iterations only measure onTrigger
+        runner.enqueue(content, attributes);
+        runner.run(1, false, true);
+        runner.clearTransferState();
+    }
+
+    @Benchmark
+    public void convert() {
+        for (int i = 0; i < BATCH; i++) {
+            runner.enqueue(content, attributes);
+        }
+        runner.run(1, false, false);
+        runner.clearTransferState();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import org.apache.nifi.annotation.behavior.Stateful;
+import org.apache.nifi.annotation.behavior.TriggerWhenEmpty;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.context.PropertyContext;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+//Builds CEF records like CefWriter and collapses duplicates into one record per aggregation window. It is a processor of its own since
+//closed windows must be written without new events, so it is triggered on an empty queue, which the other output modes have no use for
+@TriggerWhenEmpty
+@Tags({"cef", "SIEM", "aggregation", "deduplication", "Attribute Expression Language", "Arcsight"})
+@CapabilityDescription("Builds a CEF record from configured flowfile attributes or hard-coded values like CefWriter, and aggregates duplicate records "+
+        "into one record per aggregation window, with the number of events and their first and last event time. The aggregated flowfiles are removed.")
+@SeeAlso(CefWriter.class)
+@Stateful(scopes = Scope.LOCAL, description = "The records still waiting for their window to close are stored with every session that counts events "+
+        "into them, and aggregated further when the processor is started again, so neither a restart nor a crash loses them.")
+public class AggregateCef extends CefWriter {
+
+    public static final PropertyDescriptor OUTPUT_FRAMING = new PropertyDescriptor
+            .Builder().fromPropertyDescriptor(BUNDLE_FRAMING)
+            .displayName("Output Framing")
+            .description("How the records of the aggregates that close at the same time are separated. Newline delimited ends every record with a "+
+                    "line feed. Octet counting prefixes every record with its length in bytes and a space, as described in RFC 6587.")
+            .clearDependsOn()
+            .build();
+    public static final PropertyDescriptor AGGREGATION_KEYS = new PropertyDescriptor
+            .Builder().name("AGGREGATION_KEYS")
+            .displayName("Aggregation Keys")
+            .description("Comma separated extension keys that, together with the header, tell duplicate events apart. Events with the same "+
+                    "header and the same values of these keys are aggregated, and the other fields of the first of them are written. Include "+
+                    "'msg' to compare the flowfile content used as msg. If not set, events are only aggregated if their records are identical.")
+            .required(false)
+            .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor AGGREGATION_WINDOW = new PropertyDescriptor
+            .Builder().name("AGGREGATION_WINDOW")
+            .displayName("Aggregation Window")
+            .description("How long duplicates of an event are counted into its record. The window starts with the first event, and once it has "+
+                    "closed the record is written with 'cnt', 'start' and 'end' extension fields holding the number of events and the first "+
+                    "and last event time in epoch milliseconds. The next duplicate opens a new window.")
+            .required(true)
+            .defaultValue("60 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor MAX_AGGREGATES = new PropertyDescriptor
+            .Builder().name("MAX_AGGREGATES")
+            .displayName("Max Aggregates")
+            .description("The maximum number of distinct events aggregated at a time. When more are open, the oldest are written before their "+
+                    "window has closed. This bounds the memory used and the state stored with every session.")
+            .required(true)
+            .defaultValue("10000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    @Override
+    protected List<PropertyDescriptor> getOutputProperties() {
+        return Arrays.asList(OUTPUT_FRAMING, AGGREGATION_KEYS, AGGREGATION_WINDOW, MAX_AGGREGATES);
+    }
+
+    @Override
+    protected String getOutputMode(final PropertyContext context) {
+        return AGGREGATE_RECORDS;
+    }
+
+    //The fields the aggregation appends cannot be written otherwise
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext validationContext) {
+        final List<ValidationResult> results = new ArrayList<>(super.customValidate(validationContext));
+        List<CefTimestamps.Field> timestampFields;
+        try {
+            timestampFields = CefTimestamps.parseFields(validationContext.getProperty(TIMESTAMP_FIELDS).getValue());
+        } catch (final IllegalArgumentException e) {
+            //Reported by CefWriter
+            timestampFields = new ArrayList<>();
+        }
+        for (final String key : Arrays.asList("cnt", "start", "end")) {
+            final boolean dynamic = validationContext.getProperties().keySet().stream().anyMatch(descriptor -> descriptor.isDynamic() && descriptor.getName().strip().equals(key));
+            if (dynamic || timestampFields.stream().anyMatch(field -> field.key.equals(key))) {
+                results.add(new ValidationResult.Builder()
+                        .subject(key)
+                        .valid(false)
+                        .explanation("'" + key + "' is written by the aggregation and cannot be a dynamic property or timestamp field")
+                        .build());
+            }
+        }
+        return results;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+//A thread safe cache with a fixed maximum number of entries. Reads take no lock and change nothing, so concurrent tasks hitting the
+//same entries do not contend. A cache that is full is cleared and refilled with the values in use since, which costs a few misses
+//where a least recently used cache would evict one entry, but keeps the hits free
+final class BoundedCache<K, V> {
+
+    private final int maxEntries;
+    private final ConcurrentHashMap<K, V> entries;
+
+    BoundedCache(final int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.entries = new ConcurrentHashMap<>(Math.min(maxEntries, 1024));
+    }
+
+    //Returns the cached value, computing and caching it on a miss. The value is computed without a lock,
+    //so concurrent misses on the same key may compute it more than once
+    V get(final K key, final Function<K, V> loader) {
+        final V value = entries.get(key);
+        if (value != null) {
+            return value;
+        }
+        final V loaded = loader.apply(key);
+        put(key, loaded);
+        return loaded;
+    }
+
+    //Returns the cached value, or null on a miss
+    V getIfPresent(final K key) {
+        return entries.get(key);
+    }
+
+    //Concurrent puts into a full cache may each clear it, or briefly leave a few entries more than the maximum
+    void put(final K key, final V value) {
+        if (entries.size() >= maxEntries && !entries.containsKey(key)) {
+            entries.clear();
+        }
+        entries.put(key, value);
+    }
+
+    int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Collapses duplicate events into one record per time window. Events are identified by a 64 bit fingerprint of their rendered bytes,
+//so no key is ever built for them, and the first record of every window is kept until the window closes. A fingerprint is easily made
+//to collide, so when whole records are compared, a hit only counts if the records are equal, and colliding events are chained in
+//aggregates of their own under the same fingerprint. Windows are opened in arrival order and all last equally long, so the queue of
+//open aggregates is also the order in which they close
+final class CefAggregator {
+
+    //The fields appended to an aggregated record, at their longest
+    static final int MAX_SUFFIX_LENGTH = (" cnt=" + Long.MAX_VALUE + " start=" + Long.MIN_VALUE + " end=" + Long.MIN_VALUE).length();
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final String STATE_PREFIX = "aggregate.";
+
+    private final long windowMillis;
+    private final int maxAggregates;
+    private final ConcurrentHashMap<Long, Aggregate> aggregates = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Aggregate> byAge = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger open = new AtomicInteger();
+
+    CefAggregator(final long windowMillis, final int maxAggregates) {
+        this.windowMillis = windowMillis;
+        this.maxAggregates = maxAggregates;
+    }
+
+    static long fingerprint() {
+        return FNV_OFFSET_BASIS;
+    }
+
+    //Adds a byte range to the fingerprint. Every range is followed by a zero byte, so that adjacent ranges cannot run into each other
+    static long fingerprint(long hash, final byte[] bytes, final int from, final int to) {
+        for (int i = from; i < to; i++) {
+            hash = (hash ^ (bytes[i] & 0xFF)) * FNV_PRIME;
+        }
+        return hash * FNV_PRIME;
+    }
+
+    //Counts the event into the open aggregate with the same fingerprint, and with the same record if records are compared, or opens one
+    //with a copy of the record. Only opening an aggregate copies the record, so duplicates cost no allocation. Returns the aggregate the
+    //event was counted into, whose count is 1 if the event opened it
+    Aggregate add(final long fingerprint, final byte[] record, final int length, final boolean compareRecords, final boolean hasExtensions,
+                  final long eventTime, final long now) {
+        final Aggregate[] counted = new Aggregate[1];
+        aggregates.compute(fingerprint, (key, head) -> {
+            for (Aggregate aggregate = head; aggregate != null; aggregate = aggregate.next) {
+                if (!compareRecords || Arrays.equals(aggregate.record, 0, aggregate.record.length, record, 0, length)) {
+                    aggregate.count++;
+                    aggregate.firstSeen = Math.min(aggregate.firstSeen, eventTime);
+                    aggregate.lastSeen = Math.max(aggregate.lastSeen, eventTime);
+                    counted[0] = aggregate;
+                    return head;
+                }
+            }
+            final Aggregate created = new Aggregate(fingerprint, Arrays.copyOf(record, length), hasExtensions, now, eventTime, eventTime, 1);
+            created.next = head;
+            byAge.add(created);
+            open.incrementAndGet();
+            counted[0] = created;
+            return created;
+        });
+        return counted[0];
+    }
+
+    //Removes and returns the aggregates whose window has closed and the oldest ones beyond the maximum number
+    synchronized List<Aggregate> drain(final long now) {
+        final List<Aggregate> drained = new ArrayList<>();
+        Aggregate oldest;
+        while ((oldest = byAge.peek()) != null && (now - oldest.opened >= windowMillis || open.get() > maxAggregates)) {
+            byAge.poll();
+            if (remove(oldest)) {
+                drained.add(oldest);
+            }
+        }
+        return drained;
+    }
+
+    //Unlinks the aggregate from the chain of its fingerprint. Removing it under the lock of its entry makes every count added before
+    //visible, and no count is added after. Returns whether it was open
+    private boolean remove(final Aggregate aggregate) {
+        final boolean[] removed = new boolean[1];
+        aggregates.computeIfPresent(aggregate.fingerprint, (key, head) -> {
+            if (head == aggregate) {
+                removed[0] = true;
+                return head.next;
+            }
+            for (Aggregate previous = head; previous.next != null; previous = previous.next) {
+                if (previous.next == aggregate) {
+                    previous.next = aggregate.next;
+                    removed[0] = true;
+                    break;
+                }
+            }
+            return head;
+        });
+        if (removed[0]) {
+            open.decrementAndGet();
+        }
+        return removed[0];
+    }
+
+    private boolean isOpen(final Aggregate aggregate) {
+        for (Aggregate chained = aggregates.get(aggregate.fingerprint); chained != null; chained = chained.next) {
+            if (chained == aggregate) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //Opens an aggregate in front of the chain of its fingerprint. Only called while no event is added
+    private void link(final Aggregate aggregate) {
+        aggregate.next = aggregates.put(aggregate.fingerprint, aggregate);
+        byAge.add(aggregate);
+        open.incrementAndGet();
+    }
+
+    int size() {
+        return open.get();
+    }
+
+    //A copy of the open aggregates, in the order they were opened, that reset returns to. The records are shared, they never change
+    synchronized List<Aggregate> snapshot() {
+        final List<Aggregate> snapshot = new ArrayList<>(open.get());
+        for (final Aggregate aggregate : byAge) {
+            if (isOpen(aggregate)) {
+                snapshot.add(aggregate.copy());
+            }
+        }
+        return snapshot;
+    }
+
+    //Replaces the open aggregates with a snapshot, undoing whatever was added or drained since it was taken
+    synchronized void reset(final List<Aggregate> snapshot) {
+        aggregates.clear();
+        byAge.clear();
+        open.set(0);
+        for (final Aggregate aggregate : snapshot) {
+            link(aggregate.copy());
+        }
+    }
+
+    //The open aggregates as processor state, to be restored when the processor is started again. Only called while no event is added.
+    //Each record is encoded once, when its aggregate is first stored
+    Map<String, String> toState() {
+        final Map<String, String> state = new HashMap<>();
+        int index = 0;
+        for (final Aggregate aggregate : byAge) {
+            state.put(STATE_PREFIX + index++, aggregate.fingerprint + " " + aggregate.opened + " " + aggregate.firstSeen + " " + aggregate.lastSeen
+                    + " " + aggregate.count + " " + aggregate.hasExtensions + " " + aggregate.encoded());
+        }
+        return state;
+    }
+
+    //Reopens the aggregates of a previous run, in the order they were opened. Their windows keep running from when they were opened
+    void restore(final Map<String, String> state) {
+        final Map<Integer, String> ordered = new TreeMap<>();
+        for (final Map.Entry<String, String> entry : state.entrySet()) {
+            if (entry.getKey().startsWith(STATE_PREFIX)) {
+                ordered.put(Integer.parseInt(entry.getKey().substring(STATE_PREFIX.length())), entry.getValue());
+            }
+        }
+        for (final String value : ordered.values()) {
+            final String[] parts = value.split(" ");
+            final Aggregate aggregate = new Aggregate(Long.parseLong(parts[0]), Base64.getDecoder().decode(parts[6]), Boolean.parseBoolean(parts[5]),
+                    Long.parseLong(parts[1]), Long.parseLong(parts[2]), Long.parseLong(parts[3]), Long.parseLong(parts[4]));
+            link(aggregate);
+        }
+    }
+
+    //The record of the first event of a window and what was seen of its duplicates. Only changed under the lock of its map entry, which
+    //also guards the chain of aggregates whose fingerprints collide with it
+    static final class Aggregate {
+        private final long fingerprint;
+        private final byte[] record;
+        private final boolean hasExtensions;
+        private final long opened;
+        private long firstSeen;
+        private long lastSeen;
+        private long count;
+        private String encoded;
+        private Aggregate next;
+
+        private Aggregate(final long fingerprint, final byte[] record, final boolean hasExtensions, final long opened, final long firstSeen,
+                          final long lastSeen, final long count) {
+            this.fingerprint = fingerprint;
+            this.record = record;
+            this.hasExtensions = hasExtensions;
+            this.opened = opened;
+            this.firstSeen = firstSeen;
+            this.lastSeen = lastSeen;
+            this.count = count;
+        }
+
+        long count() {
+            return count;
+        }
+
+        private Aggregate copy() {
+            final Aggregate copy = new Aggregate(fingerprint, record, hasExtensions, opened, firstSeen, lastSeen, count);
+            copy.encoded = encoded;
+            return copy;
+        }
+
+        private String encoded() {
+            if (encoded == null) {
+                encoded = Base64.getEncoder().encodeToString(record);
+            }
+            return encoded;
+        }
+
+        //The record with the number of events and the first and last event time appended as the cnt, start and end extension fields
+        byte[] toRecord() {
+            final byte[] suffix = ((hasExtensions ? " " : "") + "cnt=" + count + " start=" + firstSeen + " end=" + lastSeen).getBytes(StandardCharsets.US_ASCII);
+            final byte[] aggregated = new byte[record.length + suffix.length];
+            System.arraycopy(record, 0, aggregated, 0, record.length);
+            System.arraycopy(suffix, 0, aggregated, record.length, suffix.length);
+            return aggregated;
+        }
+    }
+}
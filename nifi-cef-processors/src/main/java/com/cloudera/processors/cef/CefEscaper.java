@@ -0,0 +1,338 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.function.LongConsumer;
+
+//Table driven escaping of CEF and LEEF field values, shared by the CefWriter processor and the CEF record writer.
+//Only ASCII characters are ever escaped, so the same tables apply to chars and to UTF-8 bytes.
+public final class CefEscaper {
+
+    //The part of the record a value is written to decides which characters have to be escaped
+    public static final class Mode {
+        //Pipe delimited header fields: "\" and "|" are escaped, line breaks are not allowed and are replaced by spaces
+        public static final Mode HEADER = new Mode(new String[][]{{"\\", "\\\\"}, {"|", "\\|"}, {"\r", " "}, {"\n", " "}});
+        //key=value pairs of the extension field: "\" and "=" are escaped, line breaks are encoded as \r and \n
+        public static final Mode EXTENSION = new Mode(new String[][]{{"\\", "\\\\"}, {"=", "\\="}, {"\r", "\\r"}, {"\n", "\\n"}});
+
+        private final char[][] chars = new char[128][];
+        private final byte[][] bytes = new byte[128][];
+        //Whether a backslash starts a two byte escape sequence, which truncation must not split
+        private final boolean escapes;
+
+        //LEEF attribute values have no escape sequences, so line breaks and the delimiter between attributes are replaced by spaces
+        public static Mode leefAttribute(final char delimiter) {
+            if (delimiter >= 128) {
+                throw new IllegalArgumentException("The LEEF delimiter must be an ASCII character");
+            }
+            return new Mode(new String[][]{{"\r", " "}, {"\n", " "}, {String.valueOf(delimiter), " "}});
+        }
+
+        private Mode(final String[][] replacements) {
+            boolean escapes = false;
+            for (final String[] replacement : replacements) {
+                escapes |= replacement[1].length() == 2 && replacement[1].charAt(0) == '\\';
+                final char c = replacement[0].charAt(0);
+                chars[c] = replacement[1].toCharArray();
+                bytes[c] = new byte[replacement[1].length()];
+                for (int i = 0; i < bytes[c].length; i++) {
+                    bytes[c][i] = (byte) replacement[1].charAt(i);
+                }
+            }
+            this.escapes = escapes;
+        }
+    }
+
+    //The buffers a stream is escaped through, which a thread that escapes one stream after another can keep and reuse
+    public static final class StreamBuffers {
+        private final byte[] in = new byte[8192];
+        private final byte[] out = new byte[8192];
+    }
+
+    private CefEscaper() {
+    }
+
+    //Returns the value itself when nothing needs escaping, so clean values cost a single scan and no allocation
+    public static String escape(final Mode mode, final String value) {
+        final int first = indexOfEscape(mode, value, 0, value.length());
+        if (first < 0) {
+            return value;
+        }
+        final StringBuilder out = new StringBuilder(value.length() + 16);
+        out.append(value, 0, first);
+        escape(mode, value, first, value.length(), out);
+        return out.toString();
+    }
+
+    //Escapes the value and encodes it to UTF-8 straight into the buffer, copying unescaped runs in bulk. Returns the number of characters escaped
+    static int escape(final Mode mode, final String value, final CefRecordBuffer out) {
+        final char[][] table = mode.chars;
+        final byte[][] replacements = mode.bytes;
+        int escaped = 0;
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c < 128 && table[c] != null) {
+                out.writeUtf8(value, start, i);
+                out.write(replacements[c], 0, replacements[c].length);
+                start = i + 1;
+                escaped++;
+            }
+        }
+        out.writeUtf8(value, start, value.length());
+        return escaped;
+    }
+
+    //Index of the first character in the range that has to be escaped, or -1 if there is none
+    public static int indexOfEscape(final Mode mode, final CharSequence value, final int from, final int to) {
+        final char[][] table = mode.chars;
+        for (int i = from; i < to; i++) {
+            final char c = value.charAt(i);
+            if (c < 128 && table[c] != null) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    //Number of characters in the range that have to be escaped
+    public static int countEscapes(final Mode mode, final CharSequence value, final int from, final int to) {
+        final char[][] table = mode.chars;
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            final char c = value.charAt(i);
+            if (c < 128 && table[c] != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    //Appends the escaped range to the caller's buffer, copying unescaped runs in bulk
+    public static void escape(final Mode mode, final CharSequence value, final int from, final int to, final StringBuilder out) {
+        final char[][] table = mode.chars;
+        int start = from;
+        for (int i = from; i < to; i++) {
+            final char c = value.charAt(i);
+            if (c < 128 && table[c] != null) {
+                out.append(value, start, i).append(table[c]);
+                start = i + 1;
+            }
+        }
+        out.append(value, start, to);
+    }
+
+    //Escapes a range of UTF-8 bytes into the caller's buffer, which must have room for twice the input length.
+    //Returns the position in the output buffer after the last written byte.
+    public static int escape(final Mode mode, final byte[] in, final int from, final int to, final byte[] out, final int outPos) {
+        final byte[][] table = mode.bytes;
+        int position = outPos;
+        for (int i = from; i < to; i++) {
+            final byte b = in[i];
+            final byte[] replacement = b >= 0 ? table[b] : null;
+            if (replacement == null) {
+                out[position++] = b;
+            } else {
+                for (final byte r : replacement) {
+                    out[position++] = r;
+                }
+            }
+        }
+        return position;
+    }
+
+    //The end of the longest prefix of a range escaped in the given mode that fits into maxBytes without splitting an escape sequence or a
+    //multi-byte character. A backslash only starts an escape sequence in modes that escape, LEEF values are written as they are
+    public static int truncationPoint(final Mode mode, final byte[] escaped, final int from, final int to, final long maxBytes) {
+        int position = from;
+        while (position < to) {
+            final byte b = escaped[position];
+            final int step = b == '\\' && mode.escapes ? 2 : (b & 0xE0) == 0xC0 ? 2 : (b & 0xF0) == 0xE0 ? 3 : (b & 0xF8) == 0xF0 ? 4 : 1;
+            if (position + step - from > maxBytes) {
+                break;
+            }
+            position += step;
+        }
+        return position;
+    }
+
+    //Streams content into a msg value without materialising it. Line breaks are joined into single spaces as
+    //BufferedReader.lines() joined with " " would, and the remaining UTF-8 bytes are escaped on the fly for the
+    //extension field. At most maxBytes are written, never splitting an escape sequence or a multi-byte character.
+    //Returns true if the content had to be truncated to fit.
+    public static boolean escapeStream(final InputStream in, final OutputStream out, final long maxBytes) throws IOException {
+        return escapeStream(in, out, maxBytes, null);
+    }
+
+    //As above, reporting the number of escaped bytes that were written to the optional consumer once the stream is done
+    public static boolean escapeStream(final InputStream in, final OutputStream out, final long maxBytes, final LongConsumer escapes) throws IOException {
+        return escapeStream(Mode.EXTENSION, in, out, maxBytes, escapes);
+    }
+
+    //As above, escaping the value for the given part of the record, such as a LEEF attribute
+    public static boolean escapeStream(final Mode mode, final InputStream in, final OutputStream out, final long maxBytes, final LongConsumer escapes) throws IOException {
+        return escapeStream(mode, in, out, maxBytes, escapes, new StreamBuffers());
+    }
+
+    //As above, through buffers kept by the caller
+    public static boolean escapeStream(final Mode mode, final InputStream in, final OutputStream out, final long maxBytes, final LongConsumer escapes,
+                                       final StreamBuffers buffers) throws IOException {
+        final byte[][] table = mode.bytes;
+        final BoundedOutput output = new BoundedOutput(out, buffers.out, maxBytes);
+        final byte[] inBuffer = buffers.in;
+
+        int pendingSpaces = 0;
+        boolean endsWithLineBreak = false;
+        boolean previousCarriageReturn = false;
+        long escaped = 0;
+
+        try {
+            int read;
+            while ((read = in.read(inBuffer)) != -1) {
+                for (int i = 0; i < read; i++) {
+                    final byte b = inBuffer[i];
+
+                    if (b == '\n' || b == '\r') {
+                        //"\r\n" is a single line break
+                        if (!(b == '\n' && previousCarriageReturn)) {
+                            pendingSpaces++;
+                        }
+                        previousCarriageReturn = b == '\r';
+                        endsWithLineBreak = true;
+                        continue;
+                    }
+                    previousCarriageReturn = false;
+                    endsWithLineBreak = false;
+
+                    if (pendingSpaces > 0) {
+                        output.putSpaces(pendingSpaces);
+                        pendingSpaces = 0;
+                    }
+
+                    final byte[] replacement = b >= 0 ? table[b] : null;
+                    if (replacement == null) {
+                        output.put(b);
+                    } else {
+                        output.put(replacement);
+                        escaped++;
+                    }
+                }
+            }
+
+            //The final line break is dropped like BufferedReader.lines() would, any others are kept
+            if (endsWithLineBreak) {
+                pendingSpaces--;
+            }
+            output.putSpaces(pendingSpaces);
+        } catch (final LimitReachedException e) {
+            output.flush();
+            report(escapes, escaped);
+            return true;
+        }
+
+        output.flush();
+        report(escapes, escaped);
+        return false;
+    }
+
+    private static void report(final LongConsumer escapes, final long escaped) {
+        if (escapes != null) {
+            escapes.accept(escaped);
+        }
+    }
+
+    //Thrown internally once the output limit is reached, unwinding the streaming loop
+    private static final class LimitReachedException extends Exception {
+        private LimitReachedException() {
+            super(null, null, false, false);
+        }
+    }
+
+    //Buffered output that refuses to start anything which would not fit entirely within the byte limit
+    private static final class BoundedOutput {
+        private final OutputStream out;
+        private final byte[] buffer;
+        private int length;
+        private long remaining;
+        //The continuation bytes still covered by the space reserved with the last lead byte
+        private int reservedContinuations;
+
+        private BoundedOutput(final OutputStream out, final byte[] buffer, final long maxBytes) {
+            this.out = out;
+            this.buffer = buffer;
+            this.remaining = maxBytes;
+        }
+
+        private void reserve(final int bytes) throws LimitReachedException, IOException {
+            if (bytes > remaining) {
+                throw new LimitReachedException();
+            }
+            remaining -= bytes;
+            if (length + bytes > buffer.length) {
+                flush();
+            }
+        }
+
+        private void put(final byte b) throws LimitReachedException, IOException {
+            if ((b & 0xC0) == 0x80 && reservedContinuations > 0) {
+                //Reserved together with the lead byte
+                reservedContinuations--;
+                if (length == buffer.length) {
+                    flush();
+                }
+            } else if ((b & 0xC0) == 0xC0) {
+                final int bytes = (b & 0xE0) == 0xC0 ? 2 : (b & 0xF0) == 0xE0 ? 3 : 4;
+                reserve(bytes);
+                reservedContinuations = bytes - 1;
+            } else {
+                //Also a stray continuation byte of invalid UTF-8, which no lead byte reserved space for
+                reserve(1);
+                reservedContinuations = 0;
+            }
+            buffer[length++] = b;
+        }
+
+        private void put(final byte[] escaped) throws LimitReachedException, IOException {
+            reserve(escaped.length);
+            reservedContinuations = 0;
+            for (final byte b : escaped) {
+                buffer[length++] = b;
+            }
+        }
+
+        private void putSpaces(final int count) throws LimitReachedException, IOException {
+            if (count > remaining) {
+                throw new LimitReachedException();
+            }
+            reservedContinuations = 0;
+            for (int i = 0; i < count; i++) {
+                reserve(1);
+                buffer[length++] = ' ';
+            }
+        }
+
+        private void flush() throws IOException {
+            if (length > 0) {
+                out.write(buffer, 0, length);
+                length = 0;
+            }
+        }
+    }
+}
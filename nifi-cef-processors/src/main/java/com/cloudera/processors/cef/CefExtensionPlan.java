@@ -0,0 +1,366 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.PropertyValue;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.ProcessContext;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+//The dynamic properties resolved once when the processor is scheduled into a fixed, ordered list of extension fields.
+//Keys listed in the configured order come first, all others follow sorted by key, so the field order never depends on map iteration order.
+//Flowfile attributes selected by prefix or regex are passed through as extension fields without any expression language, and are merged
+//into the same order, as are the extension fields a lookup enriched the flowfile with. Their translation from attribute name to key is memoised, so a known attribute name costs a single cache lookup.
+//With a key dictionary, mapped keys must be known CEF keys and, when values are coerced, the values of typed keys are checked and normalised.
+//A flowfile can be rendered in several formats at once: every value is evaluated and coerced once and only escaped per format
+final class CefExtensionPlan {
+
+    private static final int KEY_CACHE_SIZE = 1024;
+    private static final MappedKey NOT_MAPPED = new MappedKey(null, null, true);
+
+    private final Entry[] entries;
+    private final Comparator<String> order;
+    private final String attributePrefix;
+    private final Pattern attributePattern;
+    private final CefKeyDictionary dictionary;
+    private final boolean coerceValues;
+    private final CefTimestamps timestamps;
+    private final Set<String> dynamicKeys = new HashSet<>();
+    private final BoundedCache<String, MappedKey> keyCache = new BoundedCache<>(KEY_CACHE_SIZE);
+    private final BoundedCache<String, MappedKey> lookupKeyCache = new BoundedCache<>(KEY_CACHE_SIZE);
+
+    private CefExtensionPlan(final Entry[] entries, final Comparator<String> order, final String attributePrefix, final Pattern attributePattern,
+                             final CefKeyDictionary dictionary, final boolean coerceValues, final CefTimestamps timestamps) {
+        this.entries = entries;
+        this.order = order;
+        this.attributePrefix = attributePrefix;
+        this.attributePattern = attributePattern;
+        this.dictionary = dictionary;
+        this.coerceValues = coerceValues;
+        this.timestamps = timestamps;
+        for (final Entry entry : entries) {
+            dynamicKeys.add(entry.key);
+        }
+    }
+
+    //The dictionary is optional. Without it keys are not checked and values are written as they are. Literal values are encoded up front
+    //for each of the formats the fields are rendered in
+    static CefExtensionPlan compile(final ProcessContext context, final CefKeyDictionary dictionary, final boolean coerceValues, final CefTimestamps timestamps,
+                                    final CefFormat... formats) {
+        final List<Entry> entries = new ArrayList<>();
+        for (final PropertyDescriptor descriptor : context.getProperties().keySet()) {
+            if (descriptor.isDynamic()) {
+                final String key = descriptor.getName().strip();
+                entries.add(new Entry(key, context.getProperty(descriptor), null, valueType(dictionary, coerceValues, key), formats));
+            }
+        }
+        for (final CefTimestamps.Field field : timestamps.fields()) {
+            entries.add(new Entry(field.key, null, field, valueType(dictionary, coerceValues, field.key), formats));
+        }
+        final Comparator<String> order = keyOrder(context.getProperty(CefWriter.EXTENSION_ORDER).getValue());
+        entries.sort(Comparator.comparing((Entry entry) -> entry.key, order));
+
+        final String regex = context.getProperty(CefWriter.EXTENSION_ATTRIBUTE_REGEX).getValue();
+        return new CefExtensionPlan(entries.toArray(new Entry[0]), order, context.getProperty(CefWriter.EXTENSION_ATTRIBUTE_PREFIX).getValue(),
+                regex == null ? null : Pattern.compile(regex), dictionary, coerceValues, timestamps);
+    }
+
+    //The type values of the key are coerced to, or null if they are written as they are
+    private static CefKeyDictionary.Type valueType(final CefKeyDictionary dictionary, final boolean coerceValues, final String key) {
+        if (dictionary == null || !coerceValues) {
+            return null;
+        }
+        final CefKeyDictionary.Type type = dictionary.typeOf(key);
+        return type == CefKeyDictionary.Type.STRING ? null : type;
+    }
+
+    //Orders keys by their position in the comma separated list, followed by any unlisted keys in natural order
+    static Comparator<String> keyOrder(final String configuredOrder) {
+        final Map<String, Integer> positions = new HashMap<>();
+        if (configuredOrder != null) {
+            for (final String key : configuredOrder.split(",")) {
+                if (!key.isBlank()) {
+                    positions.putIfAbsent(key.strip(), positions.size());
+                }
+            }
+        }
+        final Comparator<String> byPosition = Comparator.comparingInt(key -> positions.getOrDefault(key, Integer.MAX_VALUE));
+        return byPosition.thenComparing(Comparator.naturalOrder());
+    }
+
+    //Writes the delimited key=value pairs into the extensions of every rendering, each in the format the plan was compiled for at the same
+    //position. Only values that use expression language are evaluated per flowfile, once for all renderings. Returns the number of characters
+    //the first rendering escaped while writing, which excludes the literal values escaped up front. The byte range of every field is added
+    //to the fields of the renderings that track them, relative to the start of their extensions
+    int writeExtensions(final FlowFile flowFile, final long eventTime, final Map<String, String> enriched, final CefRendering... renderings) {
+        final List<MappedAttribute> mapped = mapAttributes(flowFile, enriched);
+
+        int escaped = 0;
+        int entry = 0;
+        int attribute = 0;
+        boolean first = true;
+        while (entry < entries.length || attribute < mapped.size()) {
+            if (!first) {
+                for (final CefRendering rendering : renderings) {
+                    rendering.extensions.write(rendering.format.delimiter());
+                }
+            }
+            first = false;
+
+            final String key;
+            if (attribute == mapped.size() || (entry < entries.length && order.compare(entries[entry].key, mapped.get(attribute).key.key) <= 0)) {
+                final Entry next = entries[entry++];
+                key = next.key;
+                writeKey(next.keyBytes, renderings);
+                try {
+                    if (next.timestamp != null) {
+                        escaped += writeValue(next.key, next.type, timestamps.formatField(next.timestamp, flowFile, eventTime), renderings);
+                    } else if (!next.hasExpressionLanguage) {
+                        for (int i = 0; i < renderings.length; i++) {
+                            final byte[] literal = next.literalBytes[i];
+                            renderings[i].extensions.write(literal, 0, literal.length);
+                        }
+                    } else {
+                        escaped += writeValue(next.key, next.type, next.value.evaluateAttributeExpressions(flowFile).getValue(), renderings);
+                    }
+                } catch (final RuntimeException e) {
+                    throw CefFieldException.of(next.key, e);
+                }
+            } else {
+                final MappedAttribute next = mapped.get(attribute++);
+                key = next.key.key;
+                writeKey(next.key.keyBytes, renderings);
+                escaped += writeValue(next.key.key, next.key.type, next.value, renderings);
+            }
+            for (final CefRendering rendering : renderings) {
+                if (rendering.fields != null) {
+                    rendering.fields.add(key, rendering.fieldStart, rendering.extensions.size());
+                }
+            }
+        }
+        return escaped;
+    }
+
+    private static void writeKey(final byte[] keyBytes, final CefRendering[] renderings) {
+        for (final CefRendering rendering : renderings) {
+            rendering.fieldStart = rendering.extensions.size();
+            rendering.extensions.write(keyBytes, 0, keyBytes.length);
+        }
+    }
+
+    //The value is escaped and encoded straight into the extensions of every rendering
+    private static int writeValue(final String key, final CefKeyDictionary.Type type, final String value, final CefRendering[] renderings) {
+        if (value == null) {
+            return 0;
+        }
+        final String coerced = coerce(key, type, value.strip());
+        int escapes = 0;
+        for (int i = 0; i < renderings.length; i++) {
+            final int escaped = CefEscaper.escape(renderings[i].format.valueMode(), coerced, renderings[i].extensions);
+            if (i == 0) {
+                escapes = escaped;
+            }
+        }
+        return escapes;
+    }
+
+    //Empty values carry no data and are written as they are
+    private static String coerce(final String key, final CefKeyDictionary.Type type, final String value) {
+        if (type == null || value.isEmpty()) {
+            return value;
+        }
+        final String coerced = type.coerce(value);
+        if (coerced == null) {
+            throw new CefFieldException(key, "Value '" + value + "' of extension key '" + key + "' is not a valid " + type);
+        }
+        return coerced;
+    }
+
+    //Selects the attributes passed through as extension fields and the fields of a lookup, sorted by key. Dynamic properties take precedence
+    //over both, and the fields of a lookup take precedence over attributes with the same key
+    private List<MappedAttribute> mapAttributes(final FlowFile flowFile, final Map<String, String> enriched) {
+        final boolean mapsAttributes = attributePrefix != null || attributePattern != null;
+        if (!mapsAttributes && enriched.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final List<MappedAttribute> mapped = new ArrayList<>();
+        Set<String> enrichedKeys = Collections.emptySet();
+        if (!enriched.isEmpty()) {
+            enrichedKeys = new HashSet<>();
+            for (final Map.Entry<String, String> field : enriched.entrySet()) {
+                final MappedKey key = lookupKeyCache.get(field.getKey(), this::mappedKey);
+                if (key != NOT_MAPPED && !dynamicKeys.contains(key.key)) {
+                    if (!key.known) {
+                        throw new CefFieldException(key.key, "Lookup field '" + field.getKey() + "' maps to '" + key.key + "', which is not a known CEF extension key");
+                    }
+                    enrichedKeys.add(key.key);
+                    mapped.add(new MappedAttribute(key, field.getValue()));
+                }
+            }
+        }
+        if (mapsAttributes) {
+            for (final Map.Entry<String, String> attribute : flowFile.getAttributes().entrySet()) {
+                final MappedKey key = keyCache.get(attribute.getKey(), this::translate);
+                if (key != NOT_MAPPED && !dynamicKeys.contains(key.key) && !enrichedKeys.contains(key.key)) {
+                    if (!key.known) {
+                        throw new CefFieldException(key.key, "Attribute '" + attribute.getKey() + "' maps to '" + key.key + "', which is not a known CEF extension key");
+                    }
+                    mapped.add(new MappedAttribute(key, attribute.getValue()));
+                }
+            }
+        }
+        mapped.sort((left, right) -> order.compare(left.key.key, right.key.key));
+        return mapped;
+    }
+
+    //Translates an attribute name into its extension key. The prefix is stripped, a regex selects its first capturing group if it has one
+    private MappedKey translate(final String attributeName) {
+        String key = null;
+        if (attributePrefix != null && attributeName.startsWith(attributePrefix)) {
+            key = attributeName.substring(attributePrefix.length());
+        } else if (attributePattern != null) {
+            final Matcher matcher = attributePattern.matcher(attributeName);
+            if (matcher.matches()) {
+                key = matcher.groupCount() > 0 ? matcher.group(1) : attributeName;
+            }
+        }
+        return key == null ? NOT_MAPPED : mappedKey(key);
+    }
+
+    //Whitespace would end the key early and is replaced with underscores. A key with a character that a value would escape, or with a pipe,
+    //cannot be parsed back as a key, so it is skipped like a blank one
+    private MappedKey mappedKey(final String key) {
+        if (key.isBlank()) {
+            return NOT_MAPPED;
+        }
+        final String mappedKey = key.strip().replaceAll("\\s", "_");
+        if (CefEscaper.indexOfEscape(CefEscaper.Mode.EXTENSION, mappedKey, 0, mappedKey.length()) >= 0 || mappedKey.indexOf('|') >= 0) {
+            return NOT_MAPPED;
+        }
+        return new MappedKey(mappedKey, valueType(dictionary, coerceValues, mappedKey), dictionary == null || dictionary.contains(mappedKey));
+    }
+
+    private static byte[] encode(final String key, final CefKeyDictionary.Type type, final String value, final CefFormat format) {
+        return value == null ? new byte[0] : CefEscaper.escape(format.valueMode(), coerce(key, type, value.strip())).getBytes(StandardCharsets.UTF_8);
+    }
+
+    //The byte ranges of the fields written for one flowfile, each from the start of its key to the end of its value. Fields can be
+    //dropped or shortened from them without rendering the extensions again
+    static final class Fields {
+        private String[] keys = new String[16];
+        private int[] starts = new int[16];
+        private int[] ends = new int[16];
+        private int count;
+
+        private void add(final String key, final int start, final int end) {
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, count * 2);
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            keys[count] = key;
+            starts[count] = start;
+            ends[count] = end;
+            count++;
+        }
+
+        void reset() {
+            count = 0;
+        }
+
+        int count() {
+            return count;
+        }
+
+        String key(final int field) {
+            return keys[field];
+        }
+
+        int start(final int field) {
+            return starts[field];
+        }
+
+        int end(final int field) {
+            return ends[field];
+        }
+    }
+
+    private static final class MappedKey {
+        private final String key;
+        private final byte[] keyBytes;
+        private final CefKeyDictionary.Type type;
+        private final boolean known;
+
+        private MappedKey(final String key, final CefKeyDictionary.Type type, final boolean known) {
+            this.key = key;
+            this.keyBytes = key == null ? null : (key + "=").getBytes(StandardCharsets.UTF_8);
+            this.type = type;
+            this.known = known;
+        }
+    }
+
+    private static final class MappedAttribute {
+        private final MappedKey key;
+        private final String value;
+
+        private MappedAttribute(final MappedKey key, final String value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private static final class Entry {
+        private final String key;
+        private final byte[] keyBytes;
+        private final PropertyValue value;
+        private final boolean hasExpressionLanguage;
+        private final byte[][] literalBytes;
+        private final CefTimestamps.Field timestamp;
+        private final CefKeyDictionary.Type type;
+
+        //Either a dynamic property value or a timestamp field
+        private Entry(final String key, final PropertyValue value, final CefTimestamps.Field timestamp, final CefKeyDictionary.Type type, final CefFormat[] formats) {
+            this.key = key;
+            this.keyBytes = (key + "=").getBytes(StandardCharsets.UTF_8);
+            this.value = value;
+            this.timestamp = timestamp;
+            this.type = type;
+            this.hasExpressionLanguage = value != null && value.isExpressionLanguagePresent();
+            if (value == null || hasExpressionLanguage) {
+                this.literalBytes = null;
+            } else {
+                this.literalBytes = new byte[formats.length][];
+                for (int i = 0; i < formats.length; i++) {
+                    literalBytes[i] = encode(key, type, value.getValue(), formats[i]);
+                }
+            }
+        }
+    }
+}
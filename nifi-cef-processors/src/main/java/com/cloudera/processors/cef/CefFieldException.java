@@ -0,0 +1,48 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import org.apache.nifi.processor.exception.ProcessException;
+
+//A value of an event that cannot be written, with the field it belongs to: a header field, an extension key or the attribute an event
+//time is read from. Only the event is routed to failure, so the exception carries no stack trace worth logging
+final class CefFieldException extends ProcessException {
+
+    private final String field;
+
+    CefFieldException(final String field, final String message) {
+        super(message);
+        this.field = field;
+    }
+
+    CefFieldException(final String field, final String message, final Throwable cause) {
+        super(message, cause);
+        this.field = field;
+    }
+
+    //The exception as a failure of the field, unless it already names that field
+    static CefFieldException of(final String field, final RuntimeException e) {
+        if (e instanceof CefFieldException && field.equals(((CefFieldException) e).field)) {
+            return (CefFieldException) e;
+        }
+        return new CefFieldException(field, e.getMessage(), e);
+    }
+
+    String field() {
+        return field;
+    }
+}
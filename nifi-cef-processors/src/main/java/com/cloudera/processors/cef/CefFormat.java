@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+//The layout of a record format, which is all the rendering pipeline needs to know about it: the version a LEEF header starts with, how
+//header and extension values are escaped and the byte between the extension fields. CEF writes the configured prefix, event name and
+//severity into its header. LEEF writes its own version, leaves the event name out and writes the severity as the first attribute, "sev"
+final class CefFormat {
+
+    static final CefFormat CEF = new CefFormat(null, null, CefEscaper.Mode.HEADER, CefEscaper.Mode.EXTENSION, ' ');
+    static final CefFormat LEEF_1 = new CefFormat("LEEF:1.0", null, CefEscaper.Mode.HEADER, CefEscaper.Mode.leefAttribute('\t'), '\t');
+
+    private final String leefVersion;
+    private final String delimiterField;
+    private final CefEscaper.Mode headerMode;
+    private final CefEscaper.Mode valueMode;
+    private final byte delimiter;
+
+    private CefFormat(final String leefVersion, final String delimiterField, final CefEscaper.Mode headerMode, final CefEscaper.Mode valueMode, final char delimiter) {
+        this.leefVersion = leefVersion;
+        this.delimiterField = delimiterField;
+        this.headerMode = headerMode;
+        this.valueMode = valueMode;
+        this.delimiter = (byte) delimiter;
+    }
+
+    //LEEF 2.0 names its attribute delimiter in the header, as the character itself or, if it is not printable, as its hex code
+    static CefFormat leef2(final char delimiter) {
+        final String delimiterField = delimiter > ' ' && delimiter < 127 ? String.valueOf(delimiter) : String.format("x%02X", (int) delimiter);
+        return new CefFormat("LEEF:2.0", delimiterField, CefEscaper.Mode.HEADER, CefEscaper.Mode.leefAttribute(delimiter), delimiter);
+    }
+
+    //A single ASCII character, or \t for a tab. The pipe and the equals sign would break the header and the attributes
+    static char parseDelimiter(final String value) {
+        final String delimiter = "\\t".equals(value) ? "\t" : value;
+        if (delimiter == null || delimiter.length() != 1 || delimiter.charAt(0) >= 127 || delimiter.charAt(0) == '|' || delimiter.charAt(0) == '='
+                || delimiter.charAt(0) == ' ' || delimiter.charAt(0) == '\r' || delimiter.charAt(0) == '\n') {
+            throw new IllegalArgumentException("The delimiter must be a single ASCII character other than a space, a line break, '|' or '=', or \\t for a tab");
+        }
+        return delimiter.charAt(0);
+    }
+
+    boolean isLeef() {
+        return leefVersion != null;
+    }
+
+    String leefVersion() {
+        return leefVersion;
+    }
+
+    //The sixth header field of LEEF 2.0, or null for formats without one
+    String delimiterField() {
+        return delimiterField;
+    }
+
+    CefEscaper.Mode headerMode() {
+        return headerMode;
+    }
+
+    CefEscaper.Mode valueMode() {
+        return valueMode;
+    }
+
+    byte delimiter() {
+        return delimiter;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import org.apache.nifi.flowfile.FlowFile;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+//Memoises a header field that uses expression language over a few attributes, such as ${source.type}. The value only depends on the
+//attributes the expression reads, so their values are the key and the escaped, encoded field is the cached value. Expressions that
+//read anything else, such as the time, a random number or the size of the flowfile, cannot be cached and are left out. The values not
+//used recently are evicted first, so a few hot values stay cached among many that occur once
+final class CefHeaderCache {
+
+    //The field of expressions without attribute references, and of a single attribute that is not set
+    private static final Object NO_VALUE = new Object();
+    //Values the expression language takes from the flowfile itself rather than from its attributes
+    private static final Set<String> FLOWFILE_FIELDS = Set.of("fileSize", "entryDate", "lineageStartDate", "lastQueueDate", "queueDateIndex");
+
+    private final String[] attributes;
+    private final ClockCache<Object, Field> fields;
+
+    private CefHeaderCache(final String[] attributes, final int maxEntries) {
+        this.attributes = attributes;
+        this.fields = new ClockCache<>(maxEntries);
+    }
+
+    //A cache for the expression, or null if its value may depend on anything but the attributes it names
+    static CefHeaderCache of(final String expression, final int maxEntries) {
+        final String[] attributes = referencedAttributes(expression);
+        return attributes == null ? null : new CefHeaderCache(attributes, maxEntries);
+    }
+
+    //The attributes the expression reads, or null if it calls a function that reads something else. Every "${" is taken as the start
+    //of an expression, so an escaped or quoted one only adds an attribute to the key. That never makes a cached value wrong
+    static String[] referencedAttributes(final String expression) {
+        final Set<String> attributes = new LinkedHashSet<>();
+        int position = expression.indexOf("${");
+        while (position >= 0) {
+            int i = position + 2;
+            while (i < expression.length() && Character.isWhitespace(expression.charAt(i))) {
+                i++;
+            }
+            if (i == expression.length()) {
+                return null;
+            }
+            final char first = expression.charAt(i);
+            String subject;
+            if (first == '\'' || first == '"') {
+                final int end = expression.indexOf(first, i + 1);
+                if (end < 0) {
+                    return null;
+                }
+                subject = expression.substring(i + 1, end);
+                i = end + 1;
+            } else {
+                final int start = i;
+                while (i < expression.length() && ":}(".indexOf(expression.charAt(i)) < 0 && !Character.isWhitespace(expression.charAt(i))) {
+                    i++;
+                }
+                subject = expression.substring(start, i);
+                while (i < expression.length() && Character.isWhitespace(expression.charAt(i))) {
+                    i++;
+                }
+                //A function as the subject: only literal() reads nothing
+                if (i < expression.length() && expression.charAt(i) == '(') {
+                    if (!"literal".equals(subject)) {
+                        return null;
+                    }
+                    subject = null;
+                }
+            }
+            if (subject != null) {
+                if (subject.isEmpty() || FLOWFILE_FIELDS.contains(subject)) {
+                    return null;
+                }
+                attributes.add(subject);
+            }
+            position = expression.indexOf("${", i);
+        }
+        return attributes.toArray(new String[0]);
+    }
+
+    //The values of the referenced attributes. A single value is its own key, so the common case builds nothing
+    Object key(final FlowFile flowFile) {
+        if (attributes.length == 1) {
+            final String value = flowFile.getAttribute(attributes[0]);
+            return value == null ? NO_VALUE : value;
+        }
+        if (attributes.length == 0) {
+            return NO_VALUE;
+        }
+        final String[] values = new String[attributes.length];
+        for (int i = 0; i < attributes.length; i++) {
+            values[i] = flowFile.getAttribute(attributes[i]);
+        }
+        return Arrays.asList(values);
+    }
+
+    Field get(final Object key) {
+        return fields.getIfPresent(key);
+    }
+
+    void put(final Object key, final Field field) {
+        fields.put(key, field);
+    }
+
+    //The evaluated value, and the bytes and number of escaped characters it was written with
+    static final class Field {
+        final String value;
+        final byte[] bytes;
+        final int escaped;
+
+        Field(final String value, final byte[] bytes, final int escaped) {
+            this.value = value;
+            this.bytes = bytes;
+            this.escaped = escaped;
+        }
+    }
+}
@@ -0,0 +1,535 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+//The known CEF extension keys and the types of their values. The embedded standard keys are merged with an optional file of custom keys
+//and frozen into a perfect hash table: every key has a slot of its own, found through a per bucket displacement, so a lookup is two
+//array reads and a single string comparison
+final class CefKeyDictionary {
+
+    private static final String STANDARD_KEYS = "cef-extension-keys.txt";
+    private static final int MAX_DISPLACEMENT = 1 << 16;
+
+    //Value types of the extension keys. Coercion returns the canonical form of a valid value, the value itself if it already is
+    //canonical, or null if it is not a valid value of the type. None of them uses regular expressions
+    enum Type {
+        STRING("String") {
+            @Override
+            String coerce(final String value) {
+                return value;
+            }
+        },
+        INTEGER("Integer") {
+            @Override
+            String coerce(final String value) {
+                return coerceInteger(value, Integer.MIN_VALUE, Integer.MAX_VALUE);
+            }
+        },
+        LONG("Long") {
+            @Override
+            String coerce(final String value) {
+                return coerceInteger(value, Long.MIN_VALUE, Long.MAX_VALUE);
+            }
+        },
+        FLOATING_POINT("FloatingPoint") {
+            @Override
+            String coerce(final String value) {
+                return coerceFloatingPoint(value);
+            }
+        },
+        IPV4("IPv4") {
+            @Override
+            String coerce(final String value) {
+                return coerceIpv4(value);
+            }
+        },
+        IPV6("IPv6") {
+            @Override
+            String coerce(final String value) {
+                return isIpv6(value) ? lowerCase(value) : null;
+            }
+        },
+        IP("IP") {
+            @Override
+            String coerce(final String value) {
+                return value.indexOf(':') >= 0 ? IPV6.coerce(value) : IPV4.coerce(value);
+            }
+        },
+        MAC("MAC") {
+            @Override
+            String coerce(final String value) {
+                return coerceMac(value);
+            }
+        },
+        TIMESTAMP("Timestamp") {
+            @Override
+            String coerce(final String value) {
+                return isEpochMillis(value) || isFormattedTimestamp(value) ? value : null;
+            }
+        };
+
+        private final String displayName;
+
+        Type(final String displayName) {
+            this.displayName = displayName;
+        }
+
+        abstract String coerce(String value);
+
+        static Type of(final String displayName) {
+            for (final Type type : values()) {
+                if (type.displayName.equalsIgnoreCase(displayName)) {
+                    return type;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return displayName;
+        }
+    }
+
+    private static final Map<String, Type> STANDARD = loadStandard();
+
+    private final int bucketMask;
+    private final int[] displacements;
+    private final int slotMask;
+    private final String[] keys;
+    private final Type[] types;
+
+    private CefKeyDictionary(final int bucketMask, final int[] displacements, final int slotMask, final String[] keys, final Type[] types) {
+        this.bucketMask = bucketMask;
+        this.displacements = displacements;
+        this.slotMask = slotMask;
+        this.keys = keys;
+        this.types = types;
+    }
+
+    private static Map<String, Type> loadStandard() {
+        try (final InputStream in = CefKeyDictionary.class.getResourceAsStream(STANDARD_KEYS)) {
+            if (in == null) {
+                throw new IllegalStateException("Missing resource " + STANDARD_KEYS);
+            }
+            return parse(new InputStreamReader(in, StandardCharsets.UTF_8), STANDARD_KEYS);
+        } catch (final IOException e) {
+            throw new IllegalStateException("Failed to read " + STANDARD_KEYS, e);
+        }
+    }
+
+    //The standard keys, merged with the keys of the custom file if there is one. A custom key may change the type of a standard key
+    static CefKeyDictionary load(final String customKeysFile) throws IOException {
+        final Map<String, Type> entries = new LinkedHashMap<>(STANDARD);
+        if (customKeysFile != null) {
+            try (final Reader reader = Files.newBufferedReader(Paths.get(customKeysFile), StandardCharsets.UTF_8)) {
+                entries.putAll(parse(reader, customKeysFile));
+            }
+        }
+        return of(entries);
+    }
+
+    //Reads one key per line, optionally followed by whitespace and a type. Blank lines and lines starting with '#' are skipped
+    static Map<String, Type> parse(final Reader reader, final String source) throws IOException {
+        final Map<String, Type> entries = new LinkedHashMap<>();
+        final BufferedReader lines = new BufferedReader(reader);
+        String line;
+        int number = 0;
+        while ((line = lines.readLine()) != null) {
+            number++;
+            line = line.strip();
+            if (line.isEmpty() || line.charAt(0) == '#') {
+                continue;
+            }
+            int end = 0;
+            while (end < line.length() && !Character.isWhitespace(line.charAt(end))) {
+                end++;
+            }
+            final String key = line.substring(0, end);
+            final String typeName = line.substring(end).strip();
+            final Type type = typeName.isEmpty() ? Type.STRING : Type.of(typeName);
+            if (type == null) {
+                throw new IOException("Unknown type '" + typeName + "' for key '" + key + "' on line " + number + " of " + source);
+            }
+            if (CefEscaper.indexOfEscape(CefEscaper.Mode.EXTENSION, key, 0, key.length()) >= 0) {
+                throw new IOException("Invalid key '" + key + "' on line " + number + " of " + source);
+            }
+            entries.put(key, type);
+        }
+        return entries;
+    }
+
+    //Builds the perfect hash table. Keys are grouped into buckets by their string hash, then the largest buckets are placed first,
+    //each with the first displacement that moves all of its keys into free slots. Half of the slots stay empty, so this converges quickly
+    static CefKeyDictionary of(final Map<String, Type> entries) {
+        final int bucketCount = powerOfTwo(entries.size() / 2);
+        int slotCount = powerOfTwo(entries.size() * 2);
+
+        final List<List<String>> buckets = new ArrayList<>(bucketCount);
+        for (int i = 0; i < bucketCount; i++) {
+            buckets.add(new ArrayList<>());
+        }
+        for (final String key : entries.keySet()) {
+            buckets.get(bucket(key, bucketCount - 1)).add(key);
+        }
+        final Integer[] order = new Integer[bucketCount];
+        for (int i = 0; i < bucketCount; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (left, right) -> buckets.get(right).size() - buckets.get(left).size());
+
+        while (true) {
+            final int[] displacements = new int[bucketCount];
+            final String[] keys = new String[slotCount];
+            if (place(buckets, order, displacements, keys)) {
+                final Type[] types = new Type[slotCount];
+                for (int i = 0; i < slotCount; i++) {
+                    if (keys[i] != null) {
+                        types[i] = entries.get(keys[i]);
+                    }
+                }
+                return new CefKeyDictionary(bucketCount - 1, displacements, slotCount - 1, keys, types);
+            }
+            //Only keys that collide for every displacement get here, more slots give them another chance
+            slotCount <<= 1;
+        }
+    }
+
+    private static int powerOfTwo(final int atLeast) {
+        return atLeast <= 1 ? 1 : Integer.highestOneBit(atLeast - 1) << 1;
+    }
+
+    private static boolean place(final List<List<String>> buckets, final Integer[] order, final int[] displacements, final String[] keys) {
+        final int slotMask = keys.length - 1;
+        final int[] slots = new int[buckets.get(order[0]).size()];
+        for (final int bucket : order) {
+            final List<String> bucketKeys = buckets.get(bucket);
+            if (bucketKeys.isEmpty()) {
+                break;
+            }
+            boolean placed = false;
+            for (int displacement = 1; displacement < MAX_DISPLACEMENT && !placed; displacement++) {
+                placed = true;
+                for (int i = 0; i < bucketKeys.size() && placed; i++) {
+                    final int slot = slot(bucketKeys.get(i), displacement, slotMask);
+                    if (keys[slot] != null) {
+                        placed = false;
+                    }
+                    for (int j = 0; j < i && placed; j++) {
+                        placed = slots[j] != slot;
+                    }
+                    slots[i] = slot;
+                }
+                if (placed) {
+                    for (int i = 0; i < bucketKeys.size(); i++) {
+                        keys[slots[i]] = bucketKeys.get(i);
+                    }
+                    displacements[bucket] = displacement;
+                }
+            }
+            if (!placed) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int bucket(final String key, final int bucketMask) {
+        final int h = key.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & bucketMask;
+    }
+
+    //FNV-1a over the characters, seeded with the displacement, so keys with equal string hashes can still be separated
+    private static int slot(final String key, final int displacement, final int slotMask) {
+        int h = 0x811C9DC5 ^ (displacement * 0x9E3779B9);
+        for (int i = 0; i < key.length(); i++) {
+            h = (h ^ key.charAt(i)) * 0x01000193;
+        }
+        return (h ^ (h >>> 15)) & slotMask;
+    }
+
+    //The type of the key, or null if the key is not known
+    Type typeOf(final String key) {
+        final int slot = slot(key, displacements[bucket(key, bucketMask)], slotMask);
+        return key.equals(keys[slot]) ? types[slot] : null;
+    }
+
+    boolean contains(final String key) {
+        return typeOf(key) != null;
+    }
+
+    private static String coerceInteger(final String value, final long min, final long max) {
+        final int length = value.length();
+        int i = 0;
+        boolean negative = false;
+        if (length > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+')) {
+            negative = value.charAt(0) == '-';
+            i = 1;
+        }
+        if (i == length) {
+            return null;
+        }
+        //Accumulates negatively, which covers Long.MIN_VALUE
+        long result = 0;
+        for (; i < length; i++) {
+            final int digit = value.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || result < (Long.MIN_VALUE + digit) / 10) {
+                return null;
+            }
+            result = result * 10 - digit;
+        }
+        if (!negative) {
+            if (result == Long.MIN_VALUE) {
+                return null;
+            }
+            result = -result;
+        }
+        if (result < min || result > max) {
+            return null;
+        }
+        final boolean canonical = value.charAt(0) != '+' && !(length > 1 && value.charAt(negative ? 1 : 0) == '0') && !(negative && result == 0);
+        return canonical ? value : Long.toString(result);
+    }
+
+    private static String coerceFloatingPoint(final String value) {
+        if (value.isEmpty()) {
+            return null;
+        }
+        //Double.parseDouble also accepts NaN, Infinity, hexadecimal and type suffixes, none of which are valid here
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (!(c >= '0' && c <= '9') && c != '.' && c != '-' && c != '+' && c != 'e' && c != 'E') {
+                return null;
+            }
+        }
+        try {
+            Double.parseDouble(value);
+            return value;
+        } catch (final NumberFormatException e) {
+            return null;
+        }
+    }
+
+    //Dotted quad of decimal octets. Leading zeros are dropped, as they would read as octal elsewhere
+    private static String coerceIpv4(final String value) {
+        final int[] octets = new int[4];
+        int octet = 0;
+        int digits = 0;
+        boolean canonical = true;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '.') {
+                if (digits == 0 || octet == 3) {
+                    return null;
+                }
+                octet++;
+                digits = 0;
+            } else if (c >= '0' && c <= '9') {
+                if (digits == 1 && octets[octet] == 0) {
+                    canonical = false;
+                }
+                octets[octet] = octets[octet] * 10 + (c - '0');
+                if (++digits > 3 || octets[octet] > 255) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+        }
+        if (octet != 3 || digits == 0) {
+            return null;
+        }
+        return canonical ? value : octets[0] + "." + octets[1] + "." + octets[2] + "." + octets[3];
+    }
+
+    //Eight groups of up to four hex digits, at most one "::" standing in for one or more groups, optionally ending in an IPv4 address
+    private static boolean isIpv6(final String value) {
+        final int length = value.length();
+        if (length < 2) {
+            return false;
+        }
+        int groups = 0;
+        int digits = 0;
+        boolean compressed = false;
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c == ':') {
+                if (i + 1 < length && value.charAt(i + 1) == ':') {
+                    if (compressed) {
+                        return false;
+                    }
+                    compressed = true;
+                    if (digits > 0) {
+                        groups++;
+                    }
+                    digits = 0;
+                    i++;
+                } else {
+                    //A single colon ends a group, so it can neither start nor end the address
+                    if (digits == 0 || i + 1 == length) {
+                        return false;
+                    }
+                    groups++;
+                    digits = 0;
+                }
+            } else if (c == '.') {
+                //The trailing IPv4 address counts as two groups
+                final int start = i - digits;
+                if (digits == 0 || (start > 0 && value.charAt(start - 1) != ':') || coerceIpv4(value.substring(start)) == null) {
+                    return false;
+                }
+                groups += 2;
+                digits = 0;
+                break;
+            } else if (Character.digit(c, 16) >= 0) {
+                if (++digits > 4) {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+        }
+        if (digits > 0) {
+            groups++;
+        }
+        return compressed ? groups < 8 : groups == 8;
+    }
+
+    private static String lowerCase(final String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (Character.isUpperCase(value.charAt(i))) {
+                return value.toLowerCase();
+            }
+        }
+        return value;
+    }
+
+    //Six pairs of hex digits separated by colons or hyphens, written as upper case pairs separated by colons
+    private static String coerceMac(final String value) {
+        if (value.length() != 17) {
+            return null;
+        }
+        final char separator = value.charAt(2);
+        if (separator != ':' && separator != '-') {
+            return null;
+        }
+        boolean canonical = separator == ':';
+        for (int i = 0; i < 17; i++) {
+            final char c = value.charAt(i);
+            if (i % 3 == 2) {
+                if (c != separator) {
+                    return null;
+                }
+            } else if (Character.digit(c, 16) < 0) {
+                return null;
+            } else if (c >= 'a' && c <= 'f') {
+                canonical = false;
+            }
+        }
+        return canonical ? value : value.replace(separator, ':').toUpperCase();
+    }
+
+    private static boolean isEpochMillis(final String value) {
+        if (value.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return value.length() <= 18;
+    }
+
+    private static final String[] MONTHS = {"Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"};
+
+    //The formats the CEF specification allows: "MMM dd [yyyy ]HH:mm:ss[.SSS][ zzz]"
+    private static boolean isFormattedTimestamp(final String value) {
+        if (value.length() < 15 || !isMonth(value) || value.charAt(3) != ' ') {
+            return false;
+        }
+        int i = 4;
+        final int day = digits(value, i, 2);
+        if (day < 1 || day > 31 || value.charAt(i + 2) != ' ') {
+            return false;
+        }
+        i += 3;
+        if (value.length() > i + 4 && value.charAt(i + 4) == ' ') {
+            if (digits(value, i, 4) < 0) {
+                return false;
+            }
+            i += 5;
+        }
+        if (value.length() < i + 8 || digits(value, i, 2) > 23 || value.charAt(i + 2) != ':' || digits(value, i + 3, 2) > 59
+                || value.charAt(i + 5) != ':' || digits(value, i + 6, 2) > 59
+                || digits(value, i, 2) < 0 || digits(value, i + 3, 2) < 0 || digits(value, i + 6, 2) < 0) {
+            return false;
+        }
+        i += 8;
+        if (i < value.length() && value.charAt(i) == '.') {
+            if (digits(value, i + 1, 3) < 0) {
+                return false;
+            }
+            i += 4;
+        }
+        if (i == value.length()) {
+            return true;
+        }
+        //A time zone follows after a single space and contains no further spaces
+        return value.charAt(i) == ' ' && i + 1 < value.length() && value.indexOf(' ', i + 1) < 0;
+    }
+
+    private static boolean isMonth(final String value) {
+        for (final String month : MONTHS) {
+            if (value.regionMatches(true, 0, month, 0, 3)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //The value of exactly count decimal digits at the position, or -1 if there are not as many
+    private static int digits(final String value, final int from, final int count) {
+        if (from + count > value.length()) {
+            return -1;
+        }
+        int result = 0;
+        for (int i = from; i < from + count; i++) {
+            final char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+//Streams content into one CEF record per line. The header and extension fields of the flowfile are rendered once and copied around every
+//line, which becomes the escaped msg value. Lines are found with a KMP state machine, so delimiters of any length are matched across
+//read boundaries, and memory is bounded by the chunk size plus the longest line, or the maximum msg size when one is set.
+//The content is cut into chunks of whole lines. Without an executor every chunk is rendered as soon as it is full, with one the chunks
+//are rendered in parallel and written in the order they were read. Both paths render the same chunks the same way, so their output is
+//byte for byte identical
+final class CefLineSplitter {
+
+    private static final byte[] MSG_KEY = "msg=".getBytes(StandardCharsets.UTF_8);
+
+    private final byte[] delimiter;
+    private final int[] fallback;
+    private final boolean stripCarriageReturn;
+    private final int maxLineLength;
+    private final long maxMsgSize;
+    private final boolean truncateMsg;
+    private final boolean truncateToFit;
+    private final boolean octetCounting;
+    private final int lineCapacity;
+    private final int chunkSize;
+    private final ExecutorService executor;
+    private final int maxChunksInFlight;
+
+    //A msg is limited by the maximum msg size and by the budget the record size leaves for it, whichever is smaller. That limit also
+    //decides whether an oversize msg is truncated or fails the flowfile. A line longer than the maximum line length is treated like an
+    //oversize msg before it is escaped
+    CefLineSplitter(final byte[] delimiter, final int maxLineLength, final long maxMsgSize, final boolean truncateMsg, final long maxRecordSize, final boolean truncateToFit,
+                    final boolean octetCounting, final int chunkSize, final ExecutorService executor, final int threads) {
+        this.delimiter = delimiter;
+        this.fallback = fallback(delimiter);
+        this.stripCarriageReturn = delimiter.length == 1 && delimiter[0] == '\n';
+        this.maxLineLength = maxLineLength;
+        this.maxMsgSize = maxMsgSize;
+        this.truncateMsg = truncateMsg;
+        this.truncateToFit = truncateToFit;
+        this.octetCounting = octetCounting;
+        //Escaping never shrinks a line, so bytes beyond the msg limit plus a trailing delimiter and carriage return can never be written
+        final long maxLine = Math.min(maxLineLength, maxMsgSize != Long.MAX_VALUE ? maxMsgSize : maxRecordSize);
+        this.lineCapacity = (int) (maxLine + delimiter.length + 1);
+        this.chunkSize = chunkSize;
+        this.executor = executor;
+        //Every thread has a chunk to render and one waiting, more would only hold memory
+        this.maxChunksInFlight = Math.max(threads, 1) * 2;
+    }
+
+    //Translates the escape sequences \n, \r, \t and \\ of a configured delimiter
+    static byte[] parseDelimiter(final String value) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                final char next = value.charAt(++i);
+                sb.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next == 't' ? '\t' : next);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    //For every prefix of the delimiter, the length of its longest proper prefix that is also its suffix
+    private static int[] fallback(final byte[] delimiter) {
+        final int[] fallback = new int[delimiter.length];
+        int matched = 0;
+        for (int i = 1; i < delimiter.length; i++) {
+            while (matched > 0 && delimiter[i] != delimiter[matched]) {
+                matched = fallback[matched - 1];
+            }
+            if (delimiter[i] == delimiter[matched]) {
+                matched++;
+            }
+            fallback[i] = matched;
+        }
+        return fallback;
+    }
+
+    //Writes a framed record for every line that is not blank and returns the number of records. Throws if a line does not fit into the
+    //msg limit and may not be truncated
+    long write(final InputStream in, final OutputStream out, final byte[] header, final byte[] extensions, final long msgBudget,
+               final CefWriterMetrics.Batch batch) throws IOException {
+        final LineReader reader = new LineReader(in);
+        if (executor == null) {
+            final Renderer renderer = new Renderer(header, extensions, msgBudget);
+            final Chunk chunk = new Chunk();
+            long records = 0;
+            boolean more;
+            do {
+                chunk.clear();
+                more = reader.fill(chunk);
+                records += renderer.render(chunk, out, batch);
+            } while (more);
+            return records;
+        }
+
+        final Deque<Future<Rendered>> inFlight = new ArrayDeque<>();
+        long records = 0;
+        try {
+            boolean more;
+            do {
+                final Chunk chunk = new Chunk();
+                more = reader.fill(chunk);
+                while (inFlight.size() >= maxChunksInFlight) {
+                    records += inFlight.removeFirst().get().writeTo(out, batch);
+                }
+                inFlight.addLast(executor.submit(() -> {
+                    final Rendered rendered = new Rendered((int) Math.min(chunk.size + (long) chunk.lines * (header.length + extensions.length + 16), Integer.MAX_VALUE - 64));
+                    rendered.records = new Renderer(header, extensions, msgBudget).render(chunk, rendered.out, rendered.batch);
+                    return rendered;
+                }));
+            } while (more);
+            while (!inFlight.isEmpty()) {
+                records += inFlight.removeFirst().get().writeTo(out, batch);
+            }
+            return records;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while converting lines");
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("Failed to convert lines", e.getCause());
+        } finally {
+            for (final Future<Rendered> future : inFlight) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    //Cuts the content into lines. The read buffer and the delimiter state carry over from one chunk to the next
+    private final class LineReader {
+        private final InputStream in;
+        private final byte[] buffer = new byte[8192];
+        private int position;
+        private int limit;
+        private int matched;
+
+        private LineReader(final InputStream in) {
+            this.in = in;
+        }
+
+        //Reads whole lines into the chunk until it holds at least the chunk size. Returns false once the content has been read completely
+        boolean fill(final Chunk chunk) throws IOException {
+            while (true) {
+                while (position < limit) {
+                    final byte b = buffer[position++];
+                    while (matched > 0 && b != delimiter[matched]) {
+                        matched = fallback[matched - 1];
+                    }
+                    if (b == delimiter[matched]) {
+                        matched++;
+                    }
+                    chunk.append(b);
+                    if (matched == delimiter.length) {
+                        chunk.endLine(chunk.lineLength - delimiter.length);
+                        matched = 0;
+                        if (chunk.size >= chunkSize) {
+                            return true;
+                        }
+                    }
+                }
+                limit = in.read(buffer);
+                position = 0;
+                if (limit == -1) {
+                    limit = 0;
+                    chunk.endLine(chunk.lineLength);
+                    return false;
+                }
+            }
+        }
+    }
+
+    //Whole lines laid out back to back. A line keeps at most as many bytes as could fit into the msg after escaping, the rest of an
+    //oversize line is only counted
+    private final class Chunk {
+        private byte[] data = new byte[Math.min(chunkSize, 64 * 1024)];
+        private int size;
+        private int[] ends = new int[64];
+        private long[] lengths = new long[64];
+        private int lines;
+        private int lineStart;
+        private long lineLength;
+
+        void append(final byte b) {
+            if (lineLength < lineCapacity) {
+                if (size == data.length) {
+                    data = Arrays.copyOf(data, (int) Math.min((long) data.length * 2, Integer.MAX_VALUE - 64));
+                }
+                data[size++] = b;
+            }
+            lineLength++;
+        }
+
+        //Drops the stored delimiter bytes and records the line with its full length
+        void endLine(final long length) {
+            size = lineStart + (int) Math.min(length, size - lineStart);
+            if (lines == ends.length) {
+                ends = Arrays.copyOf(ends, lines * 2);
+                lengths = Arrays.copyOf(lengths, lines * 2);
+            }
+            ends[lines] = size;
+            lengths[lines] = length;
+            lines++;
+            lineStart = size;
+            lineLength = 0;
+        }
+
+        void clear() {
+            size = 0;
+            lines = 0;
+            lineStart = 0;
+            lineLength = 0;
+        }
+    }
+
+    //Renders the lines of chunks. The header and msg key stay in front of every record, only the msg and extension fields behind them are
+    //rewritten per line. A renderer is used by one thread at a time
+    private final class Renderer {
+        private final byte[] extensions;
+        private final long msgBudget;
+        private final int start;
+        private byte[] record;
+
+        private Renderer(final byte[] header, final byte[] extensions, final long msgBudget) {
+            this.extensions = extensions;
+            this.msgBudget = msgBudget;
+            this.start = header.length + MSG_KEY.length;
+            this.record = new byte[Math.max(2048, start * 2)];
+            System.arraycopy(header, 0, record, 0, header.length);
+            System.arraycopy(MSG_KEY, 0, record, header.length, MSG_KEY.length);
+        }
+
+        long render(final Chunk chunk, final OutputStream out, final CefWriterMetrics.Batch batch) throws IOException {
+            long records = 0;
+            int from = 0;
+            for (int i = 0; i < chunk.lines; i++) {
+                if (writeLine(chunk.data, from, chunk.ends[i] - from, chunk.lengths[i], out, batch)) {
+                    records++;
+                }
+                from = chunk.ends[i];
+            }
+            return records;
+        }
+
+        private boolean writeLine(final byte[] line, final int offset, int length, long total, final OutputStream out,
+                                  final CefWriterMetrics.Batch batch) throws IOException {
+            if (stripCarriageReturn && total > 0 && total == length && line[offset + length - 1] == '\r') {
+                length--;
+                total--;
+            }
+            if (total > maxLineLength) {
+                if (!truncateMsg) {
+                    throw new MsgTooLargeException("A line exceeds the maximum line length of " + maxLineLength + " bytes");
+                }
+                if (length > maxLineLength) {
+                    //Cut before the character the limit falls into
+                    length = maxLineLength;
+                    while (length > 0 && (line[offset + length] & 0xC0) == 0x80) {
+                        length--;
+                    }
+                }
+                total = length;
+            }
+            if (isBlank(line, offset, length)) {
+                return false;
+            }
+
+            //Every escape turns one byte into two, so the difference in length is the number of escaped characters
+            final int capacity = start + length * 2 + 1 + extensions.length;
+            if (record.length < capacity) {
+                record = Arrays.copyOf(record, Math.max(capacity, record.length * 2));
+            }
+            int end = CefEscaper.escape(CefEscaper.Mode.EXTENSION, line, offset, offset + length, record, start);
+            batch.addEscaped(end - start - length);
+
+            final long limit = Math.min(maxMsgSize, msgBudget);
+            if (end - start > limit || total > length) {
+                if (msgBudget >= maxMsgSize && !truncateMsg) {
+                    throw new MsgTooLargeException("A line exceeds the maximum msg size of " + maxMsgSize + " bytes");
+                }
+                if (msgBudget < maxMsgSize && !truncateToFit) {
+                    throw new CefRecordFitter.RecordTooLargeException("The record of a line exceeds the maximum record size");
+                }
+                end = CefEscaper.truncationPoint(CefEscaper.Mode.EXTENSION, record, start, end, limit);
+            }
+            if (extensions.length > 0) {
+                record[end++] = ' ';
+                System.arraycopy(extensions, 0, record, end, extensions.length);
+                end += extensions.length;
+            }
+
+            if (octetCounting) {
+                out.write(Integer.toString(end).getBytes(StandardCharsets.US_ASCII));
+                out.write(' ');
+            }
+            out.write(record, 0, end);
+            if (!octetCounting) {
+                out.write('\n');
+            }
+            batch.record(end);
+            return true;
+        }
+    }
+
+    private static boolean isBlank(final byte[] line, final int offset, final int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (line[i] != ' ' && line[i] != '\t') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //The records of a chunk rendered in parallel, with the measurements taken while rendering them
+    private static final class Rendered {
+        private final ByteArrayOutputStream out;
+        private final CefWriterMetrics.Batch batch = new CefWriterMetrics.Batch();
+        private long records;
+
+        private Rendered(final int size) {
+            this.out = new ByteArrayOutputStream(size);
+        }
+
+        long writeTo(final OutputStream target, final CefWriterMetrics.Batch total) throws IOException {
+            out.writeTo(target);
+            total.merge(batch);
+            return records;
+        }
+    }
+
+    //Tells an oversize line apart from a failed write
+    static final class MsgTooLargeException extends IOException {
+        MsgTooLargeException(final String message) {
+            super(message);
+        }
+    }
+}
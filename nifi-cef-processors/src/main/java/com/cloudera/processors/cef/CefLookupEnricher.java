@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.PropertyValue;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.lookup.LookupFailureException;
+import org.apache.nifi.lookup.LookupService;
+import org.apache.nifi.serialization.record.Record;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Enriches the header and extension fields of a flowfile with the result of a lookup, by default keyed by the device event class ID. Results
+//are cached for a fixed time, so the lookup service is only asked again once a result has expired. Results without a value are cached as
+//well, so unknown keys do not reach the service for every flowfile. The cache holds a maximum number of results and evicts the oldest first
+final class CefLookupEnricher {
+
+    //The header fields a lookup may set
+    static final List<PropertyDescriptor> ENRICHED_FIELDS = List.of(CefWriter.DEVICE_CLASS_ID, CefWriter.EVENT_NAME, CefWriter.EVENT_SEVERITY);
+
+    private static final String DEFAULT_COORDINATE = "key";
+
+    private final LookupService<?> service;
+    private final PropertyValue key;
+    private final boolean keyIsClassId;
+    private final String coordinate;
+    private final long ttlNanos;
+    private final int maxEntries;
+    private final ConcurrentHashMap<String, Cached> cache = new ConcurrentHashMap<>();
+    //Every result in the order it was loaded, including those that have been superseded since, which are evicted from here in turn
+    private final ConcurrentLinkedQueue<Cached> byAge = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    //Without a key, the device event class ID is the key. The key is evaluated for every flowfile. The service must either require a single
+    //coordinate, which the key is passed as, or none, which CefWriter validates
+    CefLookupEnricher(final LookupService<?> service, final PropertyValue key, final PropertyValue classId, final long ttlMillis, final int maxEntries) {
+        final Set<String> requiredKeys = service.getRequiredKeys();
+        this.service = service;
+        this.key = key != null ? key : classId;
+        this.keyIsClassId = key == null;
+        this.coordinate = requiredKeys == null || requiredKeys.isEmpty() ? DEFAULT_COORDINATE : requiredKeys.iterator().next();
+        this.ttlNanos = ttlMillis * 1_000_000L;
+        this.maxEntries = maxEntries;
+    }
+
+    //Looks up the fields the flowfile is enriched with and sets the header values among them. Results come from the cache unless they have
+    //expired. A flowfile without a key is not enriched
+    Result enrich(final FlowFile flowFile, final String[] values, final CefWriterMetrics.Batch batch) throws LookupFailureException {
+        final String value = key.evaluateAttributeExpressions(flowFile).getValue();
+        if (value == null || value.isEmpty()) {
+            return Result.NONE;
+        }
+        //The class ID is only evaluated once, for the key and the header
+        if (keyIsClassId) {
+            values[CefTemplate.valueIndex(CefWriter.DEVICE_CLASS_ID)] = value;
+        }
+        final Result result = lookup(value, batch);
+        result.apply(values);
+        return result;
+    }
+
+    private Result lookup(final String value, final CefWriterMetrics.Batch batch) throws LookupFailureException {
+        final long now = System.nanoTime();
+        final Cached cached = cache.get(value);
+        if (cached != null && now - cached.expires < 0) {
+            batch.lookupCacheHit();
+            return cached.result;
+        }
+        batch.lookupCacheMiss();
+
+        //Concurrent misses on the same key may look it up more than once, the last result is kept
+        final Result result = Result.of(service.lookup(Collections.singletonMap(coordinate, value)));
+        final Cached loaded = new Cached(value, result, now + ttlNanos);
+        cache.put(value, loaded);
+        byAge.add(loaded);
+        //The queue is bounded rather than the cache, since a refreshed key leaves its superseded result in the queue. Every cached result
+        //is queued, so the cache is bounded as well. Removing a superseded result from the cache does nothing
+        if (queued.incrementAndGet() > maxEntries) {
+            Cached oldest;
+            while (queued.get() > maxEntries && (oldest = byAge.poll()) != null) {
+                queued.decrementAndGet();
+                cache.remove(oldest.key, oldest);
+            }
+        }
+        return result;
+    }
+
+    int size() {
+        return cache.size();
+    }
+
+    int queued() {
+        return queued.get();
+    }
+
+    //A record enriches the header with its deviceEventClassId, name and severity fields, and its other fields are added as extension
+    //fields. Any other value is taken as the event name. Fields without a value are left out
+    static final class Result {
+        static final Result NONE = new Result(null, null, null, Collections.emptyMap());
+
+        final String classId;
+        final String name;
+        final String severity;
+        final Map<String, String> extensions;
+
+        private Result(final String classId, final String name, final String severity, final Map<String, String> extensions) {
+            this.classId = classId;
+            this.name = name;
+            this.severity = severity;
+            this.extensions = extensions;
+        }
+
+        static Result of(final Optional<?> value) {
+            if (value.isEmpty()) {
+                return NONE;
+            }
+            if (!(value.get() instanceof Record)) {
+                return new Result(null, value.get().toString(), null, Collections.emptyMap());
+            }
+            final Record record = (Record) value.get();
+            String classId = null;
+            String name = null;
+            String severity = null;
+            final Map<String, String> extensions = new LinkedHashMap<>();
+            for (final String field : record.getSchema().getFieldNames()) {
+                final String fieldValue = record.getAsString(field);
+                if (fieldValue == null) {
+                    continue;
+                }
+                switch (field) {
+                    case CefParser.DEVICE_EVENT_CLASS_ID:
+                        classId = fieldValue;
+                        break;
+                    case CefParser.NAME:
+                        name = fieldValue;
+                        break;
+                    case CefParser.SEVERITY:
+                        severity = fieldValue;
+                        break;
+                    default:
+                        extensions.put(field, fieldValue);
+                }
+            }
+            return new Result(classId, name, severity, extensions.isEmpty() ? Collections.emptyMap() : extensions);
+        }
+
+        //Sets the header values the lookup returned, so that their properties are not evaluated
+        private void apply(final String[] values) {
+            if (classId != null) {
+                values[CefTemplate.valueIndex(CefWriter.DEVICE_CLASS_ID)] = classId;
+            }
+            if (name != null) {
+                values[CefTemplate.valueIndex(CefWriter.EVENT_NAME)] = name;
+            }
+            if (severity != null) {
+                values[CefTemplate.valueIndex(CefWriter.EVENT_SEVERITY)] = severity;
+            }
+        }
+    }
+
+    private static final class Cached {
+        private final String key;
+        private final Result result;
+        private final long expires;
+
+        private Cached(final String key, final Result result, final long expires) {
+            this.key = key;
+            this.result = result;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//Single pass, byte level tokenizer for CEF records, shared by the ParseCef processor and the CEF record reader. It reverses the escaping
+//applied by CefEscaper: every field is unescaped into one reused scratch buffer and only its offsets are kept, so Strings are created
+//only for the fields a caller asks for. Instances are not thread safe and are meant to be reused for many records.
+public final class CefParser {
+
+    //Names of the header fields, used as record field names and attribute name suffixes
+    public static final String EVENT_DATE = "eventDate";
+    public static final String EVENT_HOST = "eventHost";
+    public static final String VERSION = "version";
+    public static final String DEVICE_VENDOR = "deviceVendor";
+    public static final String DEVICE_PRODUCT = "deviceProduct";
+    public static final String DEVICE_VERSION = "deviceVersion";
+    public static final String DEVICE_EVENT_CLASS_ID = "deviceEventClassId";
+    public static final String NAME = "name";
+    public static final String SEVERITY = "severity";
+
+    //The pipe delimited header fields in record order, the first one holds the version and, with a complex header, the event date and host
+    private static final int HEADER_FIELDS = 7;
+    private static final String[] HEADER_NAMES = {VERSION, DEVICE_VENDOR, DEVICE_PRODUCT, DEVICE_VERSION, DEVICE_EVENT_CLASS_ID, NAME, SEVERITY};
+
+    private byte[] scratch = new byte[1024];
+    private int length;
+    private final int[] header = new int[HEADER_FIELDS * 2];
+    //Start and end of the event date and host within the first header field, or -1 for a simple header
+    private final int[] syslogPrefix = new int[4];
+    //Key start, key end, value start and value end of every extension field
+    private int[] extensions = new int[64];
+    private int extensionCount;
+
+    public static String[] headerNames() {
+        return HEADER_NAMES.clone();
+    }
+
+    public void parse(final byte[] record) {
+        parse(record, 0, record.length);
+    }
+
+    //Tokenizes one record without its line terminator. Throws IllegalArgumentException if the record is not valid CEF
+    public void parse(final byte[] record, final int from, final int to) {
+        if (scratch.length < to - from) {
+            scratch = new byte[Math.max(to - from, scratch.length * 2)];
+        }
+        length = 0;
+        extensionCount = 0;
+
+        int position = from;
+        for (int field = 0; field < HEADER_FIELDS; field++) {
+            header[field * 2] = length;
+            position = unescapeHeaderField(record, position, to);
+            if (position == to) {
+                throw new IllegalArgumentException("CEF header has " + (field + 1) + " of " + HEADER_FIELDS + " fields");
+            }
+            header[field * 2 + 1] = length;
+            position++;
+        }
+        splitSyslogPrefix();
+        parseExtensions(record, position, to);
+    }
+
+    //Copies the field up to the next unescaped pipe into the scratch buffer. Returns the position of that pipe, or the end of the record
+    private int unescapeHeaderField(final byte[] record, final int from, final int to) {
+        int position = from;
+        while (position < to) {
+            final byte b = record[position];
+            if (b == '|') {
+                return position;
+            }
+            if (b == '\\' && position + 1 < to && (record[position + 1] == '\\' || record[position + 1] == '|')) {
+                scratch[length++] = record[position + 1];
+                position += 2;
+            } else {
+                scratch[length++] = b;
+                position++;
+            }
+        }
+        return position;
+    }
+
+    //A complex header starts with "date host version". The version is the last space separated token, the host the one before it
+    private void splitSyslogPrefix() {
+        Arrays.fill(syslogPrefix, -1);
+        final int start = header[0];
+        final int end = header[1];
+        final int versionSpace = lastIndexOf(' ', start, end);
+        if (versionSpace < 0) {
+            return;
+        }
+        header[0] = versionSpace + 1;
+        final int hostSpace = lastIndexOf(' ', start, versionSpace);
+        syslogPrefix[2] = hostSpace < 0 ? start : hostSpace + 1;
+        syslogPrefix[3] = versionSpace;
+        if (hostSpace >= 0) {
+            syslogPrefix[0] = start;
+            syslogPrefix[1] = hostSpace;
+        }
+    }
+
+    private int lastIndexOf(final char c, final int from, final int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if (scratch[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    //Values run until the space in front of the next key, so the extension is unescaped in one pass and every unescaped "=" closes
+    //the previous value at the last space seen and starts a new key right after it. An unescaped "=" without a key in front of it, as
+    //some devices write in URLs, is kept as part of the value
+    private void parseExtensions(final byte[] record, final int from, final int to) {
+        int position = from;
+        while (position < to && record[position] == ' ') {
+            position++;
+        }
+        if (position == to) {
+            return;
+        }
+
+        final int start = length;
+        int lastSpace = -1;
+        int keyStart = start;
+        while (position < to) {
+            final byte b = record[position];
+            if (b == '\\' && position + 1 < to) {
+                final byte next = record[position + 1];
+                final byte unescaped = next == 'n' ? (byte) '\n' : next == 'r' ? (byte) '\r' : next == '\\' || next == '=' ? next : 0;
+                if (unescaped != 0) {
+                    scratch[length++] = unescaped;
+                    position += 2;
+                    continue;
+                }
+            }
+            if (b == '=' && extensionCount == 0) {
+                if (lastSpace >= 0 || keyStart == length) {
+                    throw new IllegalArgumentException("CEF extension does not start with a key");
+                }
+                addKey(keyStart, length);
+                position++;
+                continue;
+            }
+            if (b == '=' && lastSpace >= 0 && lastSpace + 1 < length) {
+                closeValue(lastSpace);
+                keyStart = lastSpace + 1;
+                addKey(keyStart, length);
+                lastSpace = -1;
+                position++;
+                continue;
+            }
+            if (b == ' ') {
+                lastSpace = length;
+            }
+            scratch[length++] = b;
+            position++;
+        }
+        if (extensionCount == 0) {
+            throw new IllegalArgumentException("CEF extension does not contain any key=value pair");
+        }
+        closeValue(length);
+    }
+
+    private void addKey(final int keyStart, final int keyEnd) {
+        if (extensions.length < (extensionCount + 1) * 4) {
+            extensions = Arrays.copyOf(extensions, extensions.length * 2);
+        }
+        final int index = extensionCount * 4;
+        extensions[index] = keyStart;
+        extensions[index + 1] = keyEnd;
+        extensions[index + 2] = length;
+        extensionCount++;
+    }
+
+    //Ends the value of the last key, dropping trailing spaces
+    private void closeValue(final int end) {
+        final int index = (extensionCount - 1) * 4;
+        int valueEnd = end;
+        while (valueEnd > extensions[index + 2] && scratch[valueEnd - 1] == ' ') {
+            valueEnd--;
+        }
+        extensions[index + 3] = valueEnd;
+    }
+
+    private String string(final int start, final int end) {
+        return new String(scratch, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    //The header field at the given index in record order, 0 being the version
+    public String header(final int index) {
+        return string(header[index * 2], header[index * 2 + 1]);
+    }
+
+    //The event date of a complex header, or null
+    public String eventDate() {
+        return syslogPrefix[0] < 0 ? null : string(syslogPrefix[0], syslogPrefix[1]);
+    }
+
+    //The event host of a complex header, or null
+    public String eventHost() {
+        return syslogPrefix[2] < 0 ? null : string(syslogPrefix[2], syslogPrefix[3]);
+    }
+
+    public int extensionCount() {
+        return extensionCount;
+    }
+
+    public String extensionKey(final int index) {
+        return string(extensions[index * 4], extensions[index * 4 + 1]);
+    }
+
+    public String extensionValue(final int index) {
+        return string(extensions[index * 4 + 2], extensions[index * 4 + 3]);
+    }
+
+    //All extension fields in record order. A repeated key keeps its last value
+    public Map<String, String> extensions() {
+        final Map<String, String> values = new LinkedHashMap<>();
+        for (int i = 0; i < extensionCount; i++) {
+            values.put(extensionKey(i), extensionValue(i));
+        }
+        return values;
+    }
+}
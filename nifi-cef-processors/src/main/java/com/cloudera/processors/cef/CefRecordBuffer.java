@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+//A growable byte buffer that records are rendered into, reset and reused from one record to the next so that it only grows until it
+//fits the largest record. Text is encoded to UTF-8 straight into the buffer with an encoder of its own, never through a String or a
+//byte array of its own. Like String.getBytes, malformed characters are replaced with '?'. Not thread safe, every thread has its own
+final class CefRecordBuffer extends OutputStream {
+
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final int maxBytesPerChar = (int) Math.ceil(encoder.maxBytesPerChar());
+    private byte[] bytes;
+    private int size;
+    private ByteBuffer byteView;
+    private char[] chars = new char[64];
+    private CharBuffer charView = CharBuffer.wrap(chars);
+
+    CefRecordBuffer(final int capacity) {
+        this.bytes = new byte[capacity];
+    }
+
+    @Override
+    public void write(final int b) {
+        ensureCapacity(size + 1);
+        bytes[size++] = (byte) b;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) {
+        ensureCapacity(size + len);
+        System.arraycopy(b, off, bytes, size, len);
+        size += len;
+    }
+
+    //Encodes the whole value
+    void writeUtf8(final String value) {
+        writeUtf8(value, 0, value.length());
+    }
+
+    //Encodes a range of the value. ASCII is copied as it is, anything else is handed to the encoder
+    void writeUtf8(final String value, final int from, final int to) {
+        ensureCapacity(size + (to - from) * maxBytesPerChar);
+        int i = from;
+        while (i < to && value.charAt(i) < 128) {
+            bytes[size++] = (byte) value.charAt(i++);
+        }
+        if (i == to) {
+            return;
+        }
+        final int length = to - i;
+        if (chars.length < length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+            charView = CharBuffer.wrap(chars);
+        }
+        value.getChars(i, to, chars, 0);
+        charView.clear();
+        charView.limit(length);
+        if (byteView == null) {
+            byteView = ByteBuffer.wrap(bytes);
+        }
+        byteView.clear();
+        byteView.position(size);
+        encoder.reset();
+        encoder.encode(charView, byteView, true);
+        encoder.flush(byteView);
+        size = byteView.position();
+    }
+
+    //Writes the buffered bytes with a single call
+    void writeTo(final OutputStream out) throws IOException {
+        out.write(bytes, 0, size);
+    }
+
+    //The backing array, valid up to size() until the next write
+    byte[] array() {
+        return bytes;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void reset() {
+        size = 0;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(bytes, size);
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (capacity > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+            byteView = null;
+        }
+    }
+}
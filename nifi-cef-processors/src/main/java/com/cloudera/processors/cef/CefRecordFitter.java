@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+//Fits records into a maximum size, as syslog transports and connectors cut longer messages wherever the limit happens to fall. The
+//length of every part is known from the rendered header and extension bytes, so the record is measured exactly without assembling it.
+//The msg gives way first: it gets whatever the other fields leave. Only if the record does not fit even with an empty msg are low
+//priority extension fields dropped, in the order they are listed
+final class CefRecordFitter {
+
+    private static final int MSG_KEY_LENGTH = "msg=".length();
+
+    private final long maxRecordSize;
+    private final boolean truncateMsg;
+    private final List<String> droppableKeys;
+
+    CefRecordFitter(final long maxRecordSize, final boolean truncateMsg, final List<String> droppableKeys) {
+        this.maxRecordSize = maxRecordSize;
+        this.truncateMsg = truncateMsg;
+        this.droppableKeys = droppableKeys;
+    }
+
+    //Parses the comma separated keys, lowest priority first
+    static List<String> parseKeys(final String value) {
+        final List<String> keys = new ArrayList<>();
+        if (value != null) {
+            for (final String key : value.split(",")) {
+                if (!key.isBlank() && !keys.contains(key.strip())) {
+                    keys.add(key.strip());
+                }
+            }
+        }
+        return keys;
+    }
+
+    //Whether a msg longer than its budget is truncated rather than failing the record
+    boolean truncatesMsg() {
+        return truncateMsg;
+    }
+
+    //The extension fields to write and the number of bytes left for the escaped msg value. The fields are either the rendered ones or
+    //a fitted copy, which is kept and reused for the next record
+    static final class Fit {
+        byte[] extensions;
+        int extensionsLength;
+        long msgBudget;
+        private final CefRecordBuffer fitted = new CefRecordBuffer(256);
+
+        //The fields as they were rendered, for records without a maximum size
+        void unlimited(final CefRecordBuffer rendered) {
+            set(rendered, Long.MAX_VALUE);
+        }
+
+        private void set(final CefRecordBuffer fields, final long msgBudget) {
+            this.extensions = fields.array();
+            this.extensionsLength = fields.size();
+            this.msgBudget = msgBudget;
+        }
+    }
+
+    //With a streamed msg, the content is written as msg in front of the extension fields and the budget limits it while it is streamed.
+    //Otherwise a msg extension field is truncated here, on an escape boundary if the format escapes values. The fields are separated by the
+    //delimiter of their format
+    void fit(final int headerLength, final CefRecordBuffer rendered, final CefExtensionPlan.Fields fields, final boolean streamedMsg, final CefFormat format,
+             final Fit fit) throws RecordTooLargeException {
+        final byte[] extensions = rendered.array();
+        int msgField = -1;
+        if (!streamedMsg) {
+            for (int i = 0; i < fields.count() && msgField < 0; i++) {
+                msgField = "msg".equals(fields.key(i)) ? i : -1;
+            }
+        }
+        final long msgLength = msgField < 0 ? 0 : fields.end(msgField) - fields.start(msgField) - MSG_KEY_LENGTH;
+
+        int kept = fields.count();
+        long keptBytes = 0;
+        for (int i = 0; i < fields.count(); i++) {
+            keptBytes += fields.end(i) - fields.start(i);
+        }
+        boolean[] dropped = null;
+        long fixed = fixedLength(headerLength, kept, keptBytes, msgLength, streamedMsg);
+        for (int k = 0; k < droppableKeys.size() && fixed > maxRecordSize; k++) {
+            for (int i = 0; i < fields.count(); i++) {
+                if (i != msgField && droppableKeys.get(k).equals(fields.key(i)) && (dropped == null || !dropped[i])) {
+                    if (dropped == null) {
+                        dropped = new boolean[fields.count()];
+                    }
+                    dropped[i] = true;
+                    kept--;
+                    keptBytes -= fields.end(i) - fields.start(i);
+                    fixed = fixedLength(headerLength, kept, keptBytes, msgLength, streamedMsg);
+                    break;
+                }
+            }
+        }
+        if (fixed > maxRecordSize) {
+            throw new RecordTooLargeException("The header and extension fields take " + fixed + " bytes, more than the maximum record size of "
+                    + maxRecordSize + " bytes");
+        }
+
+        final long msgBudget = maxRecordSize - fixed;
+        int msgEnd = msgField < 0 ? 0 : fields.end(msgField);
+        if (msgLength > msgBudget) {
+            if (!truncateMsg) {
+                throw new RecordTooLargeException("The record exceeds the maximum record size of " + maxRecordSize + " bytes");
+            }
+            final int valueStart = fields.start(msgField) + MSG_KEY_LENGTH;
+            msgEnd = CefEscaper.truncationPoint(format.valueMode(), extensions, valueStart, msgEnd, msgBudget);
+        }
+        if (dropped == null && (msgField < 0 || msgEnd == fields.end(msgField))) {
+            fit.set(rendered, msgBudget);
+            return;
+        }
+
+        //A single copy of the kept fields, joined like they were written
+        final CefRecordBuffer fitted = fit.fitted;
+        fitted.reset();
+        for (int i = 0; i < fields.count(); i++) {
+            if (dropped != null && dropped[i]) {
+                continue;
+            }
+            if (fitted.size() > 0) {
+                fitted.write(format.delimiter());
+            }
+            final int end = i == msgField ? msgEnd : fields.end(i);
+            fitted.write(extensions, fields.start(i), end - fields.start(i));
+        }
+        fit.set(fitted, msgBudget);
+    }
+
+    //Everything but the msg value: the header, the msg key of a streamed msg and the extension fields with their separators
+    private static long fixedLength(final int headerLength, final int kept, final long keptBytes, final long msgLength, final boolean streamedMsg) {
+        final long extensionLength = kept == 0 ? 0 : keptBytes + kept - 1;
+        if (streamedMsg) {
+            return headerLength + MSG_KEY_LENGTH + (kept == 0 ? 0 : 1 + extensionLength);
+        }
+        return headerLength + extensionLength - msgLength;
+    }
+
+    //Tells a record that does not fit into the maximum record size apart from a failed write
+    static final class RecordTooLargeException extends IOException {
+        RecordTooLargeException(final String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import java.util.Arrays;
+
+//The header and extension fields of a flowfile rendered in one format, how they were fitted into the maximum record size and the record
+//they are assembled into. Every thread keeps its renderings and resets them for the next flowfile, so the buffers only grow until they
+//fit the largest record and a record costs no allocation of its own. The byte ranges of the extension fields are only tracked when a
+//caller needs them
+final class CefRendering {
+
+    final CefFormat format;
+    final CefTemplate template;
+    final CefRecordBuffer header = new CefRecordBuffer(256);
+    final CefRecordBuffer extensions = new CefRecordBuffer(256);
+    final CefRecordBuffer record = new CefRecordBuffer(1024);
+    final CefExtensionPlan.Fields fields;
+    final CefRecordFitter.Fit fit = new CefRecordFitter.Fit();
+    final CefEscaper.StreamBuffers streamBuffers = new CefEscaper.StreamBuffers();
+    //The evaluated header values, shared by all renderings of a flowfile through the first one
+    final String[] values = CefTemplate.newValues();
+    //The event time the fields were rendered with, resolved once per flowfile
+    long eventTime;
+    //Where the extension field being written starts
+    int fieldStart;
+
+    CefRendering(final CefFormat format, final CefTemplate template, final boolean trackFields) {
+        this.format = format;
+        this.template = template;
+        this.fields = trackFields ? new CefExtensionPlan.Fields() : null;
+    }
+
+    void reset() {
+        header.reset();
+        extensions.reset();
+        record.reset();
+        if (fields != null) {
+            fields.reset();
+        }
+        Arrays.fill(values, null);
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.PropertyValue;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.ProcessContext;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+//The header of a record format compiled once when the processor is scheduled. Properties without expression language are escaped and
+//encoded up front and merged with the surrounding delimiters, so only the expression language fields are evaluated per flowfile.
+//The headers of several formats share the evaluated values of a flowfile, so every property is evaluated once whatever the formats
+final class CefTemplate {
+
+    //The header properties, by the index of their evaluated value
+    private static final PropertyDescriptor[] PROPERTIES = {CefWriter.EVENT_DATE, CefWriter.EVENT_HOST, CefWriter.SYSLOG_PREFIX, CefWriter.DEVICE_VENDOR,
+            CefWriter.DEVICE_PRODUCT, CefWriter.DEVICE_VERSION, CefWriter.DEVICE_CLASS_ID, CefWriter.EVENT_NAME, CefWriter.EVENT_SEVERITY};
+    //The names of the header fields, by the same index, as failures name them
+    private static final String[] FIELD_NAMES = {CefParser.EVENT_DATE, CefParser.EVENT_HOST, CefParser.VERSION, CefParser.DEVICE_VENDOR,
+            CefParser.DEVICE_PRODUCT, CefParser.DEVICE_VERSION, CefParser.DEVICE_EVENT_CLASS_ID, CefParser.NAME, CefParser.SEVERITY};
+
+    private final Segment[] header;
+
+    private CefTemplate(final Segment[] header) {
+        this.header = header;
+    }
+
+    static CefTemplate compile(final ProcessContext context, final CefTimestamps timestamps, final CefFormat format) {
+        final Builder builder = new Builder(context, format.headerMode());
+        if (CefWriter.USE_COMPLEX_HEADER.equals(context.getProperty(CefWriter.COMPLEX_HEADER).getValue())) {
+            if (timestamps.formatsHeaderDate()) {
+                builder.segment(new TimestampSegment(timestamps)).literal(" ");
+            } else {
+                builder.field(CefWriter.EVENT_DATE).literal(" ");
+            }
+            builder.field(CefWriter.EVENT_HOST).literal(" ");
+        }
+        if (format.isLeef()) {
+            builder.literal(format.leefVersion()).literal("|");
+        } else {
+            builder.field(CefWriter.SYSLOG_PREFIX).literal("|");
+        }
+        builder.field(CefWriter.DEVICE_VENDOR).literal("|");
+        builder.field(CefWriter.DEVICE_PRODUCT).literal("|");
+        builder.field(CefWriter.DEVICE_VERSION).literal("|");
+        builder.field(CefWriter.DEVICE_CLASS_ID).literal("|");
+        if (format.isLeef()) {
+            if (format.delimiterField() != null) {
+                builder.literal(format.delimiterField()).literal("|");
+            }
+            //The severity is an attribute, and the attributes that follow are appended after a delimiter
+            builder.literal("sev=").field(CefWriter.EVENT_SEVERITY, format.valueMode()).literal(String.valueOf((char) format.delimiter()));
+        } else {
+            builder.field(CefWriter.EVENT_NAME).literal("|");
+            builder.field(CefWriter.EVENT_SEVERITY).literal("|");
+        }
+        return new CefTemplate(builder.build());
+    }
+
+    //Room for the values of a flowfile, shared by the headers of all formats it is rendered in
+    static String[] newValues() {
+        return new String[PROPERTIES.length];
+    }
+
+    //The index of the value of a header property
+    static int valueIndex(final PropertyDescriptor descriptor) {
+        return Arrays.asList(PROPERTIES).indexOf(descriptor);
+    }
+
+    //Writes the escaped header, including the trailing delimiter in front of the extension field. Expression language values already
+    //evaluated for another format are taken from the values. Returns the number of characters escaped while writing, which excludes
+    //the values escaped up front. Values are escaped and encoded straight into the buffer
+    int writeHeader(final FlowFile flowFile, final long eventTime, final String[] values, final CefRecordBuffer out, final CefWriterMetrics.Batch batch) {
+        int escaped = 0;
+        for (final Segment segment : header) {
+            escaped += segment.write(flowFile, eventTime, values, out, batch);
+        }
+        return escaped;
+    }
+
+    private interface Segment {
+        int write(FlowFile flowFile, long eventTime, String[] values, CefRecordBuffer out, CefWriterMetrics.Batch batch);
+    }
+
+    private static final class StaticSegment implements Segment {
+        private final byte[] bytes;
+
+        private StaticSegment(final byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int write(final FlowFile flowFile, final long eventTime, final String[] values, final CefRecordBuffer out,
+                       final CefWriterMetrics.Batch batch) {
+            out.write(bytes, 0, bytes.length);
+            return 0;
+        }
+    }
+
+    //The formatted event time. None of the formats contains characters that need escaping in the header
+    private static final class TimestampSegment implements Segment {
+        private final CefTimestamps timestamps;
+
+        private TimestampSegment(final CefTimestamps timestamps) {
+            this.timestamps = timestamps;
+        }
+
+        @Override
+        public int write(final FlowFile flowFile, final long eventTime, final String[] values, final CefRecordBuffer out,
+                       final CefWriterMetrics.Batch batch) {
+            out.writeUtf8(timestamps.formatHeaderDate(eventTime));
+            return 0;
+        }
+    }
+
+    //A field that uses expression language, or that a lookup may set. With a cache, the escaped bytes of the values seen before are written
+    //without evaluating the expression again
+    private static final class ExpressionSegment implements Segment {
+        private final PropertyDescriptor descriptor;
+        private final PropertyValue value;
+        private final int index;
+        private final CefEscaper.Mode mode;
+        private final CefHeaderCache cache;
+
+        private ExpressionSegment(final PropertyDescriptor descriptor, final PropertyValue value, final CefEscaper.Mode mode, final CefHeaderCache cache) {
+            this.descriptor = descriptor;
+            this.value = value;
+            this.index = valueIndex(descriptor);
+            this.mode = mode;
+            this.cache = cache;
+        }
+
+        @Override
+        public int write(final FlowFile flowFile, final long eventTime, final String[] values, final CefRecordBuffer out,
+                       final CefWriterMetrics.Batch batch) {
+            final Object key = cache == null ? null : cache.key(flowFile);
+            if (cache != null) {
+                final CefHeaderCache.Field field = cache.get(key);
+                if (field != null) {
+                    batch.headerCacheHit();
+                    out.write(field.bytes, 0, field.bytes.length);
+                    if (values[index] == null) {
+                        values[index] = field.value;
+                    }
+                    return field.escaped;
+                }
+                batch.headerCacheMiss();
+            }
+
+            String evaluated = values[index];
+            if (evaluated == null) {
+                try {
+                    evaluated = value.evaluateAttributeExpressions(flowFile).getValue();
+                } catch (final RuntimeException e) {
+                    throw new CefFieldException(FIELD_NAMES[index], "Failed to evaluate " + descriptor.getDisplayName() + ": " + e.getMessage(), e);
+                }
+                if (evaluated == null) {
+                    throw new CefFieldException(FIELD_NAMES[index], "No value for " + descriptor.getDisplayName());
+                }
+                values[index] = evaluated;
+            }
+            final int start = out.size();
+            final int escaped = CefEscaper.escape(mode, evaluated, out);
+            if (cache != null) {
+                cache.put(key, new CefHeaderCache.Field(evaluated, Arrays.copyOfRange(out.array(), start, out.size()), escaped));
+            }
+            return escaped;
+        }
+    }
+
+    private static final class Builder {
+        private final ProcessContext context;
+        private final CefEscaper.Mode mode;
+        private final int cacheSize;
+        private final boolean enriched;
+        private final List<Segment> segments = new ArrayList<>();
+        private final StringBuilder pending = new StringBuilder();
+
+        private Builder(final ProcessContext context, final CefEscaper.Mode mode) {
+            this.context = context;
+            this.mode = mode;
+            final PropertyValue cacheSize = context.getProperty(CefWriter.HEADER_CACHE_SIZE);
+            this.cacheSize = cacheSize.isSet() ? cacheSize.asInteger() : 0;
+            this.enriched = context.getProperty(CefWriter.LOOKUP_SERVICE).isSet();
+        }
+
+        private Builder field(final PropertyDescriptor descriptor) {
+            return field(descriptor, mode);
+        }
+
+        private Builder field(final PropertyDescriptor descriptor, final CefEscaper.Mode mode) {
+            final PropertyValue value = context.getProperty(descriptor);
+            //Fields a lookup sets are neither escaped up front nor cached, their properties only supply the value the lookup did not
+            if (enriched && CefLookupEnricher.ENRICHED_FIELDS.contains(descriptor)) {
+                flushLiteral();
+                segments.add(new ExpressionSegment(descriptor, value, mode, null));
+            } else if (value.isExpressionLanguagePresent()) {
+                flushLiteral();
+                segments.add(new ExpressionSegment(descriptor, value, mode, cacheSize > 0 ? CefHeaderCache.of(context.getProperties().get(descriptor), cacheSize) : null));
+            } else {
+                final String literal = value.getValue();
+                pending.append(CefEscaper.escape(mode, literal == null ? "" : literal));
+            }
+            return this;
+        }
+
+        private Builder segment(final Segment segment) {
+            flushLiteral();
+            segments.add(segment);
+            return this;
+        }
+
+        private Builder literal(final String text) {
+            pending.append(text);
+            return this;
+        }
+
+        private void flushLiteral() {
+            if (pending.length() > 0) {
+                segments.add(new StaticSegment(pending.toString().getBytes(StandardCharsets.UTF_8)));
+                pending.setLength(0);
+            }
+        }
+
+        private Segment[] build() {
+            flushLiteral();
+            return segments.toArray(new Segment[0]);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.ProcessContext;
+
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.TemporalAccessor;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+//Native event timestamps for the complex header date and the time extension fields. The event time is resolved once per flowfile,
+//from an attribute or the time of conversion, and formatted without expression language. Formatting works per second: the text of
+//a second is built once for the configured zone and reused, only the milliseconds are appended per event
+final class CefTimestamps {
+
+    //A single time extension field, written from the event time or from an attribute of its own
+    static final class Field {
+        final String key;
+        final String attribute;
+
+        private Field(final String key, final String attribute) {
+            this.key = key;
+            this.attribute = attribute;
+        }
+    }
+
+    private final String eventTimeAttribute;
+    private final boolean isoInput;
+    private final ZoneId zone;
+    private final Formatter headerFormatter;
+    private final Formatter fieldFormatter;
+    private final List<Field> fields;
+    private final boolean usesEventTime;
+
+    private CefTimestamps(final String eventTimeAttribute, final boolean isoInput, final ZoneId zone, final Formatter headerFormatter,
+                          final Formatter fieldFormatter, final List<Field> fields, final boolean aggregates) {
+        this.eventTimeAttribute = eventTimeAttribute;
+        this.isoInput = isoInput;
+        this.zone = zone;
+        this.headerFormatter = headerFormatter;
+        this.fieldFormatter = fieldFormatter;
+        this.fields = fields;
+        //Aggregated records carry the first and last event time of their duplicates
+        this.usesEventTime = aggregates || headerFormatter != null || fields.stream().anyMatch(field -> field.attribute == null);
+    }
+
+    static CefTimestamps compile(final ProcessContext context, final boolean aggregates) {
+        final ZoneId zone = ZoneId.of(context.getProperty(CefWriter.TIME_ZONE).getValue());
+        final String headerFormat = context.getProperty(CefWriter.HEADER_DATE_FORMAT).getValue();
+        final List<Field> fields = parseFields(context.getProperty(CefWriter.TIMESTAMP_FIELDS).getValue());
+        return new CefTimestamps(
+                context.getProperty(CefWriter.EVENT_TIME_ATTRIBUTE).getValue(),
+                CefWriter.ISO_8601.equals(context.getProperty(CefWriter.EVENT_TIME_FORMAT).getValue()),
+                zone,
+                CefWriter.DATE_FROM_PROPERTY.equals(headerFormat) ? null : Formatter.of(headerFormat, zone),
+                fields.isEmpty() ? null : Formatter.of(context.getProperty(CefWriter.TIMESTAMP_FIELD_FORMAT).getValue(), zone),
+                fields,
+                aggregates);
+    }
+
+    //Parses "rt,start=session.start,end=session.end". A key on its own is written from the event time
+    static List<Field> parseFields(final String value) {
+        final Map<String, Field> fields = new LinkedHashMap<>();
+        if (value != null) {
+            for (final String field : value.split(",")) {
+                if (field.isBlank()) {
+                    continue;
+                }
+                final int separator = field.indexOf('=');
+                final String key = (separator < 0 ? field : field.substring(0, separator)).strip();
+                final String attribute = separator < 0 ? null : field.substring(separator + 1).strip();
+                if (key.isEmpty() || (attribute != null && attribute.isEmpty())
+                        || CefEscaper.indexOfEscape(CefEscaper.Mode.EXTENSION, key, 0, key.length()) >= 0 || key.chars().anyMatch(Character::isWhitespace)) {
+                    throw new IllegalArgumentException("'" + field.strip() + "' is not a valid timestamp field, expected 'key' or 'key=attribute'");
+                }
+                if (fields.put(key, new Field(key, attribute)) != null) {
+                    throw new IllegalArgumentException("Timestamp field '" + key + "' is listed more than once");
+                }
+            }
+        }
+        return new ArrayList<>(fields.values());
+    }
+
+    List<Field> fields() {
+        return fields;
+    }
+
+    boolean formatsHeaderDate() {
+        return headerFormatter != null;
+    }
+
+    //The event time of the flowfile in epoch milliseconds. The attribute is only read if the event time is written at all
+    long eventTime(final FlowFile flowFile) {
+        if (!usesEventTime) {
+            return 0;
+        }
+        return eventTimeAttribute == null ? System.currentTimeMillis() : parse(flowFile, eventTimeAttribute);
+    }
+
+    String formatHeaderDate(final long eventTime) {
+        return headerFormatter.format(eventTime);
+    }
+
+    String formatField(final Field field, final FlowFile flowFile, final long eventTime) {
+        return fieldFormatter.format(field.attribute == null ? eventTime : parse(flowFile, field.attribute));
+    }
+
+    private long parse(final FlowFile flowFile, final String attribute) {
+        final String value = flowFile.getAttribute(attribute);
+        if (value == null || value.isBlank()) {
+            throw new CefFieldException(attribute, "Flowfile has no time in attribute '" + attribute + "'");
+        }
+        try {
+            return isoInput ? parseIso(value.strip()) : Long.parseLong(value.strip());
+        } catch (final NumberFormatException | DateTimeException e) {
+            throw new CefFieldException(attribute, "Attribute '" + attribute + "' holds '" + value + "', which is not a valid "
+                    + (isoInput ? "ISO-8601 time" : "epoch millisecond time"), e);
+        }
+    }
+
+    //Times without an offset are local times of the configured zone
+    private long parseIso(final String value) {
+        final TemporalAccessor parsed = DateTimeFormatter.ISO_DATE_TIME.parseBest(value, ZonedDateTime::from, LocalDateTime::from);
+        if (parsed instanceof ZonedDateTime) {
+            return ((ZonedDateTime) parsed).toInstant().toEpochMilli();
+        }
+        return ((LocalDateTime) parsed).atZone(zone).toInstant().toEpochMilli();
+    }
+
+    //Formats epoch milliseconds. The text of each second is cached in a small direct mapped table, so events arriving slightly out of
+    //order still hit the cache. Entries are immutable, a racing thread at worst formats the same second again
+    abstract static class Formatter {
+
+        static Formatter of(final String format, final ZoneId zone) {
+            switch (format) {
+                case CefWriter.EPOCH_MILLIS:
+                    return new Formatter() {
+                        @Override
+                        String format(final long millis) {
+                            return Long.toString(millis);
+                        }
+                    };
+                case CefWriter.SYSLOG_TIMESTAMP:
+                    return new SecondFormatter(DateTimeFormatter.ofPattern("MMM dd HH:mm:ss", Locale.US).withZone(zone), null, false);
+                case CefWriter.CEF_TIMESTAMP:
+                    return new SecondFormatter(DateTimeFormatter.ofPattern("MMM dd yyyy HH:mm:ss", Locale.US).withZone(zone),
+                            DateTimeFormatter.ofPattern(" zzz", Locale.US).withZone(zone), true);
+                default:
+                    throw new IllegalArgumentException("Unknown timestamp format " + format);
+            }
+        }
+
+        abstract String format(long millis);
+    }
+
+    private static final class SecondFormatter extends Formatter {
+        private static final int CACHE_SIZE = 64;
+
+        private final DateTimeFormatter prefix;
+        private final DateTimeFormatter suffix;
+        private final boolean millis;
+        private final Second[] cache = new Second[CACHE_SIZE];
+
+        private SecondFormatter(final DateTimeFormatter prefix, final DateTimeFormatter suffix, final boolean millis) {
+            this.prefix = prefix;
+            this.suffix = suffix;
+            this.millis = millis;
+        }
+
+        @Override
+        String format(final long epochMillis) {
+            final long epochSecond = Math.floorDiv(epochMillis, 1000);
+            final int index = (int) (epochSecond & (CACHE_SIZE - 1));
+            Second second = cache[index];
+            if (second == null || second.epochSecond != epochSecond) {
+                final Instant instant = Instant.ofEpochSecond(epochSecond);
+                second = new Second(epochSecond, prefix.format(instant), suffix == null ? "" : suffix.format(instant));
+                cache[index] = second;
+            }
+            if (!millis) {
+                return second.prefix;
+            }
+            final int milli = (int) Math.floorMod(epochMillis, 1000);
+            final StringBuilder sb = new StringBuilder(second.prefix.length() + 4 + second.suffix.length());
+            sb.append(second.prefix).append('.');
+            if (milli < 100) {
+                sb.append('0');
+            }
+            if (milli < 10) {
+                sb.append('0');
+            }
+            return sb.append(milli).append(second.suffix).toString();
+        }
+    }
+
+    private static final class Second {
+        private final long epochSecond;
+        private final String prefix;
+        private final String suffix;
+
+        private Second(final long epochSecond, final String prefix, final String suffix) {
+            this.epochSecond = epochSecond;
+            this.prefix = prefix;
+            this.suffix = suffix;
+        }
+    }
+}
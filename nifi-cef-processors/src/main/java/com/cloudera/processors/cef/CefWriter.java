@@ -17,33 +17,54 @@
 package com.cloudera.processors.cef;
 
 import org.apache.nifi.annotation.behavior.*;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.context.PropertyContext;
 import org.apache.nifi.expression.AttributeExpression;
 import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.lookup.LookupFailureException;
+import org.apache.nifi.lookup.LookupService;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.processor.AbstractProcessor;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.ProcessorInitializationContext;
 import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.io.InputStreamCallback;
 import org.apache.nifi.processor.io.OutputStreamCallback;
+import org.apache.nifi.processor.io.StreamCallback;
 import org.apache.nifi.processor.util.StandardValidators;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.ZoneId;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicLong;
 
 @EventDriven
+@SupportsBatching
 @InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
 @Tags({"cef", "SIEM", "modification", "update", "Attribute Expression Language", "Arcsight"})
 @CapabilityDescription("Builds and outputs a CEF record using configured flowfile attributes or hard-coded values for use by Arcsight and other SIEM applications that utilize the CEF format")
 @DynamicProperty(name = "A FlowFile attribute used in the CEF Extension field", value = "The value to set it to", expressionLanguageScope = ExpressionLanguageScope.FLOWFILE_ATTRIBUTES,
         description = "Dynamic Property names and values are used as the key/value of additional CEF fields stored in the CEF Extension field. These names must conform to the CEF schema or user-defined additional custom field names implemented in downstream applications")
 @WritesAttribute(attribute = "See additional details", description = "This processor may write or remove zero or more attributes as described in additional details")
+@SeeAlso(AggregateCef.class)
 public class CefWriter extends AbstractProcessor {
 
     //Restricted values for dropdown selection of whether complex header will be used
@@ -51,6 +72,35 @@ public class CefWriter extends AbstractProcessor {
     public static final String USE_COMPLEX_HEADER = "Use complex header";
     public static final String USE_CONTENT_AS_MSG = "Use flowfile content";
     public static final String DO_NOT_USE_CONTENT_AS_MSG = "Do not use flowfile content";
+    public static final String TRUNCATE_MSG = "Truncate msg";
+    public static final String ROUTE_TO_FAILURE = "Route to failure";
+    public static final String ONE_RECORD_PER_FLOWFILE = "One record per flowfile";
+    public static final String BUNDLE_RECORDS = "Bundle records";
+    public static final String SPLIT_LINES = "One record per line";
+    //The output mode of AggregateCef, which is triggered on an empty queue to write the aggregates whose window has closed
+    public static final String AGGREGATE_RECORDS = "Aggregate duplicate records";
+    public static final String NO_LEEF_OUTPUT = "No LEEF output";
+    public static final String LEEF_1_0 = "LEEF 1.0";
+    public static final String LEEF_2_0 = "LEEF 2.0";
+    public static final String TRUNCATE_AND_DROP_FIELDS = "Truncate msg, then drop low priority fields";
+    public static final String NEWLINE_FRAMING = "Newline delimited";
+    public static final String OCTET_COUNTING_FRAMING = "Octet counting";
+    public static final String NO_KEY_VALIDATION = "Do not validate keys";
+    public static final String VALIDATE_KEYS = "Validate keys";
+    public static final String VALIDATE_KEYS_AND_VALUES = "Validate keys and values";
+    public static final String DATE_FROM_PROPERTY = "Event DateTime property";
+    public static final String EPOCH_MILLIS = "Epoch milliseconds";
+    public static final String ISO_8601 = "ISO-8601";
+    public static final String SYSLOG_TIMESTAMP = "MMM dd HH:mm:ss";
+    public static final String CEF_TIMESTAMP = "MMM dd yyyy HH:mm:ss.SSS zzz";
+
+    private static final byte[] MSG_KEY = "msg=".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NO_PREFIX = new byte[0];
+
+    //Attributes of flowfiles routed to failure: the reason, the field that could not be written if it is known, and the error message
+    public static final String ERROR_ATTRIBUTE = "cef.error";
+    public static final String ERROR_FIELD_ATTRIBUTE = "cef.error.field";
+    public static final String ERROR_MESSAGE_ATTRIBUTE = "cef.error.message";
 
     //Complex header selection property
     public static final PropertyDescriptor COMPLEX_HEADER = new PropertyDescriptor.Builder()
@@ -75,6 +125,59 @@ public class CefWriter extends AbstractProcessor {
             .defaultValue(DO_NOT_USE_CONTENT_AS_MSG)
             .build();
 
+    //Upper bound for the escaped msg value when the flowfile content is used as msg
+    public static final PropertyDescriptor MAX_MSG_SIZE = new PropertyDescriptor.Builder()
+            .name("MAX_MSG_SIZE")
+            .displayName("Max msg size")
+            .description("The maximum size of the escaped 'msg' value when the flowfile content is used as msg. The content is streamed into the record, "+
+                    "so memory usage does not depend on the content size, but very large records may not be supported downstream. If not set, the msg is not limited.")
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MSG_SIZE_EXCEEDED_STRATEGY = new PropertyDescriptor.Builder()
+            .name("MSG_SIZE_EXCEEDED_STRATEGY")
+            .displayName("msg size exceeded strategy")
+            .description("What to do when the flowfile content does not fit into 'Max msg size'. The msg can either be truncated, "+
+                    "never in the middle of an escaped character, or the flowfile can be routed to failure.")
+            .required(true)
+            .allowableValues(TRUNCATE_MSG, ROUTE_TO_FAILURE)
+            .defaultValue(TRUNCATE_MSG)
+            .build();
+
+    //Upper bound for the whole record, as syslog transports and connectors cut longer messages at an arbitrary byte
+    public static final PropertyDescriptor MAX_RECORD_SIZE = new PropertyDescriptor.Builder()
+            .name("MAX_RECORD_SIZE")
+            .displayName("Max Record Size")
+            .description("The maximum size of a CEF record in bytes, header and extension fields included, but without the framing of bundled "+
+                    "or split records. Set it to the message size limit of the syslog route, for example 1 KB, 8 KB or 64 KB. If not set, records are not limited.")
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor RECORD_SIZE_EXCEEDED_STRATEGY = new PropertyDescriptor.Builder()
+            .name("RECORD_SIZE_EXCEEDED_STRATEGY")
+            .displayName("Record Size Exceeded Strategy")
+            .description("What to do when a record does not fit into 'Max Record Size'. The msg can be truncated, never in the middle of an "+
+                    "escaped character, and if the record does not fit even with an empty msg, the 'Low Priority Extension Keys' can be dropped. "+
+                    "Records that still do not fit are routed to failure. When the record size leaves less room for the msg than 'Max msg size', "+
+                    "this strategy rather than 'msg size exceeded strategy' decides what happens to an oversize msg.")
+            .required(true)
+            .allowableValues(TRUNCATE_MSG, TRUNCATE_AND_DROP_FIELDS, ROUTE_TO_FAILURE)
+            .defaultValue(TRUNCATE_MSG)
+            .dependsOn(MAX_RECORD_SIZE)
+            .build();
+
+    public static final PropertyDescriptor LOW_PRIORITY_EXTENSION_KEYS = new PropertyDescriptor.Builder()
+            .name("LOW_PRIORITY_EXTENSION_KEYS")
+            .displayName("Low Priority Extension Keys")
+            .description("Comma separated extension keys that may be dropped to fit a record into 'Max Record Size', lowest priority first. "+
+                    "Keys are only dropped until the record fits.")
+            .required(false)
+            .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+            .dependsOn(RECORD_SIZE_EXCEEDED_STRATEGY, TRUNCATE_AND_DROP_FIELDS)
+            .build();
+
     //Required properties for CEF record construction. Supports expression language
     public static final PropertyDescriptor SYSLOG_PREFIX = new PropertyDescriptor
             .Builder().name("SYSLOG_PREFIX")
@@ -160,6 +263,327 @@ public class CefWriter extends AbstractProcessor {
             .addValidator(StandardValidators.createAttributeExpressionLanguageValidator(AttributeExpression.ResultType.STRING, true))
             .build();
 
+    //Native event timestamps for the header date and time extension fields, formatted without expression language
+    public static final PropertyDescriptor HEADER_DATE_FORMAT = new PropertyDescriptor
+            .Builder().name("HEADER_DATE_FORMAT")
+            .displayName("Header Date Format")
+            .description("Where the date of the complex header comes from. Either the 'Event DateTime' property, or the event time formatted "+
+                    "by the processor itself, which is much cheaper than formatting it with expression language for every flowfile.")
+            .required(true)
+            .allowableValues(DATE_FROM_PROPERTY, SYSLOG_TIMESTAMP, CEF_TIMESTAMP, EPOCH_MILLIS)
+            .defaultValue(DATE_FROM_PROPERTY)
+            .build();
+    public static final PropertyDescriptor EVENT_TIME_ATTRIBUTE = new PropertyDescriptor
+            .Builder().name("EVENT_TIME_ATTRIBUTE")
+            .displayName("Event Time Attribute")
+            .description("The flowfile attribute holding the event time used for the header date and the timestamp fields. If not set, the time "+
+                    "of conversion is used. Flowfiles without a valid time in the attribute are routed to failure.")
+            .required(false)
+            .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor EVENT_TIME_FORMAT = new PropertyDescriptor
+            .Builder().name("EVENT_TIME_FORMAT")
+            .displayName("Event Time Format")
+            .description("The format of the times in the event time attribute and the attributes of the timestamp fields. ISO-8601 times "+
+                    "without an offset are read in the configured time zone.")
+            .required(true)
+            .allowableValues(EPOCH_MILLIS, ISO_8601)
+            .defaultValue(EPOCH_MILLIS)
+            .build();
+    public static final PropertyDescriptor TIMESTAMP_FIELDS = new PropertyDescriptor
+            .Builder().name("TIMESTAMP_FIELDS")
+            .displayName("Timestamp Extension Fields")
+            .description("Comma separated list of extension keys written with a timestamp. A key on its own is written with the event time, "+
+                    "'key=attribute' with the time in the attribute. Example: 'rt,start=session.start,end=session.end'. The fields follow "+
+                    "the same order as the dynamic properties, which must not use the same keys.")
+            .required(false)
+            .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor TIMESTAMP_FIELD_FORMAT = new PropertyDescriptor
+            .Builder().name("TIMESTAMP_FIELD_FORMAT")
+            .displayName("Timestamp Field Format")
+            .description("The format of the timestamp extension fields.")
+            .required(true)
+            .allowableValues(EPOCH_MILLIS, CEF_TIMESTAMP, SYSLOG_TIMESTAMP)
+            .defaultValue(EPOCH_MILLIS)
+            .dependsOn(TIMESTAMP_FIELDS)
+            .build();
+    public static final PropertyDescriptor TIME_ZONE = new PropertyDescriptor
+            .Builder().name("TIME_ZONE")
+            .displayName("Time Zone")
+            .description("The time zone of formatted timestamps, and of ISO-8601 event times without an offset. Example: UTC or Europe/Berlin")
+            .required(true)
+            .defaultValue("UTC")
+            .addValidator((subject, input, context) -> {
+                String explanation = null;
+                try {
+                    ZoneId.of(input);
+                } catch (final DateTimeException e) {
+                    explanation = e.getMessage();
+                }
+                return new ValidationResult.Builder().subject(subject).input(input).valid(explanation == null).explanation(explanation).build();
+            })
+            .build();
+
+    //Opt-in memoisation of header fields whose expression language reads a few attributes with few distinct values
+    public static final PropertyDescriptor HEADER_CACHE_SIZE = new PropertyDescriptor
+            .Builder().name("HEADER_CACHE_SIZE")
+            .displayName("Header Value Cache Size")
+            .description("The number of distinct values remembered for every header field that uses expression language, such as an event name "+
+                    "of ${source.type}. The escaped field is cached by the values of the attributes the expression reads, and written again "+
+                    "without evaluating the expression while those attributes keep their values. The values not used recently are evicted "+
+                    "first. Expressions that call functions such as now() or read the flowfile size are never cached. Cache hits and misses "+
+                    "are counted as processor counters. Not set or 0 evaluates every field for every flowfile.")
+            .required(false)
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .build();
+
+    //Enrichment of the header and extension fields from a lookup service, such as a reference table of event names and severities
+    public static final PropertyDescriptor LOOKUP_SERVICE = new PropertyDescriptor
+            .Builder().name("LOOKUP_SERVICE")
+            .displayName("Lookup Service")
+            .description("A lookup service that enriches every event. A record result sets the device event class ID, event name and severity "+
+                    "from its deviceEventClassId, name and severity fields, and adds its other fields as extension fields. Dynamic properties "+
+                    "take precedence over these fields, and they take precedence over attributes mapped to the same key. Any other result, such "+
+                    "as a string, sets the event name. The header properties supply the values the lookup does not return. If not set, events are "+
+                    "not enriched.")
+            .required(false)
+            .identifiesControllerService(LookupService.class)
+            .build();
+    public static final PropertyDescriptor LOOKUP_KEY = new PropertyDescriptor
+            .Builder().name("LOOKUP_KEY")
+            .displayName("Lookup Key")
+            .description("The key events are looked up by, passed as the single coordinate the lookup service requires. Events with an empty key "+
+                    "are not enriched. If not set, the device event class ID is the key.")
+            .required(false)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .addValidator(StandardValidators.createAttributeExpressionLanguageValidator(AttributeExpression.ResultType.STRING, true))
+            .dependsOn(LOOKUP_SERVICE)
+            .build();
+    public static final PropertyDescriptor LOOKUP_CACHE_SIZE = new PropertyDescriptor
+            .Builder().name("LOOKUP_CACHE_SIZE")
+            .displayName("Lookup Cache Size")
+            .description("The maximum number of lookup results cached, including keys the lookup service has no value for. The oldest results "+
+                    "are evicted first.")
+            .required(true)
+            .defaultValue("10000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .dependsOn(LOOKUP_SERVICE)
+            .build();
+    public static final PropertyDescriptor LOOKUP_CACHE_TTL = new PropertyDescriptor
+            .Builder().name("LOOKUP_CACHE_TTL")
+            .displayName("Lookup Cache TTL")
+            .description("How long a lookup result is used before the lookup service is asked again. Changes to the looked up values take up to "+
+                    "this long to be written.")
+            .required(true)
+            .defaultValue("5 min")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .dependsOn(LOOKUP_SERVICE)
+            .build();
+
+    //Number of flowfiles pulled from the queue and converted in a single session
+    public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor
+            .Builder().name("BATCH_SIZE")
+            .displayName("Batch Size")
+            .description("The maximum number of flowfiles to pull from the incoming queue and convert to CEF in a single session. "+
+                    "Each flowfile is still routed to success or failure on its own.")
+            .required(true)
+            .defaultValue("100")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    //Order in which the dynamic properties are written to the extension field
+    public static final PropertyDescriptor EXTENSION_ORDER = new PropertyDescriptor
+            .Builder().name("EXTENSION_ORDER")
+            .displayName("Extension Field Order")
+            .description("Comma separated list of extension keys that are written first, in the listed order. All other dynamic properties "+
+                    "follow in alphabetical order of their keys. Keys without a matching dynamic property are ignored. If not set, all "+
+                    "extension fields are written in alphabetical order.")
+            .required(false)
+            .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+            .build();
+
+    //Flowfile attributes passed through as extension fields without a dynamic property each
+    public static final PropertyDescriptor EXTENSION_ATTRIBUTE_PREFIX = new PropertyDescriptor
+            .Builder().name("EXTENSION_ATTRIBUTE_PREFIX")
+            .displayName("Extension Attribute Prefix")
+            .description("Flowfile attributes whose names start with this prefix are written to the extension field, using the rest of the "+
+                    "attribute name as the key. Example: with 'cef.ext.' the attribute 'cef.ext.src' is written as 'src'. Attribute values are "+
+                    "written as-is, without expression language. Dynamic properties take precedence over attributes with the same key.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor EXTENSION_ATTRIBUTE_REGEX = new PropertyDescriptor
+            .Builder().name("EXTENSION_ATTRIBUTE_REGEX")
+            .displayName("Extension Attribute Regex")
+            .description("Flowfile attributes whose names match this regular expression are written to the extension field. The key is the "+
+                    "first capturing group if the expression has one, otherwise the whole attribute name. Example: 'siem\\.(.*)' writes the "+
+                    "attribute 'siem.dst' as 'dst'. Attribute values are written as-is, without expression language. Dynamic properties take "+
+                    "precedence over attributes with the same key.")
+            .required(false)
+            .addValidator(StandardValidators.REGULAR_EXPRESSION_VALIDATOR)
+            .build();
+
+    //Bundling of many CEF records into a single output flowfile
+    public static final PropertyDescriptor OUTPUT_MODE = new PropertyDescriptor
+            .Builder().name("OUTPUT_MODE")
+            .displayName("Output Mode")
+            .description("Either replace the content of every flowfile with its CEF record, or append the CEF records of many flowfiles "+
+                    "to a single output flowfile, or replace the content of every flowfile with one CEF record per line of its content. "+
+                    "Bundled flowfiles are removed once their record has been written. Split lines are the msg of their records, whatever "+
+                    "'Content as msg' is set to. Duplicate records are aggregated by AggregateCef.")
+            .required(true)
+            .allowableValues(ONE_RECORD_PER_FLOWFILE, BUNDLE_RECORDS, SPLIT_LINES)
+            .defaultValue(ONE_RECORD_PER_FLOWFILE)
+            .build();
+    public static final PropertyDescriptor BUNDLE_FRAMING = new PropertyDescriptor
+            .Builder().name("BUNDLE_FRAMING")
+            .displayName("Bundle Framing")
+            .description("How the records in a bundle or of the lines of a flowfile are separated. Newline delimited ends every record with a "+
+                    "line feed. Octet counting prefixes every record with its length in bytes and a space, as described in RFC 6587.")
+            .required(true)
+            .allowableValues(NEWLINE_FRAMING, OCTET_COUNTING_FRAMING)
+            .defaultValue(NEWLINE_FRAMING)
+            .dependsOn(OUTPUT_MODE, BUNDLE_RECORDS, SPLIT_LINES)
+            .build();
+    public static final PropertyDescriptor LINE_DELIMITER = new PropertyDescriptor
+            .Builder().name("LINE_DELIMITER")
+            .displayName("Line Delimiter")
+            .description("The delimiter between the lines of the content. The escape sequences \\n, \\r and \\t stand for line feed, carriage "+
+                    "return and tab. With the default line feed, a carriage return in front of it is removed as well. Blank lines are skipped.")
+            .required(true)
+            .defaultValue("\\n")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .dependsOn(OUTPUT_MODE, SPLIT_LINES)
+            .build();
+    public static final PropertyDescriptor MAX_LINE_LENGTH = new PropertyDescriptor
+            .Builder().name("MAX_LINE_LENGTH")
+            .displayName("Max Line Length")
+            .description("The longest line that is converted, before escaping. A longer line is handled like a msg exceeding 'Max msg size': it is "+
+                    "truncated to this length, never in the middle of a character, or the flowfile is routed to failure, as 'msg size exceeded "+
+                    "strategy' says. Only this much of a line is held in memory, so content without delimiters cannot exhaust the heap.")
+            .required(true)
+            .defaultValue("1 MB")
+            .addValidator(StandardValidators.createDataSizeBoundsValidator(1, 256 * 1024 * 1024))
+            .dependsOn(OUTPUT_MODE, SPLIT_LINES)
+            .build();
+    public static final PropertyDescriptor CONVERSION_THREADS = new PropertyDescriptor
+            .Builder().name("CONVERSION_THREADS")
+            .displayName("Conversion Threads")
+            .description("The number of threads that convert the lines of a single flowfile in parallel. The content is cut into chunks of whole "+
+                    "lines, which are escaped and formatted on a pool of this many threads shared by all concurrent tasks, and written in their "+
+                    "original order, so the output is the same as with a single thread. With 1 the lines are converted by the task itself.")
+            .required(true)
+            .defaultValue("1")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .dependsOn(OUTPUT_MODE, SPLIT_LINES)
+            .build();
+    public static final PropertyDescriptor CONVERSION_CHUNK_SIZE = new PropertyDescriptor
+            .Builder().name("CONVERSION_CHUNK_SIZE")
+            .displayName("Conversion Chunk Size")
+            .description("The amount of content that is read before its lines are converted. A line is never split, so a chunk may be larger "+
+                    "by one line. Up to two chunks per conversion thread are held in memory at a time.")
+            .required(true)
+            .defaultValue("1 MB")
+            .addValidator(StandardValidators.createDataSizeBoundsValidator(1024, 256 * 1024 * 1024))
+            .dependsOn(OUTPUT_MODE, SPLIT_LINES)
+            .build();
+    public static final PropertyDescriptor MAX_BUNDLE_RECORDS = new PropertyDescriptor
+            .Builder().name("MAX_BUNDLE_RECORDS")
+            .displayName("Max Bundle Records")
+            .description("The maximum number of records in a bundle. A bundle is written as soon as this many flowfiles are queued.")
+            .required(true)
+            .defaultValue("1000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .dependsOn(OUTPUT_MODE, BUNDLE_RECORDS)
+            .build();
+    public static final PropertyDescriptor MAX_BUNDLE_SIZE = new PropertyDescriptor
+            .Builder().name("MAX_BUNDLE_SIZE")
+            .displayName("Max Bundle Size")
+            .description("The maximum size of a bundle. Records that do not fit start a new bundle, so a bundle only exceeds this size if it "+
+                    "holds a single record that is larger on its own. Bundles are also written once the queued flowfiles are estimated to fill one, "+
+                    "from the size of their content and of the records written before.")
+            .required(true)
+            .defaultValue("1 MB")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .dependsOn(OUTPUT_MODE, BUNDLE_RECORDS)
+            .build();
+    public static final PropertyDescriptor MAX_BUNDLE_AGE = new PropertyDescriptor
+            .Builder().name("MAX_BUNDLE_AGE")
+            .displayName("Max Bundle Age")
+            .description("The maximum time the oldest queued flowfile waits for a bundle to fill up. Once it is reached, the queued "+
+                    "flowfiles are bundled even if neither the record count nor the size limit has been reached.")
+            .required(true)
+            .defaultValue("5 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .dependsOn(OUTPUT_MODE, BUNDLE_RECORDS)
+            .build();
+
+    //LEEF records rendered from the same evaluated fields as the CEF records
+    public static final PropertyDescriptor LEEF_OUTPUT = new PropertyDescriptor
+            .Builder().name("LEEF_OUTPUT")
+            .displayName("LEEF Output")
+            .description("Whether a LEEF record is written as well, to a clone of every flowfile routed to the 'LEEF' relationship. The header "+
+                    "and extension fields are evaluated once for both records. The LEEF header holds the device vendor, product and version and "+
+                    "the event class ID as the event ID, the severity is written as the 'sev' attribute and the event name is left out. "+
+                    "Only supported with one record per flowfile.")
+            .required(true)
+            .allowableValues(NO_LEEF_OUTPUT, LEEF_1_0, LEEF_2_0)
+            .defaultValue(NO_LEEF_OUTPUT)
+            .build();
+    public static final PropertyDescriptor LEEF_DELIMITER = new PropertyDescriptor
+            .Builder().name("LEEF_DELIMITER")
+            .displayName("LEEF Delimiter")
+            .description("The character between the attributes of a LEEF 2.0 record, which is named in its header. Either a single character "+
+                    "or \\t for a tab. LEEF 1.0 always uses a tab. Line breaks and delimiters in attribute values are replaced by spaces.")
+            .required(true)
+            .defaultValue("^")
+            .addValidator((subject, input, context) -> {
+                String explanation = null;
+                try {
+                    CefFormat.parseDelimiter(input);
+                } catch (final IllegalArgumentException e) {
+                    explanation = e.getMessage();
+                }
+                return new ValidationResult.Builder().subject(subject).input(input).valid(explanation == null).explanation(explanation).build();
+            })
+            .dependsOn(LEEF_OUTPUT, LEEF_2_0)
+            .build();
+
+    //Checks of the extension keys and values against the CEF key dictionary
+    public static final PropertyDescriptor EXTENSION_KEY_VALIDATION = new PropertyDescriptor
+            .Builder().name("EXTENSION_KEY_VALIDATION")
+            .displayName("Extension Key Validation")
+            .description("Whether the extension keys are checked against the standard CEF keys and the custom keys. Validating keys makes the "+
+                    "processor invalid while a dynamic property is not a known key, and routes flowfiles with attributes mapped to unknown keys "+
+                    "to failure. Validating values also checks every value of a typed key, such as IP and MAC addresses, timestamps and numbers, "+
+                    "writes it in its canonical form and routes flowfiles with invalid values to failure.")
+            .required(true)
+            .allowableValues(NO_KEY_VALIDATION, VALIDATE_KEYS, VALIDATE_KEYS_AND_VALUES)
+            .defaultValue(NO_KEY_VALIDATION)
+            .build();
+    public static final PropertyDescriptor CUSTOM_EXTENSION_KEYS = new PropertyDescriptor
+            .Builder().name("CUSTOM_EXTENSION_KEYS")
+            .displayName("Custom Extension Keys File")
+            .description("A file of extension keys that are valid in addition to the standard CEF keys, one key per line, optionally "+
+                    "followed by whitespace and the type of its values: String, Integer, Long, FloatingPoint, IPv4, IPv6, IP, MAC or Timestamp. "+
+                    "Keys without a type are strings. Lines starting with '#' are ignored.")
+            .required(false)
+            .addValidator(StandardValidators.FILE_EXISTS_VALIDATOR)
+            .dependsOn(EXTENSION_KEY_VALIDATION, VALIDATE_KEYS, VALIDATE_KEYS_AND_VALUES)
+            .build();
+
+    //The conversion is always measured and published as counters, the periodic summary is optional
+    public static final PropertyDescriptor METRICS_SUMMARY_INTERVAL = new PropertyDescriptor
+            .Builder().name("METRICS_SUMMARY_INTERVAL")
+            .displayName("Metrics Summary Interval")
+            .description("How often a summary of the conversion metrics is logged at info level, for example '5 min'. The summary covers "+
+                    "the records written since the previous one: average nanos per record for every stage, escaped characters, the record "+
+                    "size distribution and the failures by cause. The same metrics are always published as 'CEF *' counters. If not set, "+
+                    "no summary is logged.")
+            .required(false)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
 
     //Codeblock for processor to support dynamic properties. Used to build key/value pairs for CEF extension field
     @Override
@@ -187,14 +611,56 @@ public class CefWriter extends AbstractProcessor {
             .description("The flowfile has failed to be processed to CEF successfully")
             .build();
 
+    public static final Relationship LEEF = new Relationship.Builder()
+            .name("LEEF")
+            .description("A clone of every flowfile routed to success, holding its LEEF record. Only available when LEEF output is enabled")
+            .build();
+
     private List<PropertyDescriptor> properties;
-    private Set<Relationship> relationships;
+    private volatile Set<Relationship> relationships;
+
+    //Configuration compiled when the processor is scheduled
+    private volatile CefTimestamps timestamps;
+    private volatile CefTemplate template;
+    private volatile CefFormat leefFormat;
+    private volatile CefTemplate leefTemplate;
+    private volatile CefExtensionPlan extensionPlan;
+    private volatile CefLookupEnricher lookupEnricher;
+    private volatile boolean contentAsMsg;
+    private volatile long maxMsgSize;
+    private volatile boolean truncateMsg;
+    private volatile long maxRecordSize;
+    private volatile CefRecordFitter recordFitter;
+    private volatile boolean bundleRecords;
+    private volatile boolean splitLines;
+    private volatile byte[] lineDelimiter;
+    private volatile int maxLineLength;
+    private volatile int conversionThreads;
+    private volatile int conversionChunkSize;
+    private volatile ExecutorService executor;
+    private volatile boolean octetCounting;
+    private volatile int maxBundleRecords;
+    private volatile long maxBundleSize;
+    //The mean size a record of the last bundle added to the content it was rendered from, or its whole size without the content as msg.
+    //Estimates the size of a bundle from the queued flowfiles before their records are rendered
+    private volatile long recordOverhead;
+    private volatile long maxBundleAgeMillis;
+    private volatile boolean aggregateRecords;
+    private volatile Set<String> aggregationKeys;
+    private volatile CefAggregator aggregator;
+    private volatile CefWriterMetrics metrics;
+    private volatile ThreadLocal<CefRendering[]> renderingPool;
 
     @Override
     protected void init(final ProcessorInitializationContext context) {
         properties = new ArrayList<>();
         properties.add(COMPLEX_HEADER);
         properties.add(CONTENT_AS_MSG);
+        properties.add(MAX_MSG_SIZE);
+        properties.add(MSG_SIZE_EXCEEDED_STRATEGY);
+        properties.add(MAX_RECORD_SIZE);
+        properties.add(RECORD_SIZE_EXCEEDED_STRATEGY);
+        properties.add(LOW_PRIORITY_EXTENSION_KEYS);
         properties.add(SYSLOG_PREFIX);
         properties.add(DEVICE_VENDOR);
         properties.add(DEVICE_PRODUCT);
@@ -204,6 +670,25 @@ public class CefWriter extends AbstractProcessor {
         properties.add(EVENT_SEVERITY);
         properties.add(EVENT_DATE);
         properties.add(EVENT_HOST);
+        properties.add(HEADER_DATE_FORMAT);
+        properties.add(EVENT_TIME_ATTRIBUTE);
+        properties.add(EVENT_TIME_FORMAT);
+        properties.add(TIMESTAMP_FIELDS);
+        properties.add(TIMESTAMP_FIELD_FORMAT);
+        properties.add(TIME_ZONE);
+        properties.add(HEADER_CACHE_SIZE);
+        properties.add(LOOKUP_SERVICE);
+        properties.add(LOOKUP_KEY);
+        properties.add(LOOKUP_CACHE_SIZE);
+        properties.add(LOOKUP_CACHE_TTL);
+        properties.add(BATCH_SIZE);
+        properties.add(EXTENSION_ORDER);
+        properties.add(EXTENSION_ATTRIBUTE_PREFIX);
+        properties.add(EXTENSION_ATTRIBUTE_REGEX);
+        properties.addAll(getOutputProperties());
+        properties.add(EXTENSION_KEY_VALIDATION);
+        properties.add(CUSTOM_EXTENSION_KEYS);
+        properties.add(METRICS_SUMMARY_INTERVAL);
 
         properties = Collections.unmodifiableList(properties);
 
@@ -213,126 +698,809 @@ public class CefWriter extends AbstractProcessor {
         relationships = Collections.unmodifiableSet(relationships);
     }
 
+    //The properties that choose how records are written, listed after the properties that build them
+    protected List<PropertyDescriptor> getOutputProperties() {
+        return Arrays.asList(OUTPUT_MODE, BUNDLE_FRAMING, LINE_DELIMITER, MAX_LINE_LENGTH, CONVERSION_THREADS, CONVERSION_CHUNK_SIZE, MAX_BUNDLE_RECORDS,
+                MAX_BUNDLE_SIZE, MAX_BUNDLE_AGE, LEEF_OUTPUT, LEEF_DELIMITER);
+    }
+
+    //How records are written. AggregateCef always aggregates them
+    protected String getOutputMode(final PropertyContext context) {
+        return context.getProperty(OUTPUT_MODE).getValue();
+    }
+
     @Override
     public Set<Relationship> getRelationships() {
         return this.relationships;
     }
 
+    //The LEEF relationship only exists while LEEF records are written
+    @Override
+    public void onPropertyModified(final PropertyDescriptor descriptor, final String oldValue, final String newValue) {
+        if (LEEF_OUTPUT.equals(descriptor)) {
+            final Set<Relationship> updated = new HashSet<>(Arrays.asList(SUCCESS, FAILURE));
+            if (newValue != null && !NO_LEEF_OUTPUT.equals(newValue)) {
+                updated.add(LEEF);
+            }
+            relationships = Collections.unmodifiableSet(updated);
+        }
+    }
+
     @Override
     public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
         return properties;
     }
 
-    //Method to check and fix dat formatting for CEF records. Ensures that unallowed control characters are properly escaped
-    public final String formatText(String inputString){
-        StringBuilder outputString = new StringBuilder();
-        for(int i=0;i < inputString.length();i++){
-            if (String.valueOf(inputString.charAt(i)).equals("=") || String.valueOf(inputString.charAt(i)).equals("|")){
-                outputString.append("\\").append(inputString.charAt(i));
-            } else if (String.valueOf(inputString.charAt(i)).equals("\\")
-                    && !String.valueOf(inputString.charAt(i-1)).equals("\\")
-                    && !String.valueOf(inputString.charAt(i+1)).equals("\\")){
-                outputString.append("\\").append(inputString.charAt(i));
-            } else {
-                outputString.append(inputString.charAt(i));
-            }
-        }
-        return outputString.toString();
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext validationContext) {
+        final List<ValidationResult> results = new ArrayList<>();
+        if (USE_COMPLEX_HEADER.equals(validationContext.getProperty(COMPLEX_HEADER).getValue())) {
+            final boolean dateFromProperty = DATE_FROM_PROPERTY.equals(validationContext.getProperty(HEADER_DATE_FORMAT).getValue());
+            for (final PropertyDescriptor descriptor : dateFromProperty ? Arrays.asList(EVENT_DATE, EVENT_HOST) : Collections.singletonList(EVENT_HOST)) {
+                if (!validationContext.getProperty(descriptor).isSet()) {
+                    results.add(new ValidationResult.Builder()
+                            .subject(descriptor.getDisplayName())
+                            .valid(false)
+                            .explanation(descriptor.getDisplayName() + " is required when the complex header is used")
+                            .build());
+                }
+            }
+        }
+        List<CefTimestamps.Field> timestampFields = Collections.emptyList();
+        try {
+            timestampFields = CefTimestamps.parseFields(validationContext.getProperty(TIMESTAMP_FIELDS).getValue());
+        } catch (final IllegalArgumentException e) {
+            results.add(new ValidationResult.Builder()
+                    .subject(TIMESTAMP_FIELDS.getDisplayName())
+                    .valid(false)
+                    .explanation(e.getMessage())
+                    .build());
+        }
+        for (final CefTimestamps.Field field : timestampFields) {
+            if (validationContext.getProperties().keySet().stream().anyMatch(descriptor -> descriptor.isDynamic() && descriptor.getName().strip().equals(field.key))) {
+                results.add(new ValidationResult.Builder()
+                        .subject(TIMESTAMP_FIELDS.getDisplayName())
+                        .valid(false)
+                        .explanation("'" + field.key + "' is both a timestamp field and a dynamic property")
+                        .build());
+            }
+        }
+        //AggregateCef has no LEEF output
+        final String leefOutput = validationContext.getProperty(LEEF_OUTPUT).getValue();
+        if (leefOutput != null && !NO_LEEF_OUTPUT.equals(leefOutput) && !ONE_RECORD_PER_FLOWFILE.equals(getOutputMode(validationContext))) {
+            results.add(new ValidationResult.Builder()
+                    .subject(LEEF_OUTPUT.getDisplayName())
+                    .valid(false)
+                    .explanation("LEEF records are only written with the '" + ONE_RECORD_PER_FLOWFILE + "' output mode")
+                    .build());
+        }
+        if (validationContext.getProperty(LOOKUP_SERVICE).isSet()) {
+            final LookupService<?> lookupService = validationContext.getProperty(LOOKUP_SERVICE).asControllerService(LookupService.class);
+            final Set<String> requiredKeys = lookupService == null ? null : lookupService.getRequiredKeys();
+            if (requiredKeys != null && requiredKeys.size() > 1) {
+                results.add(new ValidationResult.Builder()
+                        .subject(LOOKUP_SERVICE.getDisplayName())
+                        .valid(false)
+                        .explanation("the lookup service requires the coordinates " + requiredKeys + ", but only a single lookup key is supported")
+                        .build());
+            }
+        }
+        final String keyValidation = validationContext.getProperty(EXTENSION_KEY_VALIDATION).getValue();
+        if (!NO_KEY_VALIDATION.equals(keyValidation)) {
+            validateExtensionKeys(validationContext, VALIDATE_KEYS_AND_VALUES.equals(keyValidation), timestampFields, results);
+        }
+        return results;
     }
 
-    @Override
-    public void onTrigger(final ProcessContext context, final ProcessSession session) {
-        FlowFile flowFile = session.get();
-        if (flowFile == null) {
+    //Every dynamic property must be a known key. Literal values of typed keys are checked here, expression language values per flowfile
+    private void validateExtensionKeys(final ValidationContext validationContext, final boolean validateValues, final List<CefTimestamps.Field> timestampFields,
+                                       final List<ValidationResult> results) {
+        final CefKeyDictionary dictionary;
+        try {
+            dictionary = CefKeyDictionary.load(validationContext.getProperty(CUSTOM_EXTENSION_KEYS).getValue());
+        } catch (final IOException e) {
+            results.add(new ValidationResult.Builder()
+                    .subject(CUSTOM_EXTENSION_KEYS.getDisplayName())
+                    .valid(false)
+                    .explanation("Failed to read the custom extension keys: " + e.getMessage())
+                    .build());
             return;
         }
+        for (final PropertyDescriptor descriptor : validationContext.getProperties().keySet()) {
+            if (!descriptor.isDynamic()) {
+                continue;
+            }
+            final String key = descriptor.getName().strip();
+            final CefKeyDictionary.Type type = dictionary.typeOf(key);
+            final String value = validationContext.getProperty(descriptor).getValue();
+            String explanation = null;
+            if (type == null) {
+                explanation = "'" + key + "' is neither a standard CEF extension key nor listed in the custom extension keys";
+            } else if (validateValues && value != null && !validationContext.isExpressionLanguagePresent(value)
+                    && !value.isBlank() && type.coerce(value.strip()) == null) {
+                explanation = "'" + value + "' is not a valid " + type + " value for the extension key '" + key + "'";
+            }
+            if (explanation != null) {
+                results.add(new ValidationResult.Builder()
+                        .subject(descriptor.getName())
+                        .input(value)
+                        .valid(false)
+                        .explanation(explanation)
+                        .build());
+            }
+        }
+        for (final CefTimestamps.Field field : timestampFields) {
+            if (!dictionary.contains(field.key)) {
+                results.add(new ValidationResult.Builder()
+                        .subject(TIMESTAMP_FIELDS.getDisplayName())
+                        .valid(false)
+                        .explanation("'" + field.key + "' is neither a standard CEF extension key nor listed in the custom extension keys")
+                        .build());
+            }
+        }
+    }
 
-        StringJoiner cefJ = new StringJoiner("|");
-        StringJoiner fieldJ = new StringJoiner(" ");
-        String cefPref = context.getProperty(SYSLOG_PREFIX).evaluateAttributeExpressions(flowFile).getValue();
-        String complexHeader = context.getProperty(COMPLEX_HEADER).getValue();
-        String contentMsg = context.getProperty(CONTENT_AS_MSG).getValue();
+    //Compiles the configuration once, so that the per-flowfile work is limited to the fields that use expression language
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        aggregateRecords = AGGREGATE_RECORDS.equals(getOutputMode(context));
+        timestamps = CefTimestamps.compile(context, aggregateRecords);
+        template = CefTemplate.compile(context, timestamps, CefFormat.CEF);
+        final String leefOutput = context.getProperty(LEEF_OUTPUT).getValue();
+        leefFormat = LEEF_1_0.equals(leefOutput) ? CefFormat.LEEF_1
+                : LEEF_2_0.equals(leefOutput) ? CefFormat.leef2(CefFormat.parseDelimiter(context.getProperty(LEEF_DELIMITER).getValue()))
+                : null;
+        leefTemplate = leefFormat == null ? null : CefTemplate.compile(context, timestamps, leefFormat);
+        final CefFormat[] formats = leefFormat == null ? new CefFormat[]{CefFormat.CEF} : new CefFormat[]{CefFormat.CEF, leefFormat};
+        final String keyValidation = context.getProperty(EXTENSION_KEY_VALIDATION).getValue();
+        if (NO_KEY_VALIDATION.equals(keyValidation)) {
+            extensionPlan = CefExtensionPlan.compile(context, null, false, timestamps, formats);
+        } else {
+            try {
+                final CefKeyDictionary dictionary = CefKeyDictionary.load(context.getProperty(CUSTOM_EXTENSION_KEYS).getValue());
+                extensionPlan = CefExtensionPlan.compile(context, dictionary, VALIDATE_KEYS_AND_VALUES.equals(keyValidation), timestamps, formats);
+            } catch (final IOException e) {
+                throw new ProcessException("Failed to read the custom extension keys", e);
+            }
+        }
+        lookupEnricher = context.getProperty(LOOKUP_SERVICE).isSet()
+                ? new CefLookupEnricher(context.getProperty(LOOKUP_SERVICE).asControllerService(LookupService.class),
+                        context.getProperty(LOOKUP_KEY).isSet() ? context.getProperty(LOOKUP_KEY) : null, context.getProperty(DEVICE_CLASS_ID),
+                        context.getProperty(LOOKUP_CACHE_TTL).asTimePeriod(TimeUnit.MILLISECONDS), context.getProperty(LOOKUP_CACHE_SIZE).asInteger())
+                : null;
+        contentAsMsg = USE_CONTENT_AS_MSG.equals(context.getProperty(CONTENT_AS_MSG).getValue());
+        maxMsgSize = context.getProperty(MAX_MSG_SIZE).isSet()
+                ? context.getProperty(MAX_MSG_SIZE).asDataSize(DataUnit.B).longValue()
+                : Long.MAX_VALUE;
+        truncateMsg = TRUNCATE_MSG.equals(context.getProperty(MSG_SIZE_EXCEEDED_STRATEGY).getValue());
+        if (context.getProperty(MAX_RECORD_SIZE).isSet()) {
+            final String strategy = context.getProperty(RECORD_SIZE_EXCEEDED_STRATEGY).getValue();
+            maxRecordSize = context.getProperty(MAX_RECORD_SIZE).asDataSize(DataUnit.B).longValue();
+            //Aggregated records are fitted with room for the fields the aggregation appends
+            if (aggregateRecords) {
+                maxRecordSize = Math.max(0, maxRecordSize - CefAggregator.MAX_SUFFIX_LENGTH);
+            }
+            recordFitter = new CefRecordFitter(maxRecordSize, !ROUTE_TO_FAILURE.equals(strategy), TRUNCATE_AND_DROP_FIELDS.equals(strategy)
+                    ? CefRecordFitter.parseKeys(context.getProperty(LOW_PRIORITY_EXTENSION_KEYS).getValue())
+                    : Collections.emptyList());
+        } else {
+            maxRecordSize = Long.MAX_VALUE;
+            recordFitter = null;
+        }
+        bundleRecords = BUNDLE_RECORDS.equals(getOutputMode(context));
+        splitLines = SPLIT_LINES.equals(getOutputMode(context));
+        octetCounting = OCTET_COUNTING_FRAMING.equals(context.getProperty(BUNDLE_FRAMING).getValue());
+        if (splitLines) {
+            lineDelimiter = CefLineSplitter.parseDelimiter(context.getProperty(LINE_DELIMITER).getValue());
+            maxLineLength = context.getProperty(MAX_LINE_LENGTH).asDataSize(DataUnit.B).intValue();
+            conversionThreads = context.getProperty(CONVERSION_THREADS).asInteger();
+            conversionChunkSize = context.getProperty(CONVERSION_CHUNK_SIZE).asDataSize(DataUnit.B).intValue();
+            if (conversionThreads > 1) {
+                executor = Executors.newFixedThreadPool(conversionThreads);
+            }
+        }
+        if (bundleRecords) {
+            maxBundleRecords = context.getProperty(MAX_BUNDLE_RECORDS).asInteger();
+            maxBundleSize = context.getProperty(MAX_BUNDLE_SIZE).asDataSize(DataUnit.B).longValue();
+            recordOverhead = 0;
+            maxBundleAgeMillis = context.getProperty(MAX_BUNDLE_AGE).asTimePeriod(TimeUnit.MILLISECONDS);
+        }
+        aggregationKeys = aggregateRecords && context.getProperty(AggregateCef.AGGREGATION_KEYS).isSet()
+                ? new HashSet<>(CefRecordFitter.parseKeys(context.getProperty(AggregateCef.AGGREGATION_KEYS).getValue()))
+                : null;
+        aggregator = aggregateRecords ? restoreAggregates(context) : null;
+        //Renderings hold the compiled templates, so every schedule starts a new pool
+        renderingPool = ThreadLocal.withInitial(this::newRenderings);
+        metrics = new CefWriterMetrics(context.getProperty(METRICS_SUMMARY_INTERVAL).isSet()
+                ? context.getProperty(METRICS_SUMMARY_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS)
+                : 0);
+    }
 
-        if(complexHeader.equals(USE_COMPLEX_HEADER)) {
-            String datetime = context.getProperty(EVENT_DATE).evaluateAttributeExpressions(flowFile).getValue();
-            String eventHost = context.getProperty(EVENT_HOST).evaluateAttributeExpressions(flowFile).getValue();
+    //Aggregates stored by a previous run are aggregated further. The state is left as it is until a session stores the aggregates again
+    private CefAggregator restoreAggregates(final ProcessContext context) {
+        final Map<String, String> state;
+        try {
+            state = context.getStateManager().getState(Scope.LOCAL).toMap();
+        } catch (final IOException e) {
+            throw new ProcessException("Failed to read the stored aggregates", e);
+        }
+        final CefAggregator aggregator = new CefAggregator(context.getProperty(AggregateCef.AGGREGATION_WINDOW).asTimePeriod(TimeUnit.MILLISECONDS),
+                context.getProperty(AggregateCef.MAX_AGGREGATES).asInteger());
+        aggregator.restore(state);
+        return aggregator;
+    }
 
-            String headerString = new StringJoiner(" ").add(datetime).add(eventHost).add(cefPref).toString();
-            try{
-                cefJ.add(formatText(headerString));
-            } catch (Exception ex){
-                ex.printStackTrace();
-                getLogger().error("Failed to Build complex CEF header.");
-                session.transfer(flowFile, FAILURE);
+    @OnStopped
+    public void onStopped(final ProcessContext context) {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    //AggregateCef is triggered while its queue is empty so that closed aggregation windows are written without new events. A trigger
+    //that finds nothing to aggregate or write yields, so an idle aggregation does not spin
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) {
+        if (aggregateRecords) {
+            if (!aggregate(context, session)) {
+                context.yield();
             }
+            return;
+        }
+        if (bundleRecords) {
+            bundle(context, session);
+            return;
+        }
+
+        final List<FlowFile> flowFiles = session.get(context.getProperty(BATCH_SIZE).asInteger());
+        if (flowFiles.isEmpty()) {
+            return;
+        }
 
+        final CefWriterMetrics.Batch batch = new CefWriterMetrics.Batch();
+        if (splitLines) {
+            final CefLineSplitter splitter = new CefLineSplitter(lineDelimiter, maxLineLength, maxMsgSize, truncateMsg, maxRecordSize,
+                    recordFitter == null || recordFitter.truncatesMsg(), octetCounting, conversionChunkSize, executor, conversionThreads);
+            for (final FlowFile flowFile : flowFiles) {
+                convertLines(session, flowFile, splitter, batch);
+            }
         } else {
-            try{
-                cefJ.add(formatText(cefPref));
-            }catch (Exception ex){
-                ex.printStackTrace();
-                getLogger().error("Failed to write simple CEF header.");
-                session.transfer(flowFile, FAILURE);
+            for (final FlowFile flowFile : flowFiles) {
+                convert(session, flowFile, batch);
             }
         }
+        metrics.publish(batch, session, getLogger());
+    }
 
+    //Renders the header and extension fields of the flowfile in every format and fits them into the maximum record size. Every property is
+    //evaluated once for all formats. This is the validation pass: nothing of the flowfile is written before it has passed. Returns null if
+    //the fields are valid and fit, otherwise the rejection of the flowfile after counting its failure
+    private Rejection renderFields(final FlowFile flowFile, final CefRendering[] renderings, final boolean streamedMsg, final CefWriterMetrics.Batch batch) {
         try{
-            cefJ.add(formatText(context.getProperty(DEVICE_VENDOR).evaluateAttributeExpressions(flowFile).getValue()));
-            cefJ.add(formatText(context.getProperty(DEVICE_PRODUCT).evaluateAttributeExpressions(flowFile).getValue()));
-            cefJ.add(formatText(context.getProperty(DEVICE_VERSION).evaluateAttributeExpressions(flowFile).getValue()));
-            cefJ.add(formatText(context.getProperty(DEVICE_CLASS_ID).evaluateAttributeExpressions(flowFile).getValue()));
-            cefJ.add(formatText(context.getProperty(EVENT_NAME).evaluateAttributeExpressions(flowFile).getValue()));
-            cefJ.add(formatText(context.getProperty(EVENT_SEVERITY).evaluateAttributeExpressions(flowFile).getValue()));
-
+            long start = batch.start();
+            final long eventTime = timestamps.eventTime(flowFile);
+            for (final CefRendering rendering : renderings) {
+                rendering.eventTime = eventTime;
+            }
+            final String[] values = renderings[0].values;
+            final CefLookupEnricher.Result enrichment = lookupEnricher == null ? CefLookupEnricher.Result.NONE
+                    : lookupEnricher.enrich(flowFile, values, batch);
+            for (int i = 0; i < renderings.length; i++) {
+                final int escaped = renderings[i].template.writeHeader(flowFile, eventTime, values, renderings[i].header, batch);
+                batch.addEscaped(i == 0 ? escaped : 0);
+            }
+            batch.time(CefWriterMetrics.Stage.HEADER, start);
+            start = batch.start();
+            batch.addEscaped(extensionPlan.writeExtensions(flowFile, eventTime, enrichment.extensions, renderings));
+            batch.time(CefWriterMetrics.Stage.EXTENSIONS, start);
+        }catch (LookupFailureException ex){
+            getLogger().error("Failed to look up the fields of {}. Routing to failure.", flowFile, ex);
+            return reject(flowFile, CefWriterMetrics.Failure.LOOKUP_FAILED, null, ex, batch);
+        }catch (CefFieldException ex){
+            //A bad value of a single event, logged without a stack trace so that bad input does not flood the log
+            getLogger().warn("Field '{}' of {} is invalid: {}. Routing to failure.", ex.field(), flowFile, ex.getMessage());
+            return reject(flowFile, CefWriterMetrics.Failure.INVALID_FIELD, ex.field(), ex, batch);
         }catch (Exception ex){
-            ex.printStackTrace();
-            getLogger().error("Failed to add field to CEF record. Check to make sure all required fields have valid values.");
-            session.transfer(flowFile, FAILURE);
+            getLogger().error("Failed to add field to CEF record. Check to make sure all required fields have valid values.", ex);
+            return reject(flowFile, CefWriterMetrics.Failure.INVALID_FIELD, null, ex, batch);
+        }
+        for (final CefRendering rendering : renderings) {
+            if (recordFitter == null) {
+                rendering.fit.unlimited(rendering.extensions);
+                continue;
+            }
+            try {
+                recordFitter.fit(rendering.header.size(), rendering.extensions, rendering.fields, streamedMsg, rendering.format, rendering.fit);
+            } catch (CefRecordFitter.RecordTooLargeException ex) {
+                getLogger().warn("Record of {} does not fit into the maximum record size: {}. Routing to failure.", flowFile, ex.getMessage());
+                return reject(flowFile, CefWriterMetrics.Failure.RECORD_TOO_LARGE, null, ex, batch);
+            }
+        }
+        return null;
+    }
+
+    private static Rejection reject(final FlowFile flowFile, final CefWriterMetrics.Failure failure, final String field, final Exception ex,
+                                    final CefWriterMetrics.Batch batch) {
+        batch.failure(failure);
+        return new Rejection(flowFile, failure, field, ex.getMessage());
+    }
+
+    //Routes the rejected flowfile to failure with attributes that describe why
+    private void routeToFailure(final ProcessSession session, final Rejection rejection) {
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put(ERROR_ATTRIBUTE, rejection.failure.displayName());
+        if (rejection.field != null) {
+            attributes.put(ERROR_FIELD_ATTRIBUTE, rejection.field);
+        }
+        if (rejection.message != null) {
+            attributes.put(ERROR_MESSAGE_ATTRIBUTE, rejection.message);
+        }
+        session.transfer(session.putAllAttributes(rejection.flowFile, attributes), FAILURE);
+    }
+
+    //The renderings of a thread: CEF, followed by LEEF if it is written as well. The field ranges are only tracked to fit records into
+    //the maximum record size or to fingerprint selected fields
+    private CefRendering[] newRenderings() {
+        final boolean trackFields = recordFitter != null || aggregationKeys != null;
+        final CefRendering cef = new CefRendering(CefFormat.CEF, template, trackFields);
+        final CefTemplate leefTemplate = this.leefTemplate;
+        return leefTemplate != null
+                ? new CefRendering[]{cef, new CefRendering(leefFormat, leefTemplate, trackFields)}
+                : new CefRendering[]{cef};
+    }
+
+    //The renderings of the current thread, reset for the next flowfile
+    private CefRendering[] renderings() {
+        final CefRendering[] renderings = renderingPool.get();
+        for (final CefRendering rendering : renderings) {
+            rendering.reset();
+        }
+        return renderings;
+    }
+
+    //Replaces the content with one record per line. The fields are rendered once and shared by the records of all lines
+    private void convertLines(final ProcessSession session, final FlowFile flowFile, final CefLineSplitter splitter, final CefWriterMetrics.Batch batch) {
+        final CefRendering[] renderings = renderings();
+        final Rejection rejection = renderFields(flowFile, renderings, true, batch);
+        if (rejection != null) {
+            routeToFailure(session, rejection);
+            return;
         }
 
-        if(contentMsg.equals(USE_CONTENT_AS_MSG)){
-            session.read(flowFile, new InputStreamCallback() {
+        //The lines are converted on other threads, which get copies of the fields rather than the buffers of this one
+        final byte[] headerBytes = renderings[0].header.toByteArray();
+        final byte[] extensions = Arrays.copyOf(renderings[0].fit.extensions, renderings[0].fit.extensionsLength);
+        final long msgBudget = renderings[0].fit.msgBudget;
+        final AtomicReference<CefWriterMetrics.Failure> failure = new AtomicReference<>();
+        final AtomicLong records = new AtomicLong();
+        final long start = batch.start();
+        FlowFile cefF;
+        try {
+            cefF = session.write(flowFile, new StreamCallback() {
                 @Override
-                public void process(InputStream inputStream) {
+                public void process(InputStream inputStream, OutputStream outputStream) throws IOException {
                     try {
-                        String text = new BufferedReader(
-                                new InputStreamReader(inputStream, StandardCharsets.UTF_8))
-                                .lines()
-                                .collect(Collectors.joining(" "));
-                        fieldJ.add("msg=" + formatText(text));
-                    } catch (Exception ex) {
-                        ex.printStackTrace();
-                        getLogger().error("Failed to read flowfile content.");
-                        session.transfer(flowFile, FAILURE);
+                        records.set(splitter.write(batch.timeReads(inputStream), outputStream, headerBytes, extensions, msgBudget, batch));
+                    } catch (CefLineSplitter.MsgTooLargeException e) {
+                        failure.set(CefWriterMetrics.Failure.MSG_TOO_LARGE);
+                        throw e;
+                    } catch (CefRecordFitter.RecordTooLargeException e) {
+                        failure.set(CefWriterMetrics.Failure.RECORD_TOO_LARGE);
+                        throw e;
                     }
                 }
             });
+        } catch (Exception ex) {
+            routeToFailure(session, writeFailure(flowFile, failure.get(), ex, batch));
+            return;
+        }
+        batch.time(CefWriterMetrics.Stage.WRITE, start);
+
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put(CoreAttributes.MIME_TYPE.key(), "text/plain");
+        attributes.put("record.count", String.valueOf(records.get()));
+        session.transfer(session.putAllAttributes(cefF, attributes), SUCCESS);
+    }
+
+    //Converts a single flowfile to CEF, and to LEEF if it is written as well, routing it to either success or failure. Every path ends in
+    //exactly one transfer of the flowfile, so a bad event never makes the session fail
+    private void convert(final ProcessSession session, final FlowFile flowFile, final CefWriterMetrics.Batch batch) {
+        final CefRendering[] renderings = renderings();
+        final Rejection rejection = renderFields(flowFile, renderings, contentAsMsg, batch);
+        if (rejection != null) {
+            routeToFailure(session, rejection);
+            return;
         }
 
-        for ( Map.Entry< PropertyDescriptor, String > entry : context.getProperties().entrySet() ){
-            PropertyDescriptor dynamicProps = entry.getKey();
-            if(dynamicProps.isDynamic()) {
-                final String PROPERTY_NAME  = dynamicProps.getName();
-                final String PROPERTY_VALUE = formatText(context.getProperty(PROPERTY_NAME).evaluateAttributeExpressions(flowFile).getValue());
-                fieldJ.add(PROPERTY_NAME.strip() + "=" +PROPERTY_VALUE.strip());
+        //The LEEF record is written to a clone first, so that a failure of either record leaves the flowfile as it was
+        final long start = batch.start();
+        FlowFile leefF = null;
+        if (renderings.length > 1) {
+            final FlowFile clone = session.clone(flowFile);
+            final AtomicReference<CefWriterMetrics.Failure> failure = new AtomicReference<>();
+            try {
+                leefF = writeInPlace(session, clone, renderings[1], failure, batch);
+            } catch (Exception ex) {
+                session.remove(clone);
+                routeToFailure(session, writeFailure(flowFile, failure.get(), ex, batch));
+                return;
             }
         }
-        cefJ.add(fieldJ.toString());
-        FlowFile cefF = session.create(flowFile);
-        cefF = session.write(cefF, new OutputStreamCallback() {
+
+        final AtomicReference<CefWriterMetrics.Failure> failure = new AtomicReference<>();
+        FlowFile cefF;
+        try {
+            cefF = writeInPlace(session, flowFile, renderings[0], failure, batch);
+        } catch (Exception ex) {
+            if (leefF != null) {
+                session.remove(leefF);
+            }
+            routeToFailure(session, writeFailure(flowFile, failure.get(), ex, batch));
+            return;
+        }
+        batch.time(CefWriterMetrics.Stage.WRITE, start);
+        batch.record(cefF.getSize());
+
+        if (leefF != null) {
+            session.transfer(leefF, LEEF);
+        }
+        session.transfer(cefF, SUCCESS);
+    }
+
+    //Replaces the content with the record of the rendering. With content as msg, the content is escaped and streamed between the header
+    //and the remaining extension fields
+    private FlowFile writeInPlace(final ProcessSession session, final FlowFile flowFile, final CefRendering rendering,
+                                  final AtomicReference<CefWriterMetrics.Failure> failure, final CefWriterMetrics.Batch batch) {
+        if(contentAsMsg){
+            return session.write(flowFile, new StreamCallback() {
+                @Override
+                public void process(InputStream inputStream, OutputStream outputStream) throws IOException {
+                    writeRecord(inputStream, outputStream, rendering, failure, batch);
+                }
+            });
+        }
+        return session.write(flowFile, new OutputStreamCallback() {
             @Override
             public void process(OutputStream outputStream) throws IOException {
-                try{
-                    outputStream.write(cefJ.toString().getBytes());
-                }catch(Exception ex){
-                    ex.printStackTrace();
-                    getLogger().error("Failed to write CEF record to new flowfile content.");
-                    session.transfer(flowFile, FAILURE);
-                }
+                writeRecord(null, outputStream, rendering, failure, batch);
             }
         });
+    }
 
-        session.remove(flowFile);
-        session.transfer(cefF, SUCCESS);
+    //Writes the complete record. The content is only read when it is used as msg. The msg is limited by the maximum msg size and by the
+    //budget the record size leaves for it, whichever is smaller, and that limit decides whether an oversize msg is truncated. The record
+    //is assembled in the record buffer of the rendering and written with a single call, a streamed msg is written past it so that large
+    //content is never held in memory. Without an output the whole record is left in the buffer, to be framed or fingerprinted
+    private void writeRecord(final InputStream content, final OutputStream out, final CefRendering rendering,
+                             final AtomicReference<CefWriterMetrics.Failure> failure, final CefWriterMetrics.Batch batch) throws IOException {
+        final CefRecordFitter.Fit fit = rendering.fit;
+        final CefRecordBuffer record = rendering.record;
+        record.reset();
+        rendering.header.writeTo(record);
+        if (contentAsMsg) {
+            record.write(MSG_KEY, 0, MSG_KEY.length);
+            if (out != null) {
+                record.writeTo(out);
+                record.reset();
+            }
+            final long maxMsgSize = this.maxMsgSize;
+            final boolean recordLimited = fit.msgBudget < maxMsgSize;
+            if (CefEscaper.escapeStream(rendering.format.valueMode(), batch.timeReads(content), out != null ? out : record, Math.min(maxMsgSize, fit.msgBudget),
+                    rendering.format == CefFormat.CEF ? batch::addEscaped : null, rendering.streamBuffers)
+                    && !(recordLimited ? recordFitter.truncatesMsg() : truncateMsg)) {
+                if (recordLimited) {
+                    failure.set(CefWriterMetrics.Failure.RECORD_TOO_LARGE);
+                    throw new CefRecordFitter.RecordTooLargeException("Flowfile content does not fit into the maximum record size of " + maxRecordSize + " bytes");
+                }
+                failure.set(CefWriterMetrics.Failure.MSG_TOO_LARGE);
+                throw new IOException("Flowfile content exceeds the maximum msg size of " + maxMsgSize + " bytes");
+            }
+            if (fit.extensionsLength > 0) {
+                record.write(rendering.format.delimiter());
+            }
+        }
+        record.write(fit.extensions, 0, fit.extensionsLength);
+        if (out != null) {
+            record.writeTo(out);
+        }
+    }
+
+    //Logs and counts a failed write, and returns the rejection of the flowfile. An oversize msg names the msg field
+    private Rejection writeFailure(final FlowFile flowFile, final CefWriterMetrics.Failure failure, final Exception ex, final CefWriterMetrics.Batch batch) {
+        if (failure == CefWriterMetrics.Failure.MSG_TOO_LARGE) {
+            getLogger().warn("Flowfile content is larger than the configured maximum msg size. Routing {} to failure.", flowFile);
+            return reject(flowFile, CefWriterMetrics.Failure.MSG_TOO_LARGE, "msg", ex, batch);
+        } else if (failure == CefWriterMetrics.Failure.RECORD_TOO_LARGE) {
+            getLogger().warn("Record of {} does not fit into the configured maximum record size. Routing to failure.", flowFile);
+            return reject(flowFile, CefWriterMetrics.Failure.RECORD_TOO_LARGE, null, ex, batch);
+        }
+        getLogger().error("Failed to write CEF record to flowfile content.", ex);
+        return reject(flowFile, CefWriterMetrics.Failure.WRITE_ERROR, null, ex, batch);
+    }
+
+    //Counts the records of the queued flowfiles into the open aggregates and removes the flowfiles, then writes the records of the
+    //aggregates that have closed to a single output flowfile. The open aggregates are stored as processor state in the same commit that removes the flowfiles, so no event is lost between a commit
+    //and a crash. Tasks aggregate one at a time, so every commit stores the aggregates as they are after it, and a failed commit restores
+    //the aggregates as they were before it. Returns whether there was anything to aggregate or write
+    private boolean aggregate(final ProcessContext context, final ProcessSession session) {
+        final CefAggregator aggregator = this.aggregator;
+        synchronized (aggregator) {
+            final List<CefAggregator.Aggregate> committed = aggregator.snapshot();
+            try {
+                final boolean aggregated = aggregate(context, session, aggregator);
+                if (aggregated) {
+                    session.setState(aggregator.toState(), Scope.LOCAL);
+                    session.commitAsync(() -> { }, failure -> aggregator.reset(committed));
+                }
+                return aggregated;
+            } catch (final IOException | RuntimeException e) {
+                aggregator.reset(committed);
+                throw e instanceof ProcessException ? (ProcessException) e : new ProcessException("Failed to aggregate records", e);
+            }
+        }
+    }
+
+    private boolean aggregate(final ProcessContext context, final ProcessSession session, final CefAggregator aggregator) {
+        final List<FlowFile> flowFiles = session.get(context.getProperty(BATCH_SIZE).asInteger());
+        final CefWriterMetrics.Batch batch = new CefWriterMetrics.Batch();
+        final List<FlowFile> aggregated = new ArrayList<>();
+        //The flowfiles of this session by their aggregate, to join them into its record if it closes in this session
+        final Map<CefAggregator.Aggregate, List<FlowFile>> sources = new IdentityHashMap<>();
+        final List<Rejection> failed = new ArrayList<>();
+        final CefRendering[] renderings = renderingPool.get();
+        final CefRendering rendering = renderings[0];
+
+        for (final FlowFile flowFile : flowFiles) {
+            rendering.reset();
+            final Rejection rejection = renderFields(flowFile, renderings, contentAsMsg, batch);
+            if (rejection != null) {
+                failed.add(rejection);
+                continue;
+            }
+            final AtomicReference<CefWriterMetrics.Failure> failure = new AtomicReference<>();
+            final long start = batch.start();
+            try {
+                if (contentAsMsg) {
+                    session.read(flowFile, new InputStreamCallback() {
+                        @Override
+                        public void process(InputStream inputStream) throws IOException {
+                            writeRecord(inputStream, null, rendering, failure, batch);
+                        }
+                    });
+                } else {
+                    writeRecord(null, null, rendering, failure, batch);
+                }
+            } catch (Exception ex) {
+                failed.add(writeFailure(flowFile, failure.get(), ex, batch));
+                continue;
+            }
+
+            final CefRecordBuffer record = rendering.record;
+            final long fingerprint = aggregationKeys == null
+                    ? CefAggregator.fingerprint(CefAggregator.fingerprint(), record.array(), 0, record.size())
+                    : fingerprint(rendering);
+            //Without aggregation keys the whole record is the identity of the event, so colliding fingerprints are told apart by it
+            final CefAggregator.Aggregate aggregate = aggregator.add(fingerprint, record.array(), record.size(), aggregationKeys == null,
+                    record.size() > rendering.header.size(), rendering.eventTime, System.currentTimeMillis());
+            if (aggregate.count() > 1) {
+                batch.aggregated();
+            }
+            batch.time(CefWriterMetrics.Stage.WRITE, start);
+            aggregated.add(flowFile);
+            sources.computeIfAbsent(aggregate, key -> new ArrayList<>()).add(flowFile);
+        }
+        for (final Rejection rejection : failed) {
+            routeToFailure(session, rejection);
+        }
+
+        final List<CefAggregator.Aggregate> closed = aggregator.drain(System.currentTimeMillis());
+        if (!closed.isEmpty()) {
+            FlowFile output = session.create();
+            output = session.write(output, new OutputStreamCallback() {
+                @Override
+                public void process(OutputStream outputStream) throws IOException {
+                    for (final CefAggregator.Aggregate aggregate : closed) {
+                        final byte[] aggregatedRecord = aggregate.toRecord();
+                        if (octetCounting) {
+                            outputStream.write((aggregatedRecord.length + " ").getBytes(StandardCharsets.US_ASCII));
+                        }
+                        outputStream.write(aggregatedRecord);
+                        if (!octetCounting) {
+                            outputStream.write('\n');
+                        }
+                        batch.record(aggregatedRecord.length);
+                    }
+                }
+            });
+            final Map<String, String> attributes = new HashMap<>();
+            attributes.put(CoreAttributes.MIME_TYPE.key(), "text/plain");
+            attributes.put("record.count", String.valueOf(closed.size()));
+            output = session.putAllAttributes(output, attributes);
+            //Flowfiles of earlier sessions are already gone, their events live on in the stored aggregates
+            final List<FlowFile> joined = new ArrayList<>();
+            for (final CefAggregator.Aggregate aggregate : closed) {
+                joined.addAll(sources.getOrDefault(aggregate, Collections.emptyList()));
+            }
+            if (!joined.isEmpty()) {
+                session.getProvenanceReporter().join(joined, output);
+            }
+            session.transfer(output, SUCCESS);
+        }
+        session.remove(aggregated);
+        metrics.publish(batch, session, getLogger());
+        return !flowFiles.isEmpty() || !closed.isEmpty();
+    }
+
+    //The fingerprint of the header and the selected fields as they were rendered, before they were fitted into the maximum record size.
+    //A streamed msg is taken from the record, where it sits between the header and the extension fields
+    private long fingerprint(final CefRendering rendering) {
+        final int headerLength = rendering.header.size();
+        final CefRecordFitter.Fit fit = rendering.fit;
+        final CefExtensionPlan.Fields fields = rendering.fields;
+        long fingerprint = CefAggregator.fingerprint(CefAggregator.fingerprint(), rendering.header.array(), 0, headerLength);
+        if (contentAsMsg && aggregationKeys.contains("msg")) {
+            final int msgEnd = rendering.record.size() - fit.extensionsLength - (fit.extensionsLength > 0 ? 1 : 0);
+            fingerprint = CefAggregator.fingerprint(fingerprint, rendering.record.array(), headerLength, msgEnd);
+        }
+        for (int i = 0; i < fields.count(); i++) {
+            if (aggregationKeys.contains(fields.key(i))) {
+                fingerprint = CefAggregator.fingerprint(fingerprint, rendering.extensions.array(), fields.start(i), fields.end(i));
+            }
+        }
+        return fingerprint;
+    }
+
+    //Appends the records of the queued flowfiles to as few output flowfiles as the size limit allows. The flowfiles are left in the queue
+    //until a full bundle is available or the oldest of them has waited for the maximum bundle age
+    private void bundle(final ProcessContext context, final ProcessSession session) {
+        final List<FlowFile> flowFiles = session.get(maxBundleRecords);
+        if (flowFiles.isEmpty()) {
+            return;
+        }
+        if (!isBundleReady(flowFiles)) {
+            session.rollback();
+            context.yield();
+            return;
+        }
+
+        final CefWriterMetrics.Batch batch = new CefWriterMetrics.Batch();
+        final List<Rejection> failed = new ArrayList<>();
+        int next = 0;
+        while (next < flowFiles.size()) {
+            final BundleCallback callback = new BundleCallback(session, flowFiles, next, failed, batch);
+            FlowFile bundle = session.create();
+            bundle = session.write(bundle, callback);
+            next = callback.next;
+            if (!callback.bundled.isEmpty()) {
+                recordOverhead = Math.max(0, callback.overhead / callback.bundled.size());
+            }
+
+            if (callback.bundled.isEmpty()) {
+                session.remove(bundle);
+                continue;
+            }
+            final Map<String, String> attributes = new HashMap<>();
+            attributes.put(CoreAttributes.MIME_TYPE.key(), "text/plain");
+            attributes.put("record.count", String.valueOf(callback.bundled.size()));
+            bundle = session.putAllAttributes(bundle, attributes);
+            session.getProvenanceReporter().join(callback.bundled, bundle);
+            session.transfer(bundle, SUCCESS);
+            session.remove(callback.bundled);
+        }
+        for (final Rejection rejection : failed) {
+            routeToFailure(session, rejection);
+        }
+        metrics.publish(batch, session, getLogger());
+    }
+
+    private boolean isBundleReady(final List<FlowFile> flowFiles) {
+        if (flowFiles.size() >= maxBundleRecords) {
+            return true;
+        }
+        final long now = System.currentTimeMillis();
+        long contentSize = 0;
+        for (final FlowFile flowFile : flowFiles) {
+            //Falls back to the entry date for flowfiles without a recorded queue date
+            final Long queued = flowFile.getLastQueueDate();
+            final long waitingSince = queued == null || queued == 0 ? flowFile.getEntryDate() : queued;
+            if (now - waitingSince >= maxBundleAgeMillis) {
+                return true;
+            }
+            if (contentAsMsg) {
+                contentSize += flowFile.getSize();
+            }
+        }
+        //Until a first bundle has been written by count or age, only the content is known to add to its size
+        return contentSize + flowFiles.size() * recordOverhead >= maxBundleSize;
+    }
+
+    //Writes framed records into one bundle until the next record would exceed the maximum bundle size. Every record is rendered
+    //into a buffer first, so a failed record never leaves partial output behind and octet counting knows the record length
+    private final class BundleCallback implements OutputStreamCallback {
+        private final ProcessSession session;
+        private final List<FlowFile> flowFiles;
+        private final List<Rejection> failed;
+        private final List<FlowFile> bundled = new ArrayList<>();
+        private final CefWriterMetrics.Batch batch;
+        private int next;
+        private long overhead;
+
+        private BundleCallback(final ProcessSession session, final List<FlowFile> flowFiles, final int first, final List<Rejection> failed,
+                               final CefWriterMetrics.Batch batch) {
+            this.session = session;
+            this.flowFiles = flowFiles;
+            this.next = first;
+            this.failed = failed;
+            this.batch = batch;
+        }
+
+        @Override
+        public void process(final OutputStream outputStream) throws IOException {
+            final CefRendering[] renderings = renderingPool.get();
+            final CefRendering rendering = renderings[0];
+            final CefRecordBuffer record = rendering.record;
+            long bundleSize = 0;
+
+            for (; next < flowFiles.size(); next++) {
+                final FlowFile flowFile = flowFiles.get(next);
+                rendering.reset();
+                final Rejection rejection = renderFields(flowFile, renderings, contentAsMsg, batch);
+                if (rejection != null) {
+                    failed.add(rejection);
+                    continue;
+                }
+                final AtomicReference<CefWriterMetrics.Failure> failure = new AtomicReference<>();
+
+                final long start = batch.start();
+                try {
+                    if (contentAsMsg) {
+                        session.read(flowFile, new InputStreamCallback() {
+                            @Override
+                            public void process(InputStream inputStream) throws IOException {
+                                writeRecord(inputStream, null, rendering, failure, batch);
+                            }
+                        });
+                    } else {
+                        writeRecord(null, null, rendering, failure, batch);
+                    }
+                } catch (Exception ex) {
+                    failed.add(writeFailure(flowFile, failure.get(), ex, batch));
+                    continue;
+                }
+
+                final byte[] prefix = octetCounting ? (record.size() + " ").getBytes(StandardCharsets.US_ASCII) : NO_PREFIX;
+                final long framedSize = prefix.length + record.size() + (octetCounting ? 0 : 1);
+                if (!bundled.isEmpty() && bundleSize + framedSize > maxBundleSize) {
+                    return;
+                }
+                outputStream.write(prefix);
+                record.writeTo(outputStream);
+                if (!octetCounting) {
+                    outputStream.write('\n');
+                }
+                batch.time(CefWriterMetrics.Stage.WRITE, start);
+                batch.record(record.size());
+                bundleSize += framedSize;
+                overhead += framedSize - (contentAsMsg ? flowFile.getSize() : 0);
+                bundled.add(flowFile);
+            }
+        }
+    }
+
+    //Why a flowfile is routed to failure. Flowfiles of a batch, bundle or aggregation are rejected on their own and routed once the
+    //others are written, so their neighbours still succeed in the same session
+    private static final class Rejection {
+        private final FlowFile flowFile;
+        private final CefWriterMetrics.Failure failure;
+        private final String field;
+        private final String message;
+
+        private Rejection(final FlowFile flowFile, final CefWriterMetrics.Failure failure, final String field, final String message) {
+            this.flowFile = flowFile;
+            this.failure = failure;
+            this.field = field;
+            this.message = message;
+        }
     }
 }
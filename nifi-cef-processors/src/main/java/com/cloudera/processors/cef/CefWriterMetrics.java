@@ -0,0 +1,299 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.ProcessSession;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+//Instrumentation of the conversion stages. Every session collects its measurements in a plain, unshared Batch, which is published
+//once per session as NiFi counters and added to striped accumulators. The accumulators only back the optional periodic summary,
+//so the per record cost is a few nanoTime calls and field increments
+final class CefWriterMetrics {
+
+    enum Stage {
+        HEADER("Header"),
+        EXTENSIONS("Extensions"),
+        CONTENT_READ("Content Read"),
+        WRITE("Write");
+
+        private final String displayName;
+
+        Stage(final String displayName) {
+            this.displayName = displayName;
+        }
+    }
+
+    enum Failure {
+        INVALID_FIELD("Invalid Field"),
+        MSG_TOO_LARGE("msg Too Large"),
+        RECORD_TOO_LARGE("Record Too Large"),
+        LOOKUP_FAILED("Lookup Failed"),
+        WRITE_ERROR("Write Error");
+
+        private final String displayName;
+
+        Failure(final String displayName) {
+            this.displayName = displayName;
+        }
+
+        String displayName() {
+            return displayName;
+        }
+    }
+
+    //Upper bounds of the record size buckets, every bucket is four times as large as the previous one. The last bucket has no bound
+    private static final long[] SIZE_LIMITS = {256, 1024, 4096, 16384, 65536, 262144, 1048576};
+    private static final String[] SIZE_NAMES = {"< 256 B", "< 1 KB", "< 4 KB", "< 16 KB", "< 64 KB", "< 256 KB", "< 1 MB", ">= 1 MB"};
+
+    private static final String PREFIX = "CEF ";
+
+    private final LongAdder[] stageNanos = adders(Stage.values().length);
+    private final LongAdder[] sizes = adders(SIZE_NAMES.length);
+    private final LongAdder[] failures = adders(Failure.values().length);
+    private final LongAdder records = new LongAdder();
+    private final LongAdder recordBytes = new LongAdder();
+    private final LongAdder escaped = new LongAdder();
+    private final LongAdder aggregated = new LongAdder();
+    private final LongAdder headerCacheHits = new LongAdder();
+    private final LongAdder headerCacheMisses = new LongAdder();
+    private final LongAdder lookupCacheHits = new LongAdder();
+    private final LongAdder lookupCacheMisses = new LongAdder();
+
+    private final long summaryIntervalNanos;
+    private final AtomicLong nextSummary;
+
+    CefWriterMetrics(final long summaryIntervalMillis) {
+        this.summaryIntervalNanos = TimeUnit.MILLISECONDS.toNanos(summaryIntervalMillis);
+        this.nextSummary = new AtomicLong(System.nanoTime() + summaryIntervalNanos);
+    }
+
+    private static LongAdder[] adders(final int count) {
+        final LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    static int sizeBucket(final long size) {
+        int bucket = 0;
+        while (bucket < SIZE_LIMITS.length && size >= SIZE_LIMITS[bucket]) {
+            bucket++;
+        }
+        return bucket;
+    }
+
+    //Adjusts the session counters by the measurements of the batch, then logs the summary if one is due
+    void publish(final Batch batch, final ProcessSession session, final ComponentLog logger) {
+        for (final Stage stage : Stage.values()) {
+            final long nanos = batch.stageNanos[stage.ordinal()];
+            if (nanos > 0) {
+                session.adjustCounter(PREFIX + stage.displayName + " Nanos", nanos, false);
+                stageNanos[stage.ordinal()].add(nanos);
+            }
+        }
+        for (int i = 0; i < SIZE_NAMES.length; i++) {
+            if (batch.sizes[i] > 0) {
+                session.adjustCounter(PREFIX + "Records " + SIZE_NAMES[i], batch.sizes[i], false);
+                sizes[i].add(batch.sizes[i]);
+            }
+        }
+        for (final Failure failure : Failure.values()) {
+            final long count = batch.failures[failure.ordinal()];
+            if (count > 0) {
+                session.adjustCounter(PREFIX + "Failures: " + failure.displayName, count, false);
+                failures[failure.ordinal()].add(count);
+            }
+        }
+        if (batch.records > 0) {
+            session.adjustCounter(PREFIX + "Records Written", batch.records, false);
+            session.adjustCounter(PREFIX + "Bytes Written", batch.recordBytes, false);
+            records.add(batch.records);
+            recordBytes.add(batch.recordBytes);
+        }
+        if (batch.escaped > 0) {
+            session.adjustCounter(PREFIX + "Escaped Characters", batch.escaped, false);
+            escaped.add(batch.escaped);
+        }
+        if (batch.aggregated > 0) {
+            session.adjustCounter(PREFIX + "Records Aggregated", batch.aggregated, false);
+            aggregated.add(batch.aggregated);
+        }
+        if (batch.headerCacheHits > 0 || batch.headerCacheMisses > 0) {
+            session.adjustCounter(PREFIX + "Header Cache Hits", batch.headerCacheHits, false);
+            session.adjustCounter(PREFIX + "Header Cache Misses", batch.headerCacheMisses, false);
+            headerCacheHits.add(batch.headerCacheHits);
+            headerCacheMisses.add(batch.headerCacheMisses);
+        }
+        if (batch.lookupCacheHits > 0 || batch.lookupCacheMisses > 0) {
+            session.adjustCounter(PREFIX + "Lookup Cache Hits", batch.lookupCacheHits, false);
+            session.adjustCounter(PREFIX + "Lookup Cache Misses", batch.lookupCacheMisses, false);
+            lookupCacheHits.add(batch.lookupCacheHits);
+            lookupCacheMisses.add(batch.lookupCacheMisses);
+        }
+
+        if (summaryIntervalNanos > 0) {
+            final long now = System.nanoTime();
+            final long due = nextSummary.get();
+            if (now - due >= 0 && nextSummary.compareAndSet(due, now + summaryIntervalNanos)) {
+                logger.info(summary());
+            }
+        }
+    }
+
+    //Describes everything measured since the previous summary and starts a new window
+    String summary() {
+        final long recordCount = records.sumThenReset();
+        final long divisor = Math.max(recordCount, 1);
+        final StringBuilder sb = new StringBuilder("CEF conversion summary: ");
+        sb.append(recordCount).append(" records, ").append(recordBytes.sumThenReset() / divisor).append(" bytes per record on average, ")
+                .append(escaped.sumThenReset()).append(" escaped characters, ").append(aggregated.sumThenReset())
+                .append(" records aggregated into others, ").append(headerCacheHits.sumThenReset()).append(" header cache hits and ")
+                .append(headerCacheMisses.sumThenReset()).append(" misses, ").append(lookupCacheHits.sumThenReset()).append(" lookup cache hits and ")
+                .append(lookupCacheMisses.sumThenReset()).append(" misses. Average nanos per record:");
+        for (final Stage stage : Stage.values()) {
+            sb.append(' ').append(stage.displayName).append('=').append(stageNanos[stage.ordinal()].sumThenReset() / divisor);
+        }
+        sb.append(". Record sizes:");
+        for (int i = 0; i < SIZE_NAMES.length; i++) {
+            sb.append(' ').append(SIZE_NAMES[i]).append('=').append(sizes[i].sumThenReset());
+        }
+        sb.append(". Failures:");
+        for (final Failure failure : Failure.values()) {
+            sb.append(' ').append(failure.displayName).append('=').append(failures[failure.ordinal()].sumThenReset());
+        }
+        return sb.toString();
+    }
+
+    //The measurements of a single session, only ever touched by the thread running it
+    static final class Batch {
+        private final long[] stageNanos = new long[Stage.values().length];
+        private final long[] sizes = new long[SIZE_NAMES.length];
+        private final long[] failures = new long[Failure.values().length];
+        private long records;
+        private long recordBytes;
+        private long escaped;
+        private long aggregated;
+        private long headerCacheHits;
+        private long headerCacheMisses;
+        private long lookupCacheHits;
+        private long lookupCacheMisses;
+
+        //Starts timing a stage. The content reads timed meanwhile are only counted as CONTENT_READ, so the stages never overlap
+        long start() {
+            return System.nanoTime() - stageNanos[Stage.CONTENT_READ.ordinal()];
+        }
+
+        void time(final Stage stage, final long start) {
+            stageNanos[stage.ordinal()] += start() - start;
+        }
+
+        private void timeRead(final long startNanos) {
+            stageNanos[Stage.CONTENT_READ.ordinal()] += System.nanoTime() - startNanos;
+        }
+
+        long nanos(final Stage stage) {
+            return stageNanos[stage.ordinal()];
+        }
+
+        //Wraps the content stream, so that the time spent waiting for the content repository is told apart from the escaping
+        InputStream timeReads(final InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    final long start = System.nanoTime();
+                    final int read = super.read();
+                    timeRead(start);
+                    return read;
+                }
+
+                @Override
+                public int read(final byte[] b, final int off, final int len) throws IOException {
+                    final long start = System.nanoTime();
+                    final int read = super.read(b, off, len);
+                    timeRead(start);
+                    return read;
+                }
+            };
+        }
+
+        void addEscaped(final long count) {
+            escaped += count;
+        }
+
+        void record(final long size) {
+            records++;
+            recordBytes += size;
+            sizes[sizeBucket(size)]++;
+        }
+
+        //An event counted into the record of an earlier one instead of being written
+        void aggregated() {
+            aggregated++;
+        }
+
+        //A header field written from the cache, or evaluated because its attribute values were not cached
+        void headerCacheHit() {
+            headerCacheHits++;
+        }
+
+        void headerCacheMiss() {
+            headerCacheMisses++;
+        }
+
+        //An event enriched from the lookup cache, or looked up because its key was not cached or had expired
+        void lookupCacheHit() {
+            lookupCacheHits++;
+        }
+
+        void lookupCacheMiss() {
+            lookupCacheMisses++;
+        }
+
+        void failure(final Failure failure) {
+            failures[failure.ordinal()]++;
+        }
+
+        //Adds the measurements of a batch taken on another thread
+        void merge(final Batch other) {
+            for (int i = 0; i < stageNanos.length; i++) {
+                stageNanos[i] += other.stageNanos[i];
+            }
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] += other.sizes[i];
+            }
+            for (int i = 0; i < failures.length; i++) {
+                failures[i] += other.failures[i];
+            }
+            records += other.records;
+            recordBytes += other.recordBytes;
+            escaped += other.escaped;
+            aggregated += other.aggregated;
+            headerCacheHits += other.headerCacheHits;
+            headerCacheMisses += other.headerCacheMisses;
+            lookupCacheHits += other.lookupCacheHits;
+            lookupCacheMisses += other.lookupCacheMisses;
+        }
+    }
+}
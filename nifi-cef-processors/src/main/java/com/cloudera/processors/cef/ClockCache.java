@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+//A thread safe cache with a fixed maximum number of entries that evicts the entries not used recently first. It approximates least
+//recently used eviction with the CLOCK algorithm: a hand sweeps the entries in the order they were added, gives every entry used since
+//it last passed a second chance, and evicts the first one that was not used. A hit takes no lock and only marks its entry as used, so
+//concurrent tasks hitting the same entries do not contend. Adding an entry takes a lock
+final class ClockCache<K, V> {
+
+    private final int maxEntries;
+    private final ConcurrentHashMap<K, Entry<K, V>> entries;
+    //The entries in the order the hand sweeps them, guarded by its own lock
+    private final List<Entry<K, V>> ring = new ArrayList<>();
+    private int hand;
+
+    ClockCache(final int maxEntries) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.entries = new ConcurrentHashMap<>(Math.min(this.maxEntries, 1024));
+    }
+
+    //Returns the cached value, or null on a miss
+    V getIfPresent(final K key) {
+        final Entry<K, V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        //Only the first hit after the hand passed writes, so hot entries are not written on every hit
+        if (!entry.used) {
+            entry.used = true;
+        }
+        return entry.value;
+    }
+
+    //Adds or replaces a value. A new entry in a full cache evicts the first entry the hand finds unused
+    void put(final K key, final V value) {
+        synchronized (ring) {
+            final Entry<K, V> existing = entries.get(key);
+            if (existing != null) {
+                existing.value = value;
+                return;
+            }
+            final Entry<K, V> entry = new Entry<>(key, value);
+            if (ring.size() < maxEntries) {
+                ring.add(entry);
+            } else {
+                Entry<K, V> candidate;
+                while ((candidate = ring.get(hand)).used) {
+                    candidate.used = false;
+                    hand = (hand + 1) % maxEntries;
+                }
+                entries.remove(candidate.key);
+                ring.set(hand, entry);
+                hand = (hand + 1) % maxEntries;
+            }
+            entries.put(key, entry);
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private static final class Entry<K, V> {
+        private final K key;
+        private volatile V value;
+        private volatile boolean used;
+
+        private Entry(final K key, final V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.SupportsBatching;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.stream.io.StreamUtils;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+@SupportsBatching
+@InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+@Tags({"cef", "SIEM", "parse", "attributes", "Arcsight"})
+@CapabilityDescription("Parses the CEF record in the flowfile content into flowfile attributes. The header fields are written to 'cef.header.*' attributes and "+
+        "every key/value pair of the Extension field to a 'cef.extension.<key>' attribute. The content is left unchanged. To parse flowfiles holding "+
+        "many records, use the CefRecordReader controller service with a record processor instead.")
+@WritesAttributes({
+        @WritesAttribute(attribute = "cef.header.version", description = "The CEF version, for example CEF:0"),
+        @WritesAttribute(attribute = "cef.header.deviceVendor", description = "The device vendor"),
+        @WritesAttribute(attribute = "cef.header.deviceProduct", description = "The device product"),
+        @WritesAttribute(attribute = "cef.header.deviceVersion", description = "The device version"),
+        @WritesAttribute(attribute = "cef.header.deviceEventClassId", description = "The device event class ID"),
+        @WritesAttribute(attribute = "cef.header.name", description = "The event name"),
+        @WritesAttribute(attribute = "cef.header.severity", description = "The event severity"),
+        @WritesAttribute(attribute = "cef.header.eventDate", description = "The event date of a complex header"),
+        @WritesAttribute(attribute = "cef.header.eventHost", description = "The event host of a complex header"),
+        @WritesAttribute(attribute = "cef.extension.*", description = "One attribute for every key/value pair of the Extension field")})
+@SeeAlso(CefWriter.class)
+public class ParseCef extends AbstractProcessor {
+
+    public static final String HEADER_ATTRIBUTE_PREFIX = "cef.header.";
+    public static final String EXTENSION_ATTRIBUTE_PREFIX = "cef.extension.";
+
+    public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor
+            .Builder().name("BATCH_SIZE")
+            .displayName("Batch Size")
+            .description("The maximum number of flowfiles to pull from the incoming queue and parse in a single session")
+            .required(true)
+            .defaultValue("100")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MAX_RECORD_SIZE = new PropertyDescriptor
+            .Builder().name("MAX_RECORD_SIZE")
+            .displayName("Max Record Size")
+            .description("The largest flowfile content that is parsed. Larger flowfiles are routed to failure without being read, so a single "+
+                    "outlier neither needs a buffer of its size nor leaves one behind in the parser of the thread. The content is read into a "+
+                    "single array, so the size cannot exceed 2 GB.")
+            .required(true)
+            .defaultValue("1 MB")
+            .addValidator(StandardValidators.createDataSizeBoundsValidator(1, Integer.MAX_VALUE - 8))
+            .build();
+
+    public static final Relationship SUCCESS = new Relationship.Builder()
+            .name("Success")
+            .description("The flowfile content has been parsed into attributes")
+            .build();
+
+    public static final Relationship FAILURE = new Relationship.Builder()
+            .name("Failure")
+            .description("The flowfile content is not a valid CEF record, or is larger than the maximum record size")
+            .build();
+
+    private static final String[] HEADER_ATTRIBUTES = headerAttributes();
+
+    private List<PropertyDescriptor> properties;
+    private Set<Relationship> relationships;
+
+    //The parser reuses its buffers, so every thread gets its own
+    private final ThreadLocal<CefParser> parsers = ThreadLocal.withInitial(CefParser::new);
+
+    private static String[] headerAttributes() {
+        final String[] names = CefParser.headerNames();
+        for (int i = 0; i < names.length; i++) {
+            names[i] = HEADER_ATTRIBUTE_PREFIX + names[i];
+        }
+        return names;
+    }
+
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+        properties = Collections.unmodifiableList(Arrays.asList(BATCH_SIZE, MAX_RECORD_SIZE));
+
+        relationships = new HashSet<>();
+        relationships.add(SUCCESS);
+        relationships.add(FAILURE);
+        relationships = Collections.unmodifiableSet(relationships);
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return relationships;
+    }
+
+    @Override
+    public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return properties;
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) {
+        final List<FlowFile> flowFiles = session.get(context.getProperty(BATCH_SIZE).asInteger());
+        if (flowFiles.isEmpty()) {
+            return;
+        }
+
+        final CefParser parser = parsers.get();
+        final long maxRecordSize = context.getProperty(MAX_RECORD_SIZE).asDataSize(DataUnit.B).longValue();
+        for (final FlowFile flowFile : flowFiles) {
+            if (flowFile.getSize() > maxRecordSize) {
+                getLogger().error("{} of {} bytes exceeds the maximum record size of {} bytes. Routing to failure.", flowFile, flowFile.getSize(), maxRecordSize);
+                session.transfer(flowFile, FAILURE);
+                continue;
+            }
+            final byte[] content = new byte[(int) flowFile.getSize()];
+            session.read(flowFile, (final InputStream in) -> StreamUtils.fillBuffer(in, content));
+
+            //A trailing line break is not part of the record
+            int end = content.length;
+            while (end > 0 && (content[end - 1] == '\n' || content[end - 1] == '\r')) {
+                end--;
+            }
+            try {
+                parser.parse(content, 0, end);
+            } catch (final IllegalArgumentException e) {
+                getLogger().error("{} is not a valid CEF record. Routing to failure.", flowFile, e);
+                session.transfer(flowFile, FAILURE);
+                continue;
+            }
+
+            final Map<String, String> attributes = new HashMap<>();
+            for (int i = 0; i < HEADER_ATTRIBUTES.length; i++) {
+                attributes.put(HEADER_ATTRIBUTES[i], parser.header(i));
+            }
+            if (parser.eventDate() != null) {
+                attributes.put(HEADER_ATTRIBUTE_PREFIX + CefParser.EVENT_DATE, parser.eventDate());
+            }
+            if (parser.eventHost() != null) {
+                attributes.put(HEADER_ATTRIBUTE_PREFIX + CefParser.EVENT_HOST, parser.eventHost());
+            }
+            for (int i = 0; i < parser.extensionCount(); i++) {
+                attributes.put(EXTENSION_ATTRIBUTE_PREFIX + parser.extensionKey(i), parser.extensionValue(i));
+            }
+            session.transfer(session.putAllAttributes(flowFile, attributes), SUCCESS);
+        }
+    }
+}
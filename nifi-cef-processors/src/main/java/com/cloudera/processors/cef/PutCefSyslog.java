@@ -0,0 +1,365 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.SupportsBatching;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.ssl.SSLContextService;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@SupportsBatching
+@InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+@Tags({"cef", "SIEM", "syslog", "put", "tcp", "tls", "udp", "Arcsight"})
+@CapabilityDescription("Sends CEF records to a syslog receiver such as an ArcSight SmartConnector over a pool of persistent TCP, TLS or UDP connections. "+
+        "Flowfiles may hold a single record or a bundle of records written by CefWriter. Every record is framed for the wire on its own, and the writes of "+
+        "many flowfiles are pipelined across the pooled connections.")
+@SeeAlso(CefWriter.class)
+public class PutCefSyslog extends AbstractProcessor {
+
+    public static final String TCP = "TCP";
+    public static final String TLS = "TLS";
+    public static final String UDP = "UDP";
+    public static final String SINGLE_RECORD = "Single record";
+
+
+    public static final PropertyDescriptor HOSTNAME = new PropertyDescriptor
+            .Builder().name("HOSTNAME")
+            .displayName("Hostname")
+            .description("The host name or address of the syslog receiver")
+            .required(true)
+            .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+            .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor PORT = new PropertyDescriptor
+            .Builder().name("PORT")
+            .displayName("Port")
+            .description("The port of the syslog receiver")
+            .required(true)
+            .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+            .addValidator(StandardValidators.PORT_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor PROTOCOL = new PropertyDescriptor
+            .Builder().name("PROTOCOL")
+            .displayName("Protocol")
+            .description("The transport protocol. TLS connections are secured with the SSL Context Service.")
+            .required(true)
+            .allowableValues(TCP, TLS, UDP)
+            .defaultValue(TCP)
+            .build();
+    public static final PropertyDescriptor SSL_CONTEXT_SERVICE = new PropertyDescriptor
+            .Builder().name("SSL_CONTEXT_SERVICE")
+            .displayName("SSL Context Service")
+            .description("The SSL Context Service that provides the key and trust material of TLS connections")
+            .required(true)
+            .identifiesControllerService(SSLContextService.class)
+            .dependsOn(PROTOCOL, TLS)
+            .build();
+    public static final PropertyDescriptor FRAMING = new PropertyDescriptor
+            .Builder().name("FRAMING")
+            .displayName("Framing")
+            .description("How records are separated on TCP and TLS connections. Octet counting prefixes every record with its length in bytes and "+
+                    "a space as described in RFC 6587, newline delimited ends every record with a line feed. UDP sends every record as a datagram of its own.")
+            .required(true)
+            .allowableValues(CefWriter.OCTET_COUNTING_FRAMING, CefWriter.NEWLINE_FRAMING)
+            .defaultValue(CefWriter.OCTET_COUNTING_FRAMING)
+            .build();
+    public static final PropertyDescriptor INPUT_FORMAT = new PropertyDescriptor
+            .Builder().name("INPUT_FORMAT")
+            .displayName("Input Format")
+            .description("How the records are stored in the flowfile content. Either a single record per flowfile, or a bundle of newline delimited "+
+                    "or octet counted records as written by CefWriter in bundle mode.")
+            .required(true)
+            .allowableValues(SINGLE_RECORD, CefWriter.NEWLINE_FRAMING, CefWriter.OCTET_COUNTING_FRAMING)
+            .defaultValue(SINGLE_RECORD)
+            .build();
+    public static final PropertyDescriptor CONNECTION_POOL_SIZE = new PropertyDescriptor
+            .Builder().name("CONNECTION_POOL_SIZE")
+            .displayName("Connection Pool Size")
+            .description("The number of persistent connections to the receiver. Flowfiles are written on all of them in parallel.")
+            .required(true)
+            .defaultValue("4")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor MAX_IN_FLIGHT = new PropertyDescriptor
+            .Builder().name("MAX_IN_FLIGHT")
+            .displayName("Max In-Flight Flowfiles")
+            .description("The maximum number of flowfiles that have been handed to the connections but whose write has not completed yet. "+
+                    "Reading further flowfiles waits until a write completes.")
+            .required(true)
+            .defaultValue("64")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor MAX_PIPELINED_SIZE = new PropertyDescriptor
+            .Builder().name("MAX_PIPELINED_SIZE")
+            .displayName("Max Pipelined Size")
+            .description("The largest flowfile whose framed records are held in memory so that its write overlaps with reading further flowfiles. "+
+                    "Larger flowfiles are framed from their content straight onto a connection while they are read, so they never need to fit in memory.")
+            .required(true)
+            .defaultValue("1 MB")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor
+            .Builder().name("BATCH_SIZE")
+            .displayName("Batch Size")
+            .description("The maximum number of flowfiles to send in a single session")
+            .required(true)
+            .defaultValue("100")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor TIMEOUT = new PropertyDescriptor
+            .Builder().name("TIMEOUT")
+            .displayName("Timeout")
+            .description("The maximum time to wait for room in the in-flight window, for a connection to be established or to become available, "+
+                    "and for the write of a flowfile to complete. A connection whose write does not complete in time is closed.")
+            .required(true)
+            .defaultValue("10 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final Relationship SUCCESS = new Relationship.Builder()
+            .name("Success")
+            .description("All records of the flowfile have been sent")
+            .build();
+    public static final Relationship RETRY = new Relationship.Builder()
+            .name("Retry")
+            .description("The flowfile could not be sent because of a connection problem. Sending it again later may succeed. A write that times out "+
+                    "may still complete afterwards, so records are delivered at least once and a receiver may see some of them twice.")
+            .build();
+    public static final Relationship FAILURE = new Relationship.Builder()
+            .name("Failure")
+            .description("The flowfile content could not be split into records that can be sent. Sending it again will not succeed.")
+            .build();
+
+    private List<PropertyDescriptor> properties;
+    private Set<Relationship> relationships;
+
+    private volatile SyslogConnectionPool pool;
+    private volatile ExecutorService executor;
+    private volatile Semaphore inFlight;
+    private volatile String transitUri;
+    private volatile boolean udp;
+    private volatile boolean octetCounting;
+    private volatile String inputFormat;
+    private volatile long timeoutMillis;
+    private volatile long maxPipelinedSize;
+
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+        properties = Collections.unmodifiableList(Arrays.asList(HOSTNAME, PORT, PROTOCOL, SSL_CONTEXT_SERVICE, FRAMING, INPUT_FORMAT,
+                CONNECTION_POOL_SIZE, MAX_IN_FLIGHT, MAX_PIPELINED_SIZE, BATCH_SIZE, TIMEOUT));
+
+        relationships = new HashSet<>();
+        relationships.add(SUCCESS);
+        relationships.add(RETRY);
+        relationships.add(FAILURE);
+        relationships = Collections.unmodifiableSet(relationships);
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return relationships;
+    }
+
+    @Override
+    public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return properties;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        final String hostname = context.getProperty(HOSTNAME).evaluateAttributeExpressions().getValue();
+        final int port = context.getProperty(PORT).evaluateAttributeExpressions().asInteger();
+        final String protocol = context.getProperty(PROTOCOL).getValue();
+        final int poolSize = context.getProperty(CONNECTION_POOL_SIZE).asInteger();
+
+        timeoutMillis = context.getProperty(TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS);
+        udp = UDP.equals(protocol);
+        octetCounting = CefWriter.OCTET_COUNTING_FRAMING.equals(context.getProperty(FRAMING).getValue());
+        inputFormat = context.getProperty(INPUT_FORMAT).getValue();
+        maxPipelinedSize = context.getProperty(MAX_PIPELINED_SIZE).asDataSize(DataUnit.B).longValue();
+        transitUri = protocol.toLowerCase() + "://" + hostname + ":" + port;
+        inFlight = new Semaphore(context.getProperty(MAX_IN_FLIGHT).asInteger());
+        final SSLContext sslContext = TLS.equals(protocol)
+                ? context.getProperty(SSL_CONTEXT_SERVICE).asControllerService(SSLContextService.class).createContext()
+                : null;
+        pool = new SyslogConnectionPool(protocol, hostname, port, poolSize, (int) timeoutMillis, sslContext);
+        executor = Executors.newFixedThreadPool(poolSize);
+    }
+
+    @OnStopped
+    public void onStopped() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) {
+        final List<FlowFile> flowFiles = session.get(context.getProperty(BATCH_SIZE).asInteger());
+        if (flowFiles.isEmpty()) {
+            return;
+        }
+
+        //Writes are handed to the connection pool as soon as a flowfile has been read, so reading the next flowfile overlaps
+        //with sending the previous ones. The in-flight window bounds the flowfiles held in memory across all concurrent tasks.
+        //Flowfiles too large to be held are framed from their content straight onto a connection instead
+        final SyslogFramer framer = new SyslogFramer(inputFormat, udp, octetCounting);
+        final List<FlowFile> submitted = new ArrayList<>();
+        final List<Future<?>> writes = new ArrayList<>();
+        final List<AtomicBoolean> permits = new ArrayList<>();
+        final long start = System.nanoTime();
+        for (final FlowFile flowFile : flowFiles) {
+            if (flowFile.getSize() > maxPipelinedSize) {
+                stream(session, flowFile, framer);
+                continue;
+            }
+            final SyslogFramer.Buffer messages = new SyslogFramer.Buffer(bufferCapacity(flowFile.getSize()), udp);
+            try {
+                session.read(flowFile, (final InputStream in) -> framer.frame(in, messages));
+            } catch (final IllegalArgumentException e) {
+                getLogger().error("Failed to split {} into CEF records. Routing to failure.", flowFile, e);
+                session.transfer(flowFile, FAILURE);
+                continue;
+            }
+
+            try {
+                if (!inFlight.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    getLogger().warn("No write to {} completed within {} milliseconds to make room for {}. Routing to retry.", transitUri, timeoutMillis, flowFile);
+                    session.transfer(session.penalize(flowFile), RETRY);
+                    continue;
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                session.transfer(session.penalize(flowFile), RETRY);
+                continue;
+            }
+            final SyslogConnectionPool pool = this.pool;
+            //Either the write claims its permit when it starts, or the task that gives up on it before it starts releases the permit
+            final AtomicBoolean claimed = new AtomicBoolean();
+            submitted.add(flowFile);
+            permits.add(claimed);
+            writes.add(executor.submit(() -> {
+                if (!claimed.compareAndSet(false, true)) {
+                    return null;
+                }
+                try {
+                    pool.send(messages::writeTo);
+                } finally {
+                    inFlight.release();
+                }
+                return null;
+            }));
+        }
+
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (int i = 0; i < submitted.size(); i++) {
+            final FlowFile flowFile = submitted.get(i);
+            final Future<?> write = writes.get(i);
+            try {
+                write.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                session.getProvenanceReporter().send(flowFile, transitUri, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                session.transfer(flowFile, SUCCESS);
+            } catch (final ExecutionException | TimeoutException e) {
+                abandon(write, permits.get(i));
+                getLogger().warn("Failed to send {} to {}. Routing to retry.", flowFile, transitUri, e instanceof ExecutionException ? e.getCause() : e);
+                session.transfer(session.penalize(flowFile), RETRY);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                abandon(write, permits.get(i));
+                session.transfer(session.penalize(flowFile), RETRY);
+            }
+        }
+    }
+
+    //Gives up on a write. A write that has not started yet never will, and its permit is released here since it never runs to release
+    //it. A write that has started keeps its permit until the pool closes its connection at the timeout, and may still complete before
+    //that, so its records may be sent again from retry
+    private void abandon(final Future<?> write, final AtomicBoolean claimed) {
+        if (claimed.compareAndSet(false, true)) {
+            inFlight.release();
+        }
+        write.cancel(true);
+    }
+
+    //How many more flowfiles may be handed to the connections before reading the next one waits for a write to complete
+    int availableInFlight() {
+        return inFlight.availablePermits();
+    }
+
+    //Room for the content and the octet counts of its records, which rarely add more than a few percent
+    private static int bufferCapacity(final long size) {
+        return (int) Math.min(Integer.MAX_VALUE - 8, size + size / 16 + 16);
+    }
+
+    //Frames the records of the flowfile from its content onto a connection while it is read, on the thread of the task, within the same
+    //timeout as any other write. Records before one that cannot be split or sent may have been sent already
+    private void stream(final ProcessSession session, final FlowFile flowFile, final SyslogFramer framer) {
+        final long start = System.nanoTime();
+        try {
+            pool.send(connection -> session.read(flowFile, (final InputStream in) -> framer.frame(in, connection)));
+            session.getProvenanceReporter().send(flowFile, transitUri, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            session.transfer(flowFile, SUCCESS);
+        } catch (final IllegalArgumentException e) {
+            getLogger().error("Failed to split {} into CEF records. Routing to failure.", flowFile, e);
+            session.transfer(flowFile, FAILURE);
+        } catch (final IOException | ProcessException e) {
+            getLogger().warn("Failed to send {} to {}. Routing to retry.", flowFile, transitUri, e);
+            session.transfer(session.penalize(flowFile), RETRY);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            session.transfer(session.penalize(flowFile), RETRY);
+        }
+    }
+}
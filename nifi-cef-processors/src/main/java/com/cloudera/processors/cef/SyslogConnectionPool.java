@@ -0,0 +1,247 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+//A bounded pool of persistent connections to a syslog receiver. Connections are opened on first use and reused until a write
+//on them fails, so a healthy receiver sees a fixed number of long lived connections. A send that does not complete within the
+//timeout has its connection closed, since closing the socket is the only way to unblock a write to a receiver that stopped reading
+final class SyslogConnectionPool implements Closeable {
+
+    private final String protocol;
+    private final InetSocketAddress address;
+    private final int timeoutMillis;
+    private final SSLContext sslContext;
+    private final Semaphore permits;
+    private final BlockingQueue<Connection> idle = new LinkedBlockingQueue<>();
+    private final Set<Connection> active = ConcurrentHashMap.newKeySet();
+    private final ScheduledThreadPoolExecutor watchdog;
+    private volatile boolean closed;
+
+    //TLS connections are secured with the SSL context, other protocols need none
+    SyslogConnectionPool(final String protocol, final String hostname, final int port, final int size, final int timeoutMillis,
+                         final SSLContext sslContext) {
+        this.protocol = protocol;
+        this.address = new InetSocketAddress(hostname, port);
+        this.timeoutMillis = timeoutMillis;
+        this.sslContext = sslContext;
+        this.permits = new Semaphore(size);
+        this.watchdog = new ScheduledThreadPoolExecutor(1, runnable -> {
+            final Thread thread = new Thread(runnable, "SyslogConnectionPool watchdog " + address);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.watchdog.setRemoveOnCancelPolicy(true);
+    }
+
+    //Writes messages on a connection
+    interface Messages {
+        void writeTo(SyslogFramer.Sink connection) throws IOException;
+    }
+
+    //Sends the messages on a single connection, in order. With TCP and TLS the messages are expected to be framed already,
+    //with UDP every message is sent as a datagram of its own. Waiting for a connection, opening it and writing the messages must all
+    //complete within the timeout, otherwise the connection is closed and a SocketTimeoutException thrown. A connection whose write
+    //fails in any way is closed
+    void send(final Messages messages) throws IOException, InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            throw new SocketTimeoutException("No connection to " + address + " became available within " + timeoutMillis + " milliseconds");
+        }
+        Connection connection = null;
+        try {
+            connection = idle.poll();
+            if (connection == null) {
+                connection = open(deadline);
+            }
+            active.add(connection);
+            write(connection, messages, deadline);
+            active.remove(connection);
+            idle.offer(connection);
+            connection = null;
+        } finally {
+            if (connection != null) {
+                active.remove(connection);
+                closeQuietly(connection);
+            }
+            permits.release();
+        }
+        if (closed) {
+            drain();
+        }
+    }
+
+    //Writes the messages while the watchdog closes the connection once the deadline has passed
+    private void write(final Connection connection, final Messages messages, final long deadline) throws IOException {
+        final ScheduledFuture<?> expiry;
+        try {
+            expiry = watchdog.schedule(() -> closeQuietly(connection), Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (final RejectedExecutionException e) {
+            throw new IOException("The connection pool to " + address + " is closed", e);
+        }
+        try {
+            messages.writeTo(connection);
+            connection.flush();
+        } catch (final IOException | RuntimeException e) {
+            if (!expiry.cancel(false)) {
+                throw timedOut(e);
+            }
+            throw e;
+        }
+        if (!expiry.cancel(false)) {
+            throw timedOut(null);
+        }
+    }
+
+    private SocketTimeoutException timedOut(final Exception cause) {
+        final SocketTimeoutException e = new SocketTimeoutException("Write to " + address + " did not complete within " + timeoutMillis + " milliseconds");
+        e.initCause(cause);
+        return e;
+    }
+
+    private static int remainingMillis(final long deadline) throws SocketTimeoutException {
+        final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remaining <= 0) {
+            throw new SocketTimeoutException("Timed out waiting for a connection");
+        }
+        return (int) remaining;
+    }
+
+    private Connection open(final long deadline) throws IOException {
+        if (PutCefSyslog.UDP.equals(protocol)) {
+            final DatagramSocket socket = new DatagramSocket();
+            socket.connect(address);
+            return new UdpConnection(socket);
+        }
+
+        final Socket socket = new Socket();
+        try {
+            socket.setKeepAlive(true);
+            socket.setTcpNoDelay(true);
+            socket.connect(address, remainingMillis(deadline));
+            if (PutCefSyslog.TLS.equals(protocol)) {
+                final SSLSocket sslSocket = (SSLSocket) sslContext.getSocketFactory()
+                        .createSocket(socket, address.getHostString(), address.getPort(), true);
+                sslSocket.setSoTimeout(remainingMillis(deadline));
+                sslSocket.startHandshake();
+                sslSocket.setSoTimeout(0);
+                return new TcpConnection(sslSocket);
+            }
+            return new TcpConnection(socket);
+        } catch (final IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        watchdog.shutdownNow();
+        for (final Connection connection : active) {
+            closeQuietly(connection);
+        }
+        drain();
+    }
+
+    private void drain() {
+        Connection connection;
+        while ((connection = idle.poll()) != null) {
+            closeQuietly(connection);
+        }
+    }
+
+    private static void closeQuietly(final Connection connection) {
+        try {
+            connection.close();
+        } catch (final IOException ignored) {
+            //The connection is discarded either way
+        }
+    }
+
+    private interface Connection extends SyslogFramer.Sink, Closeable {
+        void flush() throws IOException;
+    }
+
+    private static final class TcpConnection implements Connection {
+        private final Socket socket;
+        private final OutputStream out;
+
+        private TcpConnection(final Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 65536);
+        }
+
+        @Override
+        public void write(final byte[] bytes, final int offset, final int length) throws IOException {
+            out.write(bytes, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private static final class UdpConnection implements Connection {
+        private final DatagramSocket socket;
+
+        private UdpConnection(final DatagramSocket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void write(final byte[] bytes, final int offset, final int length) throws IOException {
+            socket.send(new DatagramPacket(bytes, offset, length));
+        }
+
+        @Override
+        public void flush() {
+            //Every datagram is sent as it is written
+        }
+
+        @Override
+        public void close() {
+            socket.close();
+        }
+    }
+}
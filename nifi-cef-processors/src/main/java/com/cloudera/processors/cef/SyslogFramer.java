@@ -0,0 +1,256 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+//Splits flowfile content into records while it is read and frames every record for the wire, so only the record being split is held
+//in memory, never the flowfile as a whole. Every record is read into a buffer behind room for its octet count, so framing it costs no
+//further copy. Not thread safe, every task uses a framer of its own
+final class SyslogFramer {
+
+    //UDP payloads larger than this cannot be sent in a single datagram
+    static final int MAX_DATAGRAM_SIZE = 65507;
+
+    //Room for the longest octet count and its space
+    private static final int PREFIX_LENGTH = 11;
+    private static final int MAX_OCTET_COUNT_DIGITS = 9;
+    private static final int INITIAL_RECORD_SIZE = 4096;
+    //A record buffer grown beyond this by an outlier is dropped once the flowfile has been framed
+    private static final int RETAINED_RECORD_SIZE = 1 << 20;
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    //Receives the framed records. With TCP and TLS consecutive messages form one stream, with UDP every message is a datagram of its own
+    interface Sink {
+        void write(byte[] bytes, int offset, int length) throws IOException;
+    }
+
+    private final String inputFormat;
+    private final boolean udp;
+    private final boolean octetCounting;
+    private final byte[] chunk = new byte[8192];
+    private int chunkPosition;
+    private int chunkLength;
+    private long position;
+    private byte[] record = new byte[PREFIX_LENGTH + INITIAL_RECORD_SIZE + 1];
+    private int recordLength;
+
+    SyslogFramer(final String inputFormat, final boolean udp, final boolean octetCounting) {
+        this.inputFormat = inputFormat;
+        this.udp = udp;
+        this.octetCounting = octetCounting;
+    }
+
+    //Splits the content into records according to the input format and writes every record to the sink, framed for the wire. Throws an
+    //IllegalArgumentException when the content cannot be split into records that can be sent, once the records before have been written
+    void frame(final InputStream in, final Sink sink) throws IOException {
+        chunkPosition = 0;
+        chunkLength = 0;
+        position = 0;
+        recordLength = 0;
+        try {
+            if (CefWriter.OCTET_COUNTING_FRAMING.equals(inputFormat)) {
+                frameOctetCounted(in, sink);
+            } else if (CefWriter.NEWLINE_FRAMING.equals(inputFormat)) {
+                frameLines(in, sink);
+            } else {
+                frameSingleRecord(in, sink);
+            }
+        } finally {
+            if (record.length > RETAINED_RECORD_SIZE) {
+                record = new byte[PREFIX_LENGTH + INITIAL_RECORD_SIZE + 1];
+            }
+        }
+    }
+
+    private void frameOctetCounted(final InputStream in, final Sink sink) throws IOException {
+        int next;
+        while ((next = read(in)) != -1) {
+            final long start = position - 1;
+            int length = 0;
+            int digits = 0;
+            while (next >= '0' && next <= '9') {
+                if (++digits > MAX_OCTET_COUNT_DIGITS) {
+                    throw new IllegalArgumentException("Invalid octet count at byte " + start);
+                }
+                length = length * 10 + next - '0';
+                next = read(in);
+            }
+            if (digits == 0 || next != ' ') {
+                throw new IllegalArgumentException("Invalid octet count at byte " + start);
+            }
+            ensureCapacity(length);
+            int remaining = length;
+            while (remaining > 0) {
+                if (chunkPosition == chunkLength && !fill(in)) {
+                    throw new IllegalArgumentException("Record at byte " + start + " is shorter than its octet count of " + length);
+                }
+                final int copied = Math.min(remaining, chunkLength - chunkPosition);
+                System.arraycopy(chunk, chunkPosition, record, PREFIX_LENGTH + recordLength, copied);
+                chunkPosition += copied;
+                position += copied;
+                recordLength += copied;
+                remaining -= copied;
+            }
+            emit(sink);
+        }
+    }
+
+    private void frameLines(final InputStream in, final Sink sink) throws IOException {
+        int next;
+        while ((next = read(in)) != -1) {
+            if (next == '\n') {
+                endLine(sink);
+            } else {
+                append(next);
+            }
+        }
+        endLine(sink);
+    }
+
+    //A line ends at a line feed, or a carriage return and a line feed. Empty lines are no records
+    private void endLine(final Sink sink) throws IOException {
+        if (recordLength > 0 && record[PREFIX_LENGTH + recordLength - 1] == '\r') {
+            recordLength--;
+        }
+        if (recordLength > 0) {
+            emit(sink);
+        }
+        recordLength = 0;
+    }
+
+    //The whole content is the record, without the line endings it may end with
+    private void frameSingleRecord(final InputStream in, final Sink sink) throws IOException {
+        int next;
+        while ((next = read(in)) != -1) {
+            append(next);
+        }
+        while (recordLength > 0 && (record[PREFIX_LENGTH + recordLength - 1] == '\n' || record[PREFIX_LENGTH + recordLength - 1] == '\r')) {
+            recordLength--;
+        }
+        emit(sink);
+    }
+
+    //Frames the record in place. UDP needs no framing since every record is a datagram of its own
+    private void emit(final Sink sink) throws IOException {
+        final int length = recordLength;
+        recordLength = 0;
+        if (udp) {
+            if (length > MAX_DATAGRAM_SIZE) {
+                throw new IllegalArgumentException("Record of " + length + " bytes does not fit in a UDP datagram");
+            }
+            sink.write(record, PREFIX_LENGTH, length);
+        } else if (octetCounting) {
+            int start = PREFIX_LENGTH - 1;
+            record[start] = ' ';
+            int count = length;
+            do {
+                record[--start] = (byte) ('0' + count % 10);
+                count /= 10;
+            } while (count > 0);
+            sink.write(record, start, PREFIX_LENGTH + length - start);
+        } else {
+            record[PREFIX_LENGTH + length] = '\n';
+            sink.write(record, PREFIX_LENGTH, length + 1);
+        }
+    }
+
+    private void append(final int next) {
+        if (PREFIX_LENGTH + recordLength + 1 >= record.length) {
+            ensureCapacity(recordLength + 1);
+        }
+        record[PREFIX_LENGTH + recordLength++] = (byte) next;
+    }
+
+    //Makes room for the given record length, its octet count and a line feed
+    private void ensureCapacity(final int length) {
+        final long required = (long) PREFIX_LENGTH + length + 1;
+        if (required <= record.length) {
+            return;
+        }
+        if (required > MAX_ARRAY_SIZE) {
+            throw new IllegalArgumentException("Record at byte " + position + " is too large to be sent");
+        }
+        record = Arrays.copyOf(record, (int) Math.min(MAX_ARRAY_SIZE, Math.max(required, 2L * record.length)));
+    }
+
+    private int read(final InputStream in) throws IOException {
+        if (chunkPosition == chunkLength && !fill(in)) {
+            return -1;
+        }
+        position++;
+        return chunk[chunkPosition++] & 0xFF;
+    }
+
+    private boolean fill(final InputStream in) throws IOException {
+        final int read = in.read(chunk);
+        if (read <= 0) {
+            return false;
+        }
+        chunkPosition = 0;
+        chunkLength = read;
+        return true;
+    }
+
+    //Framed records collected to be written on a connection later. TCP and TLS messages are written as one stream, so only the end of
+    //every datagram is kept
+    static final class Buffer implements Sink {
+        private final boolean datagrams;
+        private byte[] bytes;
+        private int length;
+        private int[] ends = new int[16];
+        private int messages;
+
+        Buffer(final int initialCapacity, final boolean datagrams) {
+            this.datagrams = datagrams;
+            this.bytes = new byte[initialCapacity];
+        }
+
+        @Override
+        public void write(final byte[] message, final int offset, final int messageLength) {
+            if ((long) length + messageLength > MAX_ARRAY_SIZE) {
+                throw new IllegalArgumentException("Records are too large to be buffered");
+            }
+            if (length + messageLength > bytes.length) {
+                bytes = Arrays.copyOf(bytes, (int) Math.min(MAX_ARRAY_SIZE, Math.max(length + messageLength, 2L * bytes.length)));
+            }
+            System.arraycopy(message, offset, bytes, length, messageLength);
+            length += messageLength;
+            if (datagrams) {
+                if (messages == ends.length) {
+                    ends = Arrays.copyOf(ends, 2 * messages);
+                }
+                ends[messages++] = length;
+            }
+        }
+
+        //Writes the messages in the order they were framed
+        void writeTo(final Sink sink) throws IOException {
+            if (!datagrams) {
+                sink.write(bytes, 0, length);
+                return;
+            }
+            int start = 0;
+            for (int i = 0; i < messages; i++) {
+                sink.write(bytes, start, ends[i] - start);
+                start = ends[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.serialization.cef;
+
+import com.cloudera.processors.cef.CefParser;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.RecordReaderFactory;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+@Tags({"cef", "SIEM", "record", "reader", "parser", "Arcsight"})
+@CapabilityDescription("Parses newline-delimited CEF records, for example those written by CefRecordSetWriter or received from appliances through ListenSyslog. "
+        + "The header fields become fixed string fields of the record, the key/value pairs of the Extension field become a map of strings named 'extensions'. "
+        + "The event date and host of a complex header are available as 'eventDate' and 'eventHost' and are null for records with a simple header.")
+@SeeAlso(CefRecordSetWriter.class)
+public class CefRecordReader extends AbstractControllerService implements RecordReaderFactory {
+
+    public static final String EXTENSIONS = "extensions";
+
+    static final RecordSchema SCHEMA;
+
+    static {
+        final List<RecordField> fields = new ArrayList<>();
+        fields.add(new RecordField(CefParser.EVENT_DATE, RecordFieldType.STRING.getDataType(), true));
+        fields.add(new RecordField(CefParser.EVENT_HOST, RecordFieldType.STRING.getDataType(), true));
+        for (final String name : CefParser.headerNames()) {
+            fields.add(new RecordField(name, RecordFieldType.STRING.getDataType(), false));
+        }
+        fields.add(new RecordField(EXTENSIONS, RecordFieldType.MAP.getMapDataType(RecordFieldType.STRING.getDataType()), false));
+        SCHEMA = new SimpleRecordSchema(fields);
+    }
+
+    @Override
+    public RecordReader createRecordReader(final Map<String, String> variables, final InputStream in, final long inputLength, final ComponentLog logger) {
+        return new CefRowRecordReader(in, SCHEMA);
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.serialization.cef;
+
+import org.apache.nifi.annotation.behavior.DynamicProperty;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.PropertyValue;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.Validator;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.record.path.util.RecordPathCache;
+import org.apache.nifi.record.path.validation.RecordPathValidator;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.record.RecordSchema;
+
+import java.io.OutputStream;
+import java.util.*;
+
+@Tags({"cef", "SIEM", "record", "recordset", "writer", "serializer", "Arcsight"})
+@CapabilityDescription("Writes the records of a record set as newline-delimited CEF records for use by Arcsight and other SIEM applications that utilize the CEF format. "
+        + "Header and Extension values are either literal values or RecordPaths (values beginning with '/') that are evaluated against each record.")
+@DynamicProperty(name = "A CEF Extension field key", value = "A RecordPath to the record field, or a literal value", expressionLanguageScope = ExpressionLanguageScope.FLOWFILE_ATTRIBUTES,
+        description = "Dynamic Property names and values are used as the key/value of additional CEF fields stored in the CEF Extension field. These names must conform to the CEF schema or user-defined additional custom field names implemented in downstream applications")
+public class CefRecordSetWriter extends AbstractControllerService implements RecordSetWriterFactory {
+
+    //Restricted values for dropdown selection of whether complex header will be used
+    public static final String DO_NOT_USE_COMPLEX_HEADER = "Do not use complex header";
+    public static final String USE_COMPLEX_HEADER = "Use complex header";
+
+    //Values that begin with this character are treated as RecordPaths, everything else is a literal value
+    static final String RECORD_PATH_PREFIX = "/";
+
+    //Accepts either a literal value or a valid RecordPath
+    static final Validator FIELD_REFERENCE_VALIDATOR = new Validator() {
+        private final Validator recordPathValidator = new RecordPathValidator();
+
+        @Override
+        public ValidationResult validate(final String subject, final String input, final ValidationContext context) {
+            if (context.isExpressionLanguageSupported(subject) && context.isExpressionLanguagePresent(input)) {
+                return new ValidationResult.Builder().subject(subject).input(input).explanation("Expression Language Present").valid(true).build();
+            }
+            if (input != null && input.startsWith(RECORD_PATH_PREFIX)) {
+                return recordPathValidator.validate(subject, input, context);
+            }
+            return new ValidationResult.Builder().subject(subject).input(input)
+                    .valid(input != null && !input.isEmpty())
+                    .explanation("must be a RecordPath or a non-empty literal value")
+                    .build();
+        }
+    };
+
+    public static final PropertyDescriptor COMPLEX_HEADER = new PropertyDescriptor.Builder()
+            .name("USE_COMPLEX_HEADER")
+            .displayName("Use complex header")
+            .description("Use the complex header for the first CEF field. This consists of the event date time, event host, and cef version "+
+                    "separated by spaces. Setting this to true requires the optional properties 'Event DateTime' and 'Event Host' to be populated.")
+            .required(true)
+            .allowableValues(DO_NOT_USE_COMPLEX_HEADER, USE_COMPLEX_HEADER)
+            .defaultValue(DO_NOT_USE_COMPLEX_HEADER)
+            .build();
+
+    public static final PropertyDescriptor SYSLOG_PREFIX = fieldReference("SYSLOG_PREFIX", "Syslog Prefix",
+            "The first field of a CEF object. Example: CEF:1", true);
+    public static final PropertyDescriptor DEVICE_VENDOR = fieldReference("DEVICE_VENDOR", "Device Vendor",
+            "The second field of a CEF object. Example: Security or /vendor", true);
+    public static final PropertyDescriptor DEVICE_PRODUCT = fieldReference("DEVICE_PRODUCT", "Device Product",
+            "The third field of a CEF object. Example: threatmanager or /product", true);
+    public static final PropertyDescriptor DEVICE_VERSION = fieldReference("DEVICE_VERSION", "Device Version",
+            "The fourth field of a CEF object. Example: 1.0 or /version", true);
+    public static final PropertyDescriptor DEVICE_CLASS_ID = fieldReference("DEVICE_CLASS_ID", "Device Event Class ID",
+            "The fifth field of a CEF object. Example: 100 or /classId", true);
+    public static final PropertyDescriptor EVENT_NAME = fieldReference("EVENT_NAME", "Event Name",
+            "The sixth field of a CEF object. Example: worm successfully stopped or /name", true);
+    public static final PropertyDescriptor EVENT_SEVERITY = fieldReference("EVENT_SEVERITY", "Event Severity",
+            "The seventh field of a CEF object. Example: 10 or /severity", true);
+    public static final PropertyDescriptor EVENT_DATE = fieldReference("EVENT_DATE", "Event DateTime",
+            "Optional datetime value that can be part of the Header. Example: /timestamp", false);
+    public static final PropertyDescriptor EVENT_HOST = fieldReference("EVENT_HOST", "Event Host",
+            "Optional hostname value that can be part of the Header. Example: /host", false);
+
+    private static PropertyDescriptor fieldReference(final String name, final String displayName, final String description, final boolean required) {
+        return new PropertyDescriptor.Builder()
+                .name(name)
+                .displayName(displayName)
+                .description(description + ". Values beginning with '/' are evaluated as a RecordPath against each record, any other value is used as a literal.")
+                .required(required)
+                .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+                .addValidator(FIELD_REFERENCE_VALIDATOR)
+                .build();
+    }
+
+    private static final List<PropertyDescriptor> PROPERTIES = Collections.unmodifiableList(Arrays.asList(
+            COMPLEX_HEADER,
+            SYSLOG_PREFIX,
+            DEVICE_VENDOR,
+            DEVICE_PRODUCT,
+            DEVICE_VERSION,
+            DEVICE_CLASS_ID,
+            EVENT_NAME,
+            EVENT_SEVERITY,
+            EVENT_DATE,
+            EVENT_HOST));
+
+    private final RecordPathCache recordPathCache = new RecordPathCache(100);
+
+    private volatile boolean complexHeader;
+    private volatile List<PropertyValue> headerValues;
+    private volatile Map<String, PropertyValue> extensionValues;
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return PROPERTIES;
+    }
+
+    @Override
+    protected PropertyDescriptor getSupportedDynamicPropertyDescriptor(final String propertyDescriptorName) {
+        return new PropertyDescriptor.Builder()
+                .name(propertyDescriptorName)
+                .required(false)
+                .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+                .addValidator(FIELD_REFERENCE_VALIDATOR)
+                .dynamic(true)
+                .build();
+    }
+
+    //The complex header writes the event date and host in front of the version, so both must be set when it is used
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext validationContext) {
+        final List<ValidationResult> results = new ArrayList<>();
+        if (USE_COMPLEX_HEADER.equals(validationContext.getProperty(COMPLEX_HEADER).getValue())) {
+            for (final PropertyDescriptor descriptor : Arrays.asList(EVENT_DATE, EVENT_HOST)) {
+                if (!validationContext.getProperty(descriptor).isSet()) {
+                    results.add(new ValidationResult.Builder()
+                            .subject(descriptor.getDisplayName())
+                            .valid(false)
+                            .explanation(descriptor.getDisplayName() + " is required when the complex header is used")
+                            .build());
+                }
+            }
+        }
+        return results;
+    }
+
+    @OnEnabled
+    public void onEnabled(final ConfigurationContext context) {
+        complexHeader = USE_COMPLEX_HEADER.equals(context.getProperty(COMPLEX_HEADER).getValue());
+
+        final List<PropertyValue> header = new ArrayList<>();
+        if (complexHeader) {
+            header.add(context.getProperty(EVENT_DATE));
+            header.add(context.getProperty(EVENT_HOST));
+        }
+        header.add(context.getProperty(SYSLOG_PREFIX));
+        header.add(context.getProperty(DEVICE_VENDOR));
+        header.add(context.getProperty(DEVICE_PRODUCT));
+        header.add(context.getProperty(DEVICE_VERSION));
+        header.add(context.getProperty(DEVICE_CLASS_ID));
+        header.add(context.getProperty(EVENT_NAME));
+        header.add(context.getProperty(EVENT_SEVERITY));
+        headerValues = Collections.unmodifiableList(header);
+
+        final Map<String, PropertyValue> extensions = new LinkedHashMap<>();
+        for (final PropertyDescriptor descriptor : context.getProperties().keySet()) {
+            if (descriptor.isDynamic()) {
+                extensions.put(descriptor.getName().strip(), context.getProperty(descriptor));
+            }
+        }
+        extensionValues = Collections.unmodifiableMap(extensions);
+    }
+
+    @Override
+    public RecordSchema getSchema(final Map<String, String> variables, final RecordSchema readSchema) {
+        return readSchema;
+    }
+
+    @Override
+    public RecordSetWriter createWriter(final ComponentLog logger, final RecordSchema schema, final OutputStream out, final Map<String, String> variables) {
+        final List<FieldReference> header = new ArrayList<>(headerValues.size());
+        for (final PropertyValue value : headerValues) {
+            header.add(resolve(value, variables));
+        }
+
+        final Map<String, FieldReference> extensions = new LinkedHashMap<>();
+        for (final Map.Entry<String, PropertyValue> entry : extensionValues.entrySet()) {
+            extensions.put(entry.getKey(), resolve(entry.getValue(), variables));
+        }
+
+        return new WriteCefResult(out, complexHeader, header, extensions);
+    }
+
+    //Evaluates expression language against the FlowFile attributes once per writer, then decides whether the result is a RecordPath or a literal
+    private FieldReference resolve(final PropertyValue propertyValue, final Map<String, String> variables) {
+        final String value = propertyValue.evaluateAttributeExpressions(variables).getValue();
+        if (value == null) {
+            return FieldReference.literal(null);
+        }
+        if (value.startsWith(RECORD_PATH_PREFIX)) {
+            return FieldReference.recordPath(recordPathCache.getCompiled(value));
+        }
+        return FieldReference.literal(value);
+    }
+}
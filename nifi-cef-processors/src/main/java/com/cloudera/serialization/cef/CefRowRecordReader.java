@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.serialization.cef;
+
+import com.cloudera.processors.cef.CefParser;
+import org.apache.nifi.serialization.MalformedRecordException;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordSchema;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+//Reads one CEF record per line. Lines are split on the raw bytes and handed to the parser without decoding them first
+public class CefRowRecordReader implements RecordReader {
+
+    private final InputStream in;
+    private final RecordSchema schema;
+    private final CefParser parser = new CefParser();
+    private final String[] headerNames = CefParser.headerNames();
+
+    private byte[] buffer = new byte[65536];
+    private int start;
+    private int end;
+    private boolean endOfStream;
+    private long lineNumber;
+
+    public CefRowRecordReader(final InputStream in, final RecordSchema schema) {
+        this.in = in;
+        this.schema = schema;
+    }
+
+    @Override
+    public Record nextRecord(final boolean coerceTypes, final boolean dropUnknownFields) throws IOException, MalformedRecordException {
+        while (true) {
+            final int lineEnd = nextLine();
+            if (lineEnd < 0) {
+                return null;
+            }
+            final int lineStart = start;
+            start = Math.min(lineEnd + 1, end);
+            final int recordEnd = lineEnd > lineStart && buffer[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+            if (recordEnd == lineStart) {
+                continue;
+            }
+
+            try {
+                parser.parse(buffer, lineStart, recordEnd);
+            } catch (final IllegalArgumentException e) {
+                throw new MalformedRecordException("Line " + lineNumber + " is not a valid CEF record: " + e.getMessage(), e);
+            }
+
+            final Map<String, Object> values = new HashMap<>();
+            values.put(CefParser.EVENT_DATE, parser.eventDate());
+            values.put(CefParser.EVENT_HOST, parser.eventHost());
+            for (int i = 0; i < headerNames.length; i++) {
+                values.put(headerNames[i], parser.header(i));
+            }
+            values.put(CefRecordReader.EXTENSIONS, parser.extensions());
+            return new MapRecord(schema, values);
+        }
+    }
+
+    //Returns the index of the line feed ending the next line in the buffer, or the end of the data for a last line without one.
+    //Returns -1 once the stream is exhausted
+    private int nextLine() throws IOException {
+        int scanned = start;
+        while (true) {
+            for (int i = scanned; i < end; i++) {
+                if (buffer[i] == '\n') {
+                    lineNumber++;
+                    return i;
+                }
+            }
+            if (endOfStream) {
+                if (start == end) {
+                    return -1;
+                }
+                lineNumber++;
+                return end;
+            }
+            scanned = end - start;
+            fill();
+        }
+    }
+
+    //Moves the pending line to the front of the buffer, growing it for long lines, and reads more data behind it
+    private void fill() throws IOException {
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        if (end == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        final int read = in.read(buffer, end, buffer.length - end);
+        if (read < 0) {
+            endOfStream = true;
+        } else {
+            end += read;
+        }
+    }
+
+    @Override
+    public RecordSchema getSchema() {
+        return schema;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.serialization.cef;
+
+import org.apache.nifi.record.path.FieldValue;
+import org.apache.nifi.record.path.RecordPath;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.util.DataTypeUtils;
+
+import java.util.Optional;
+
+//A CEF field value that is either a fixed literal or looked up from each record through a RecordPath
+final class FieldReference {
+
+    private final String literal;
+    private final RecordPath recordPath;
+
+    private FieldReference(final String literal, final RecordPath recordPath) {
+        this.literal = literal;
+        this.recordPath = recordPath;
+    }
+
+    static FieldReference literal(final String value) {
+        return new FieldReference(value, null);
+    }
+
+    static FieldReference recordPath(final RecordPath recordPath) {
+        return new FieldReference(null, recordPath);
+    }
+
+    //Returns the string value for the record, or null if the RecordPath selects nothing or a null value
+    String getValue(final Record record) {
+        if (recordPath == null) {
+            return literal;
+        }
+
+        final Optional<FieldValue> selected = recordPath.evaluate(record).getSelectedFields().findFirst();
+        if (!selected.isPresent()) {
+            return null;
+        }
+
+        final Object value = selected.get().getValue();
+        if (value == null) {
+            return null;
+        }
+        return DataTypeUtils.toString(value, (String) null);
+    }
+}
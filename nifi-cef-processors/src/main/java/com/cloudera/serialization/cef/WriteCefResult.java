@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.serialization.cef;
+
+import com.cloudera.processors.cef.CefEscaper;
+import org.apache.nifi.serialization.AbstractRecordSetWriter;
+import org.apache.nifi.serialization.record.Record;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+//Writes one CEF record per line to the underlying stream
+public class WriteCefResult extends AbstractRecordSetWriter {
+
+    private final boolean complexHeader;
+    private final List<FieldReference> header;
+    private final Map<String, FieldReference> extensions;
+    private final StringBuilder line = new StringBuilder(256);
+
+    public WriteCefResult(final OutputStream out, final boolean complexHeader, final List<FieldReference> header, final Map<String, FieldReference> extensions) {
+        super(out);
+        this.complexHeader = complexHeader;
+        this.header = header;
+        this.extensions = extensions;
+    }
+
+    @Override
+    protected Map<String, String> writeRecord(final Record record) throws IOException {
+        line.setLength(0);
+
+        //The complex header joins event date, event host and the syslog prefix with spaces into the first field
+        int index = 0;
+        if (complexHeader) {
+            appendHeaderValue(header.get(index++).getValue(record));
+            line.append(' ');
+            appendHeaderValue(header.get(index++).getValue(record));
+            line.append(' ');
+        }
+        for (; index < header.size(); index++) {
+            appendHeaderValue(header.get(index).getValue(record));
+            line.append('|');
+        }
+
+        boolean first = true;
+        for (final Map.Entry<String, FieldReference> entry : extensions.entrySet()) {
+            final String value = entry.getValue().getValue(record);
+            if (value == null) {
+                continue;
+            }
+            if (!first) {
+                line.append(' ');
+            }
+            final String stripped = value.strip();
+            line.append(entry.getKey()).append('=');
+            CefEscaper.escape(CefEscaper.Mode.EXTENSION, stripped, 0, stripped.length(), line);
+            first = false;
+        }
+        line.append('\n');
+
+        getOutputStream().write(line.toString().getBytes(StandardCharsets.UTF_8));
+        return Collections.emptyMap();
+    }
+
+    private void appendHeaderValue(final String value) {
+        if (value != null) {
+            CefEscaper.escape(CefEscaper.Mode.HEADER, value, 0, value.length(), line);
+        }
+    }
+
+    @Override
+    public String getMimeType() {
+        return "text/plain";
+    }
+}
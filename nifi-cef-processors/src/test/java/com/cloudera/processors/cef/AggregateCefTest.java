@@ -0,0 +1,220 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.provenance.ProvenanceEventRecord;
+import org.apache.nifi.provenance.ProvenanceEventType;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.MockProcessContext;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+public class AggregateCefTest {
+
+    private final AggregateCef processor = new AggregateCef();
+    private TestRunner runner;
+
+    @Before
+    public void init() {
+        runner = TestRunners.newTestRunner(AggregateCef.class);
+    }
+
+    private void setRequiredProperties()
+    {
+        runner.setProperty( processor.SYSLOG_PREFIX, "CEF:1" );
+        runner.setProperty( processor.DEVICE_VENDOR, "Security" );
+        runner.setProperty( processor.DEVICE_PRODUCT, "threatmanager" );
+        runner.setProperty( processor.DEVICE_VERSION, "1.0" );
+        runner.setProperty( processor.DEVICE_CLASS_ID, "100" );
+        runner.setProperty( processor.EVENT_NAME, "worm successfully stopped" );
+        runner.setProperty( processor.EVENT_SEVERITY, "10" );
+    }
+
+    private void enqueueEvent( String src, String act, String time )
+    {
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put( "src", src );
+        attributes.put( "act", act );
+        attributes.put( "event.time", time );
+        runner.enqueue( "This is a test file".getBytes( StandardCharsets.UTF_8 ), attributes );
+    }
+
+    @Test
+    public void testAggregateDuplicates()
+    {
+        System.out.println( "\n--- testAggregateDuplicates() ------------------------------------------------------------" );
+
+        setRequiredProperties();
+        runner.setProperty( processor.AGGREGATION_WINDOW, "0 sec" );
+        runner.setProperty( processor.EVENT_TIME_ATTRIBUTE, "event.time" );
+        runner.setProperty( "src", "${src}" );
+        enqueueEvent( "10.0.0.1", "blocked", "1000" );
+        enqueueEvent( "10.0.0.1", "blocked", "3000" );
+        enqueueEvent( "10.0.0.1", "blocked", "2000" );
+        runner.run( 1 );
+
+// the three identical records are written once, with their count and first and last event time...
+        runner.assertAllFlowFilesTransferred( processor.SUCCESS, 1 );
+        MockFlowFile result = runner.getFlowFilesForRelationship( processor.SUCCESS ).get( 0 );
+        result.assertAttributeEquals( "record.count", "1" );
+        result.assertContentEquals( "CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|src=10.0.0.1 cnt=3 start=1000 end=3000\n" );
+        assertEquals( 2, runner.getCounterValue( "CEF Records Aggregated" ).longValue() );
+        assertEquals( 0, runner.getQueueSize().getObjectCount() );
+
+// the aggregated flowfiles are joined into the output rather than dropped...
+        List<ProvenanceEventRecord> joins = new ArrayList<>();
+        for ( ProvenanceEventRecord event : runner.getProvenanceEvents() )
+        {
+            if ( event.getEventType() == ProvenanceEventType.JOIN )
+                joins.add( event );
+        }
+        assertEquals( 1, joins.size() );
+        assertEquals( 3, joins.get( 0 ).getParentUuids().size() );
+    }
+
+    @Test
+    public void testAggregateBySelectedKeys()
+    {
+        System.out.println( "\n--- testAggregateBySelectedKeys() --------------------------------------------------------" );
+
+        setRequiredProperties();
+        runner.setProperty( processor.AGGREGATION_WINDOW, "0 sec" );
+        runner.setProperty( processor.AGGREGATION_KEYS, "src" );
+        runner.setProperty( processor.EVENT_TIME_ATTRIBUTE, "event.time" );
+        runner.setProperty( "src", "${src}" );
+        runner.setProperty( "act", "${act}" );
+        enqueueEvent( "10.0.0.1", "blocked", "1000" );
+        enqueueEvent( "10.0.0.2", "allowed", "2000" );
+        enqueueEvent( "10.0.0.1", "dropped", "3000" );
+        runner.run( 1 );
+
+// events are told apart by src only, and the other fields of the first event are written...
+        runner.assertAllFlowFilesTransferred( processor.SUCCESS, 1 );
+        MockFlowFile result = runner.getFlowFilesForRelationship( processor.SUCCESS ).get( 0 );
+        result.assertAttributeEquals( "record.count", "2" );
+        result.assertContentEquals(
+                "CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|act=blocked src=10.0.0.1 cnt=2 start=1000 end=3000\n" +
+                "CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|act=allowed src=10.0.0.2 cnt=1 start=2000 end=2000\n" );
+    }
+
+    @Test
+    public void testAggregatesKeptAcrossRestart() throws IOException
+    {
+        System.out.println( "\n--- testAggregatesKeptAcrossRestart() ----------------------------------------------------" );
+
+        setRequiredProperties();
+        runner.setProperty( processor.EVENT_TIME_ATTRIBUTE, "event.time" );
+        runner.setProperty( "src", "${src}" );
+        enqueueEvent( "10.0.0.1", "blocked", "1000" );
+        runner.run( 1, false );
+        runner.assertTransferCount( processor.SUCCESS, 0 );
+
+// the open aggregate is stored with the commit that removed its flowfile, before the processor stops...
+        runner.getStateManager().assertStateSet( Scope.LOCAL );
+        assertEquals( 1, runner.getStateManager().getState( Scope.LOCAL ).toMap().size() );
+
+// ...so without a stop it is still counted further when the processor is started again...
+        enqueueEvent( "10.0.0.1", "blocked", "2000" );
+        runner.run( 1 );
+        runner.assertTransferCount( processor.SUCCESS, 0 );
+        assertEquals( 0, runner.getQueueSize().getObjectCount() );
+
+// once its window has closed, the stored aggregate is written on the first trigger...
+        runner.setProperty( processor.AGGREGATION_WINDOW, "0 sec" );
+        runner.run( 1 );
+        runner.assertAllFlowFilesTransferred( processor.SUCCESS, 1 );
+        runner.getFlowFilesForRelationship( processor.SUCCESS ).get( 0 ).assertContentEquals(
+                "CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|src=10.0.0.1 cnt=2 start=1000 end=2000\n" );
+    }
+
+    @Test
+    public void testAggregationFieldsReserved()
+    {
+        setRequiredProperties();
+        runner.setProperty( "cnt", "1" );
+        runner.assertNotValid();
+    }
+
+    @Test
+    public void testAggregateFailureIsIsolated()
+    {
+        System.out.println( "\n--- testAggregateFailureIsIsolated() -----------------------------------------------------" );
+
+        setRequiredProperties();
+        runner.setProperty( processor.AGGREGATION_WINDOW, "0 sec" );
+        runner.setProperty( processor.EVENT_TIME_ATTRIBUTE, "event.time" );
+        runner.setProperty( processor.EXTENSION_KEY_VALIDATION, processor.VALIDATE_KEYS_AND_VALUES );
+        runner.setProperty( "src", "${src}" );
+        enqueueEvent( "10.0.0.1", "blocked", "1000" );
+        enqueueEvent( "not an address", "blocked", "2000" );
+        enqueueEvent( "10.0.0.1", "blocked", "3000" );
+        runner.run( 1 );
+
+// the bad event fails on its own, its neighbours are aggregated in the same session...
+        runner.assertQueueEmpty();
+        runner.assertTransferCount( processor.SUCCESS, 1 );
+        runner.getFlowFilesForRelationship( processor.SUCCESS ).get( 0 ).assertContentEquals(
+                "CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|src=10.0.0.1 cnt=2 start=1000 end=3000\n" );
+        runner.assertTransferCount( processor.FAILURE, 1 );
+        MockFlowFile failed = runner.getFlowFilesForRelationship( processor.FAILURE ).get( 0 );
+        failed.assertAttributeEquals( "src", "not an address" );
+        failed.assertAttributeEquals( processor.ERROR_FIELD_ATTRIBUTE, "src" );
+    }
+
+    @Test
+    public void testIdleTriggerYields()
+    {
+        System.out.println( "\n--- testIdleTriggerYields() --------------------------------------------------------------" );
+
+        setRequiredProperties();
+        runner.run( 1 );
+// the processor is triggered on an empty queue to write closed aggregates, and yields rather than spin when there is nothing to do...
+        assertTrue( ((MockProcessContext) runner.getProcessContext()).isYieldCalled() );
+        runner.assertTransferCount( processor.SUCCESS, 0 );
+    }
+
+    @Test
+    public void testAggregateTimesMatchRenderedTime()
+    {
+        System.out.println( "\n--- testAggregateTimesMatchRenderedTime() ------------------------------------------------" );
+
+        setRequiredProperties();
+        runner.setProperty( processor.AGGREGATION_WINDOW, "0 sec" );
+        runner.setProperty( processor.TIMESTAMP_FIELDS, "rt" );
+        runner.enqueue( "This is a test file" );
+        runner.run( 1 );
+
+// without an event time attribute the time is taken once, for the rendered rt field and the aggregate alike...
+        String record = new String( runner.getFlowFilesForRelationship( processor.SUCCESS ).get( 0 ).toByteArray(), StandardCharsets.UTF_8 ).trim();
+        String rt = record.replaceAll( ".*\\|rt=(\\d+) .*", "$1" );
+        assertTrue( record, record.endsWith( " cnt=1 start=" + rt + " end=" + rt ) );
+    }
+}
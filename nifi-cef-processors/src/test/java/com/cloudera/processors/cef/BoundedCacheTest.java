@@ -0,0 +1,41 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class BoundedCacheTest {
+
+    @Test
+    public void testFullCacheIsRefilled() {
+        final BoundedCache<String, String> cache = new BoundedCache<>(2);
+        assertEquals("A", cache.get("a", String::toUpperCase));
+        assertEquals("B", cache.get("b", String::toUpperCase));
+        //Replacing a cached value does not count as a new entry
+        cache.put("a", "A");
+        assertEquals(2, cache.size());
+
+        //A new key clears the full cache and starts it over
+        assertEquals("C", cache.get("c", String::toUpperCase));
+        assertEquals(1, cache.size());
+        assertNull(cache.getIfPresent("a"));
+        assertEquals("C", cache.getIfPresent("c"));
+    }
+}
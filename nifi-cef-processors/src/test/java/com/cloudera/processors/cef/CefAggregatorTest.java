@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class CefAggregatorTest {
+
+    private static final long COLLIDING = 42L;
+
+    private static CefAggregator.Aggregate add(final CefAggregator aggregator, final String record, final boolean compareRecords, final long eventTime) {
+        final byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+        return aggregator.add(COLLIDING, bytes, bytes.length, compareRecords, true, eventTime, 0);
+    }
+
+    private static String toRecord(final CefAggregator.Aggregate aggregate) {
+        return new String(aggregate.toRecord(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testCollidingRecordsAreKeptApart() {
+        final CefAggregator aggregator = new CefAggregator(0, 100);
+        final CefAggregator.Aggregate first = add(aggregator, "CEF:1|a|b|1|1|n|1|src=10.0.0.1", true, 1000);
+        final CefAggregator.Aggregate collision = add(aggregator, "CEF:1|a|b|1|1|n|1|src=10.0.0.2", true, 2000);
+        //A duplicate of the first record behind the colliding one in the chain is still counted into the first
+        assertSame(first, add(aggregator, "CEF:1|a|b|1|1|n|1|src=10.0.0.1", true, 3000));
+        assertSame(collision, add(aggregator, "CEF:1|a|b|1|1|n|1|src=10.0.0.2", true, 4000));
+        assertEquals(2, aggregator.size());
+
+        //The aggregates survive a snapshot, a reset and a restart separately
+        aggregator.reset(aggregator.snapshot());
+        final CefAggregator restored = new CefAggregator(0, 100);
+        restored.restore(aggregator.toState());
+        assertEquals(2, restored.size());
+
+        final List<CefAggregator.Aggregate> drained = restored.drain(0);
+        assertEquals(2, drained.size());
+        assertEquals("CEF:1|a|b|1|1|n|1|src=10.0.0.1 cnt=2 start=1000 end=3000", toRecord(drained.get(0)));
+        assertEquals("CEF:1|a|b|1|1|n|1|src=10.0.0.2 cnt=2 start=2000 end=4000", toRecord(drained.get(1)));
+        assertEquals(0, restored.size());
+    }
+
+    @Test
+    public void testAggregationKeysCompareFingerprintsOnly() {
+        //With aggregation keys the records of duplicates differ in the fields that are not compared
+        final CefAggregator aggregator = new CefAggregator(0, 100);
+        final CefAggregator.Aggregate first = add(aggregator, "CEF:1|a|b|1|1|n|1|act=blocked src=10.0.0.1", false, 1000);
+        assertSame(first, add(aggregator, "CEF:1|a|b|1|1|n|1|act=dropped src=10.0.0.1", false, 2000));
+        assertEquals(2, first.count());
+        assertEquals(1, aggregator.size());
+    }
+
+    @Test
+    public void testOldestAggregateIsUnlinkedFromItsChain() {
+        final CefAggregator aggregator = new CefAggregator(60000, 2);
+        add(aggregator, "a", true, 1);
+        add(aggregator, "b", true, 2);
+        add(aggregator, "c", true, 3);
+        //The oldest is written beyond the maximum number, the others stay chained
+        final List<CefAggregator.Aggregate> drained = aggregator.drain(0);
+        assertEquals(1, drained.size());
+        assertEquals("a cnt=1 start=1 end=1", toRecord(drained.get(0)));
+        assertEquals(2, add(aggregator, "b", true, 4).count());
+        assertEquals(2, add(aggregator, "c", true, 5).count());
+        assertEquals(1, add(aggregator, "a", true, 6).count());
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CefEscaperTest {
+
+    @Test
+    public void testHeaderRules() {
+        assertEquals("a\\|b=c\\\\d e f", CefEscaper.escape(CefEscaper.Mode.HEADER, "a|b=c\\d\re\nf"));
+    }
+
+    @Test
+    public void testExtensionRules() {
+        assertEquals("a|b\\=c\\\\d\\re\\nf", CefEscaper.escape(CefEscaper.Mode.EXTENSION, "a|b=c\\d\re\nf"));
+    }
+
+    @Test
+    public void testLeefAttributeRules() {
+        assertEquals("a|b=c\\d e f g", CefEscaper.escape(CefEscaper.Mode.leefAttribute('^'), "a|b=c\\d\re\nf^g"));
+    }
+
+    @Test
+    public void testBackslashAtEitherEnd() {
+        assertEquals("\\\\abc\\\\", CefEscaper.escape(CefEscaper.Mode.HEADER, "\\abc\\"));
+        assertEquals("\\\\", CefEscaper.escape(CefEscaper.Mode.EXTENSION, "\\"));
+    }
+
+    @Test
+    public void testCleanValueIsReturnedAsIs() {
+        final String value = "worm successfully stopped";
+        assertSame(value, CefEscaper.escape(CefEscaper.Mode.HEADER, value));
+        assertSame(value, CefEscaper.escape(CefEscaper.Mode.EXTENSION, value));
+    }
+
+    @Test
+    public void testEscapeBytes() {
+        final byte[] in = "ключ=знач|\\".getBytes(StandardCharsets.UTF_8);
+        final byte[] out = new byte[in.length * 2];
+        final int length = CefEscaper.escape(CefEscaper.Mode.EXTENSION, in, 0, in.length, out, 0);
+        assertEquals("ключ\\=знач|\\\\", new String(out, 0, length, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testEscapeIntoRecordBuffer() {
+        final CefRecordBuffer out = new CefRecordBuffer(4);
+        assertEquals(2, CefEscaper.escape(CefEscaper.Mode.EXTENSION, "ключ=знач\n\uD83D\uDE00", out));
+        assertEquals("ключ\\=знач\\n\uD83D\uDE00", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testRecordBufferReplacesMalformedCharacters() {
+        final CefRecordBuffer out = new CefRecordBuffer(4);
+        out.writeUtf8("a\uD83Db");
+        assertArrayEquals("a\uD83Db".getBytes(StandardCharsets.UTF_8), out.toByteArray());
+    }
+
+    @Test
+    public void testEscapeStreamDoesNotSplitCharacters() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final boolean truncated = CefEscaper.escapeStream(new ByteArrayInputStream("abcдe".getBytes(StandardCharsets.UTF_8)), out, 4);
+        assertTrue(truncated);
+        assertEquals("abc", out.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testEscapeStreamLimitsInvalidUtf8() throws Exception {
+        //Stray continuation bytes, and more of them than the lead byte announces, count against the limit like any other byte
+        final byte[] invalid = {'a', (byte) 0x80, (byte) 0xBF, (byte) 0xC3, (byte) 0xA9, (byte) 0xA9, (byte) 0x80, 'b'};
+        for (int limit = 0; limit <= invalid.length; limit++) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final boolean truncated = CefEscaper.escapeStream(new ByteArrayInputStream(invalid), out, limit);
+            assertTrue(out.size() <= limit);
+            assertEquals(limit < invalid.length, truncated);
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(CefEscaper.escapeStream(new ByteArrayInputStream(invalid), out, 3));
+        assertArrayEquals(new byte[]{'a', (byte) 0x80, (byte) 0xBF}, out.toByteArray());
+    }
+
+    @Test
+    public void testTruncationPointFollowsTheMode() {
+        //An escaped backslash is kept whole in an extension value
+        final byte[] extension = "a\\\\b".getBytes(StandardCharsets.UTF_8);
+        assertEquals(1, CefEscaper.truncationPoint(CefEscaper.Mode.EXTENSION, extension, 0, extension.length, 2));
+        //A LEEF value has no escapes, so a backslash is a character of its own and the one after it is not split
+        final byte[] leef = "a\\дb".getBytes(StandardCharsets.UTF_8);
+        assertEquals(2, CefEscaper.truncationPoint(CefEscaper.Mode.leefAttribute('\t'), leef, 0, leef.length, 3));
+        assertEquals(4, CefEscaper.truncationPoint(CefEscaper.Mode.leefAttribute('\t'), leef, 0, leef.length, 4));
+    }
+
+    @Test
+    public void testEscapeStreamJoinsLines() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final boolean truncated = CefEscaper.escapeStream(new ByteArrayInputStream("a=1\r\nb\\2\n\n".getBytes(StandardCharsets.UTF_8)), out, Long.MAX_VALUE);
+        assertFalse(truncated);
+        assertEquals("a\\=1 b\\\\2 ", out.toString(StandardCharsets.UTF_8));
+    }
+}
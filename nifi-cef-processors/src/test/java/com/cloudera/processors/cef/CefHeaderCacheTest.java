@@ -0,0 +1,42 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+public class CefHeaderCacheTest {
+
+    @Test
+    public void testReferencedAttributes() {
+        assertArrayEquals(new String[]{"source.type"}, CefHeaderCache.referencedAttributes("${source.type}"));
+        assertArrayEquals(new String[]{"a", "b"}, CefHeaderCache.referencedAttributes("${a:toUpper()}-${ b :append(${a})}/${b}"));
+        assertArrayEquals(new String[]{"my attr"}, CefHeaderCache.referencedAttributes("${'my attr':substring(0, 3)}"));
+        assertArrayEquals(new String[0], CefHeaderCache.referencedAttributes("${literal('x'):toUpper()}"));
+    }
+
+    @Test
+    public void testUncacheableExpressions() {
+        assertNull(CefHeaderCache.referencedAttributes("${now():format('yyyy')}"));
+        assertNull(CefHeaderCache.referencedAttributes("${a:equals(${UUID()})}"));
+        assertNull(CefHeaderCache.referencedAttributes("${anyAttribute('a', 'b'):isEmpty()}"));
+        assertNull(CefHeaderCache.referencedAttributes("${fileSize}"));
+        assertNull(CefHeaderCache.referencedAttributes("${"));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+
+public class CefKeyDictionaryTest {
+
+    @Test
+    public void testStandardKeys() throws IOException {
+        final CefKeyDictionary dictionary = CefKeyDictionary.load(null);
+        assertEquals(CefKeyDictionary.Type.STRING, dictionary.typeOf("act"));
+        assertEquals(CefKeyDictionary.Type.IP, dictionary.typeOf("src"));
+        assertEquals(CefKeyDictionary.Type.IPV6, dictionary.typeOf("c6a1"));
+        assertEquals(CefKeyDictionary.Type.TIMESTAMP, dictionary.typeOf("rt"));
+        assertEquals(CefKeyDictionary.Type.INTEGER, dictionary.typeOf("dpt"));
+        assertNull(dictionary.typeOf("source"));
+        assertNull(dictionary.typeOf(""));
+    }
+
+    @Test
+    public void testEveryKeyHasItsOwnSlot() {
+        //Aa and BB share their string hash
+        final Map<String, CefKeyDictionary.Type> entries = new LinkedHashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            entries.put("key" + i, CefKeyDictionary.Type.values()[i % CefKeyDictionary.Type.values().length]);
+        }
+        entries.put("Aa", CefKeyDictionary.Type.MAC);
+        entries.put("BB", CefKeyDictionary.Type.LONG);
+        final CefKeyDictionary dictionary = CefKeyDictionary.of(entries);
+        for (final Map.Entry<String, CefKeyDictionary.Type> entry : entries.entrySet()) {
+            assertEquals(entry.getValue(), dictionary.typeOf(entry.getKey()));
+        }
+        assertNull(dictionary.typeOf("key1000"));
+    }
+
+    @Test
+    public void testCustomKeys() throws IOException {
+        final Map<String, CefKeyDictionary.Type> entries = CefKeyDictionary.parse(new StringReader("# custom keys\n\nriskScore  Integer\ntenant\n"), "test");
+        assertEquals(CefKeyDictionary.Type.INTEGER, entries.get("riskScore"));
+        assertEquals(CefKeyDictionary.Type.STRING, entries.get("tenant"));
+        assertThrows(IOException.class, () -> CefKeyDictionary.parse(new StringReader("riskScore Percent"), "test"));
+        assertThrows(IOException.class, () -> CefKeyDictionary.parse(new StringReader("a=b"), "test"));
+    }
+
+    @Test
+    public void testCoerceNumbers() {
+        assertEquals("42", CefKeyDictionary.Type.INTEGER.coerce("42"));
+        assertEquals("42", CefKeyDictionary.Type.INTEGER.coerce("+042"));
+        assertEquals("0", CefKeyDictionary.Type.INTEGER.coerce("-0"));
+        assertEquals("-2147483648", CefKeyDictionary.Type.INTEGER.coerce("-2147483648"));
+        assertNull(CefKeyDictionary.Type.INTEGER.coerce("2147483648"));
+        assertEquals("-9223372036854775808", CefKeyDictionary.Type.LONG.coerce("-9223372036854775808"));
+        assertNull(CefKeyDictionary.Type.LONG.coerce("9223372036854775808"));
+        assertNull(CefKeyDictionary.Type.LONG.coerce("12a"));
+        assertNull(CefKeyDictionary.Type.LONG.coerce("-"));
+        assertEquals("1.5e3", CefKeyDictionary.Type.FLOATING_POINT.coerce("1.5e3"));
+        assertNull(CefKeyDictionary.Type.FLOATING_POINT.coerce("NaN"));
+        assertNull(CefKeyDictionary.Type.FLOATING_POINT.coerce("1.0d"));
+        assertNull(CefKeyDictionary.Type.FLOATING_POINT.coerce("1..0"));
+    }
+
+    @Test
+    public void testCoerceAddresses() {
+        assertEquals("10.0.0.1", CefKeyDictionary.Type.IPV4.coerce("10.0.0.1"));
+        assertEquals("10.0.0.1", CefKeyDictionary.Type.IPV4.coerce("010.000.0.01"));
+        assertNull(CefKeyDictionary.Type.IPV4.coerce("10.0.0.256"));
+        assertNull(CefKeyDictionary.Type.IPV4.coerce("10.0.0"));
+        assertNull(CefKeyDictionary.Type.IPV4.coerce("10.0..1"));
+        assertNull(CefKeyDictionary.Type.IPV4.coerce("host.example.com"));
+
+        assertEquals("2001:db8::1", CefKeyDictionary.Type.IPV6.coerce("2001:DB8::1"));
+        assertEquals("::", CefKeyDictionary.Type.IPV6.coerce("::"));
+        assertEquals("::ffff:10.0.0.1", CefKeyDictionary.Type.IPV6.coerce("::ffff:10.0.0.1"));
+        assertEquals("2001:0db8:85a3:0000:0000:8a2e:0370:7334", CefKeyDictionary.Type.IPV6.coerce("2001:0db8:85a3:0000:0000:8a2e:0370:7334"));
+        assertNull(CefKeyDictionary.Type.IPV6.coerce("2001:db8::1::2"));
+        assertNull(CefKeyDictionary.Type.IPV6.coerce("1:2:3:4:5:6:7"));
+        assertNull(CefKeyDictionary.Type.IPV6.coerce("12345::1"));
+        assertNull(CefKeyDictionary.Type.IPV6.coerce(":1:2:3:4:5:6:7"));
+
+        assertEquals("10.0.0.1", CefKeyDictionary.Type.IP.coerce("10.0.0.1"));
+        assertEquals("fe80::1", CefKeyDictionary.Type.IP.coerce("fe80::1"));
+
+        assertEquals("00:0D:60:AF:1B:61", CefKeyDictionary.Type.MAC.coerce("00:0D:60:AF:1B:61"));
+        assertEquals("00:0D:60:AF:1B:61", CefKeyDictionary.Type.MAC.coerce("00-0d-60-af-1b-61"));
+        assertNull(CefKeyDictionary.Type.MAC.coerce("00:0D-60:AF:1B:61"));
+        assertNull(CefKeyDictionary.Type.MAC.coerce("00:0D:60:AF:1B:6G"));
+    }
+
+    @Test
+    public void testCoerceTimestamps() {
+        assertEquals("1700000000000", CefKeyDictionary.Type.TIMESTAMP.coerce("1700000000000"));
+        assertEquals("Sep 29 08:26:10", CefKeyDictionary.Type.TIMESTAMP.coerce("Sep 29 08:26:10"));
+        assertEquals("Sep 29 08:26:10.123 UTC", CefKeyDictionary.Type.TIMESTAMP.coerce("Sep 29 08:26:10.123 UTC"));
+        assertEquals("Sep 29 2023 08:26:10 Europe/Berlin", CefKeyDictionary.Type.TIMESTAMP.coerce("Sep 29 2023 08:26:10 Europe/Berlin"));
+        assertNull(CefKeyDictionary.Type.TIMESTAMP.coerce("Sept 29 08:26:10"));
+        assertNull(CefKeyDictionary.Type.TIMESTAMP.coerce("Sep 29 24:26:10"));
+        assertNull(CefKeyDictionary.Type.TIMESTAMP.coerce("Sep 29 08:26"));
+        assertNull(CefKeyDictionary.Type.TIMESTAMP.coerce("2023-09-29T08:26:10Z"));
+    }
+}
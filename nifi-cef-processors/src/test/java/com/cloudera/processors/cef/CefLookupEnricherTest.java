@@ -0,0 +1,52 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import org.apache.nifi.lookup.LookupService;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.MockPropertyValue;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CefLookupEnricherTest {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testRefreshedResultsDoNotAccumulate() throws Exception {
+        final LookupService<Object> service = mock(LookupService.class);
+        when(service.getRequiredKeys()).thenReturn(Collections.singleton("key"));
+        when(service.lookup(anyMap())).thenReturn(Optional.of("worm stopped"));
+        //Results expire at once, so every flowfile refreshes the result of its key
+        final CefLookupEnricher enricher = new CefLookupEnricher(service, null, new MockPropertyValue("${class.id}"), 0, 2);
+
+        final CefWriterMetrics.Batch batch = new CefWriterMetrics.Batch();
+        for (int i = 0; i < 100; i++) {
+            final MockFlowFile flowFile = new MockFlowFile(i);
+            flowFile.putAttributes(Collections.singletonMap("class.id", String.valueOf(i % 3)));
+            enricher.enrich(flowFile, CefTemplate.newValues(), batch);
+        }
+        assertEquals(2, enricher.size());
+        assertEquals(2, enricher.queued());
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+
+public class CefParserTest {
+
+    private final CefParser parser = new CefParser();
+
+    private void parse(final String record) {
+        parser.parse(record.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testSimpleHeader() {
+        parse("CEF:0|Security\\\\Policy|threat\\|manager|1.0|100|worm = stopped|10|");
+        assertEquals("CEF:0", parser.header(0));
+        assertEquals("Security\\Policy", parser.header(1));
+        assertEquals("threat|manager", parser.header(2));
+        assertEquals("worm = stopped", parser.header(5));
+        assertEquals("10", parser.header(6));
+        assertNull(parser.eventDate());
+        assertNull(parser.eventHost());
+        assertEquals(0, parser.extensionCount());
+    }
+
+    @Test
+    public void testComplexHeader() {
+        parse("April 30 08:26:10 host.example.com CEF:1|Security|threatmanager|1.0|100|worm stopped|10|");
+        assertEquals("April 30 08:26:10", parser.eventDate());
+        assertEquals("host.example.com", parser.eventHost());
+        assertEquals("CEF:1", parser.header(0));
+    }
+
+    @Test
+    public void testExtensions() {
+        parse("CEF:0|Security|threatmanager|1.0|100|worm stopped|10|src=10.0.0.1 msg=first line\\nsecond \\= line | c:\\\\tmp  act=blocked");
+        final Map<String, String> expected = new LinkedHashMap<>();
+        expected.put("src", "10.0.0.1");
+        expected.put("msg", "first line\nsecond = line | c:\\tmp");
+        expected.put("act", "blocked");
+        assertEquals(expected, parser.extensions());
+    }
+
+    @Test
+    public void testUnescapedEqualsInValue() {
+        parse("CEF:0|Security|threatmanager|1.0|100|blocked|5|request=http://example.com/?a=b&c=d cs1=ok");
+        assertEquals("http://example.com/?a=b&c=d", parser.extensions().get("request"));
+        assertEquals("ok", parser.extensions().get("cs1"));
+    }
+
+    @Test
+    public void testParserIsReusable() {
+        parse("CEF:0|a|b|c|d|e|f|k1=a long first value");
+        parse("CEF:0|g|h|i|j|k|l|k2=v");
+        assertEquals("g", parser.header(1));
+        assertEquals(1, parser.extensionCount());
+        assertEquals("k2", parser.extensionKey(0));
+        assertEquals("v", parser.extensionValue(0));
+    }
+
+    @Test
+    public void testInvalidRecords() {
+        assertThrows(IllegalArgumentException.class, () -> parse("CEF:0|Security|threatmanager|1.0"));
+        assertThrows(IllegalArgumentException.class, () -> parse("CEF:0|a|b|c|d|e|f|no pairs"));
+        assertThrows(IllegalArgumentException.class, () -> parse("CEF:0|a|b|c|d|e|f|=value"));
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import org.junit.Test;
+
+import java.time.ZoneId;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+
+public class CefTimestampsTest {
+
+    private static final long TIME = 1700000000123L;
+
+    @Test
+    public void testFormats() {
+        final ZoneId utc = ZoneId.of("UTC");
+        assertEquals("1700000000123", CefTimestamps.Formatter.of(CefWriter.EPOCH_MILLIS, utc).format(TIME));
+        assertEquals("Nov 14 22:13:20", CefTimestamps.Formatter.of(CefWriter.SYSLOG_TIMESTAMP, utc).format(TIME));
+        assertEquals("Nov 14 2023 22:13:20.123 UTC", CefTimestamps.Formatter.of(CefWriter.CEF_TIMESTAMP, utc).format(TIME));
+        assertEquals("Nov 14 2023 23:13:20.123 CET", CefTimestamps.Formatter.of(CefWriter.CEF_TIMESTAMP, ZoneId.of("Europe/Berlin")).format(TIME));
+        assertEquals("Dec 31 1969 23:59:59.999 UTC", CefTimestamps.Formatter.of(CefWriter.CEF_TIMESTAMP, utc).format(-1));
+    }
+
+    @Test
+    public void testCachedSecondsKeepTheirMilliseconds() {
+        final CefTimestamps.Formatter formatter = CefTimestamps.Formatter.of(CefWriter.CEF_TIMESTAMP, ZoneId.of("UTC"));
+        assertEquals("Nov 14 2023 22:13:20.123 UTC", formatter.format(TIME));
+        assertEquals("Nov 14 2023 22:13:20.005 UTC", formatter.format(TIME - 118));
+        //64 seconds later the second shares the cache slot
+        assertEquals("Nov 14 2023 22:14:24.123 UTC", formatter.format(TIME + 64000));
+        assertEquals("Nov 14 2023 22:13:20.050 UTC", formatter.format(TIME - 73));
+    }
+
+    @Test
+    public void testParseFields() {
+        final List<CefTimestamps.Field> fields = CefTimestamps.parseFields(" rt, start = session.start ,,end=session.end");
+        assertEquals(3, fields.size());
+        assertEquals("rt", fields.get(0).key);
+        assertNull(fields.get(0).attribute);
+        assertEquals("start", fields.get(1).key);
+        assertEquals("session.start", fields.get(1).attribute);
+        assertEquals(0, CefTimestamps.parseFields(null).size());
+        assertThrows(IllegalArgumentException.class, () -> CefTimestamps.parseFields("rt,rt=other"));
+        assertThrows(IllegalArgumentException.class, () -> CefTimestamps.parseFields("start="));
+        assertThrows(IllegalArgumentException.class, () -> CefTimestamps.parseFields("device time"));
+    }
+}
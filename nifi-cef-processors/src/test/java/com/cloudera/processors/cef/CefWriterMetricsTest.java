@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertTrue;
+
+public class CefWriterMetricsTest {
+
+    @Test
+    public void testContentReadIsNotCountedAsWrite() throws IOException {
+        final CefWriterMetrics.Batch batch = new CefWriterMetrics.Batch();
+        final long wallStart = System.nanoTime();
+        final long start = batch.start();
+        //Every read of the content repository is slow, so counting it in the write as well would exceed the wall-clock time
+        try (InputStream in = batch.timeReads(new SlowInputStream(new byte[]{'a', 'b', 'c', 'd'}))) {
+            final byte[] buffer = new byte[1];
+            while (in.read(buffer, 0, 1) != -1) {
+                busy(20);
+            }
+        }
+        batch.time(CefWriterMetrics.Stage.WRITE, start);
+        final long wall = System.nanoTime() - wallStart;
+
+        final long read = batch.nanos(CefWriterMetrics.Stage.CONTENT_READ);
+        final long write = batch.nanos(CefWriterMetrics.Stage.WRITE);
+        assertTrue(read >= 5 * 20_000_000L);
+        assertTrue(write >= 4 * 20_000_000L);
+        assertTrue(read + write <= wall);
+    }
+
+    private static void busy(final long millis) {
+        final long end = System.nanoTime() + millis * 1_000_000L;
+        while (System.nanoTime() < end) {
+            Thread.onSpinWait();
+        }
+    }
+
+    private static final class SlowInputStream extends ByteArrayInputStream {
+        SlowInputStream(final byte[] content) {
+            super(content);
+        }
+
+        @Override
+        public synchronized int read(final byte[] b, final int off, final int len) {
+            busy(20);
+            return super.read(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+//Soak tests of the CefWriter processor with realistic mixes of events: many events through concurrent tasks and many sessions, values
+//full of characters to escape, many dynamic properties and large content. Run by the failsafe plugin in mvn verify, not by mvn test.
+//Every mix asserts a minimum throughput and a maximum number of bytes allocated per event. The allocation includes what the mock
+//framework allocates for flowfiles and sessions, so the gates catch regressions rather than measure the processor on its own. The
+//throughput gates are set well below what a developer laptop reaches, so that a loaded build machine still passes them.
+//-Dcef.soak.scale multiplies the number of events for longer soaks, -Dcef.soak.threads sets the number of concurrent tasks
+public class CefWriterSoakIT {
+
+    private static final int SCALE = Integer.getInteger("cef.soak.scale", 1);
+    private static final int THREADS = Integer.getInteger("cef.soak.threads", 4);
+    private static final int BATCH_SIZE = 100;
+
+    private final CefWriter processor = new CefWriter();
+    private TestRunner runner;
+
+    @Before
+    public void init() {
+        runner = TestRunners.newTestRunner(processor);
+        runner.setProperty( processor.SYSLOG_PREFIX, "CEF:0" );
+        runner.setProperty( processor.DEVICE_VENDOR, "Security" );
+        runner.setProperty( processor.DEVICE_PRODUCT, "threatmanager" );
+        runner.setProperty( processor.DEVICE_VERSION, "1.0" );
+        runner.setProperty( processor.DEVICE_CLASS_ID, "${class.id}" );
+        runner.setProperty( processor.EVENT_NAME, "${event.name}" );
+        runner.setProperty( processor.EVENT_SEVERITY, "${severity}" );
+        runner.setProperty( processor.BATCH_SIZE, String.valueOf( BATCH_SIZE ) );
+    }
+
+    @Test
+    public void testTypicalEvents()
+    {
+        System.out.println( "\n--- testTypicalEvents() ------------------------------------------------------------------" );
+
+        runner.setProperty( "src", "${src}" );
+        runner.setProperty( "dst", "${dst}" );
+        runner.setProperty( "spt", "${spt}" );
+        runner.setProperty( "act", "${act}" );
+        runner.setProperty( "suser", "${user}" );
+        runner.setProperty( "deviceExternalId", "fw-cluster-01" );
+        soak( 200_000, i -> {
+            Map<String, String> attributes = eventAttributes( i );
+            attributes.put( "src", "10.0." + (i >> 8 & 0xFF) + "." + (i & 0xFF) );
+            attributes.put( "dst", "192.168.1." + (i % 200) );
+            attributes.put( "spt", String.valueOf( 1024 + i % 60000 ) );
+            attributes.put( "act", i % 3 == 0 ? "blocked" : "allowed" );
+            attributes.put( "user", "user" + (i % 1000) + "@example.com" );
+            return attributes;
+        }, "".getBytes( StandardCharsets.UTF_8 ), 10_000, 20_000 );
+    }
+
+    @Test
+    public void testEscapeHeavyValues()
+    {
+        System.out.println( "\n--- testEscapeHeavyValues() --------------------------------------------------------------" );
+
+        runner.setProperty( "request", "${request}" );
+        runner.setProperty( "cs1", "${query}" );
+        runner.setProperty( "fname", "${path}" );
+        soak( 100_000, i -> {
+            Map<String, String> attributes = eventAttributes( i );
+            attributes.put( "event.name", "rule|" + i + "|matched \\ twice" );
+            attributes.put( "request", "https://example.com/search?q=a=b&c=" + i + "|x" );
+            attributes.put( "query", "SELECT * FROM t WHERE a='=' \\\r\nAND b=" + i + "\n-- ü" );
+            attributes.put( "path", "C:\\Users\\jörg\\AppData\\" + i + "\\x=y.dll" );
+            return attributes;
+        }, "".getBytes( StandardCharsets.UTF_8 ), 5_000, 16_000 );
+    }
+
+    @Test
+    public void testManyDynamicProperties()
+    {
+        System.out.println( "\n--- testManyDynamicProperties() ----------------------------------------------------------" );
+
+        for( int k = 1; k <= 40; k++ ) {
+            runner.setProperty( "field" + k, k % 2 == 0 ? "${value" + k + "}" : "static value " + k );
+        }
+        soak( 50_000, i -> {
+            Map<String, String> attributes = eventAttributes( i );
+            for( int k = 2; k <= 40; k += 2 ) {
+                attributes.put( "value" + k, "value " + k + " of event " + i );
+            }
+            return attributes;
+        }, "".getBytes( StandardCharsets.UTF_8 ), 2_000, 56_000 );
+    }
+
+    @Test
+    public void testLargeContentAsMsg()
+    {
+        System.out.println( "\n--- testLargeContentAsMsg() --------------------------------------------------------------" );
+
+        runner.setProperty( processor.CONTENT_AS_MSG, processor.USE_CONTENT_AS_MSG );
+        runner.setProperty( processor.MAX_MSG_SIZE, "1 MB" );
+        runner.setProperty( "src", "10.0.0.1" );
+        byte[] content = new byte[256 * 1024];
+        byte[] line = "2024-05-01T12:00:00Z host sshd[123]: key=value | path=C:\\temp\r\n".getBytes( StandardCharsets.UTF_8 );
+        for( int i = 0; i < content.length; i++ ) {
+            content[i] = line[i % line.length];
+        }
+// the mock framework copies the content and the record of every flowfile between byte arrays, several times over...
+        soak( 200, this::eventAttributes, content, 50, 8L * content.length );
+    }
+
+    private Map<String, String> eventAttributes( int i )
+    {
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put( "class.id", String.valueOf( 100 + i % 50 ) );
+        attributes.put( "event.name", "connection " + (i % 2 == 0 ? "accepted" : "denied") );
+        attributes.put( "severity", String.valueOf( i % 11 ) );
+        return attributes;
+    }
+
+    //Converts the events with concurrent tasks and asserts the minimum throughput, then converts them again on this thread alone and asserts
+    //the maximum allocation per event. Both are measured after a warm-up, so that the JIT compiler has done its work
+    private void soak( int baseEvents, IntFunction<Map<String, String>> attributes, byte[] content, double minEventsPerSecond, long maxBytesPerEvent )
+    {
+        final int events = baseEvents * SCALE;
+        final int warmUpEvents = Math.min( events, 20_000 );
+
+        runner.setThreadCount( 1 );
+        convert( warmUpEvents, attributes, content );
+
+        runner.setThreadCount( THREADS );
+        enqueue( events, attributes, content );
+        long start = System.nanoTime();
+        runner.run( events / BATCH_SIZE + THREADS );
+        double seconds = (System.nanoTime() - start) / 1e9;
+        assertConverted( events );
+        double eventsPerSecond = events / seconds;
+
+        runner.setThreadCount( 1 );
+        final int measuredEvents = Math.min( events, 20_000 );
+        enqueue( measuredEvents, attributes, content );
+// the first batch schedules the processor on a thread of the runner, the others are triggered on this thread where their allocation is measured...
+        runner.run( 1, false, true );
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocatedBefore = threads.getThreadAllocatedBytes( Thread.currentThread().getId() );
+        int triggeredEvents = runner.getQueueSize().getObjectCount();
+        while( !runner.isQueueEmpty() ) {
+            processor.onTrigger( runner.getProcessContext(), runner.getProcessSessionFactory() );
+        }
+        long bytesPerEvent = (threads.getThreadAllocatedBytes( Thread.currentThread().getId() ) - allocatedBefore) / Math.max( triggeredEvents, 1 );
+        runner.stop();
+        assertConverted( measuredEvents );
+
+        System.out.printf( "%,d events with %d threads: %,.0f events/sec (minimum %,.0f), %,d bytes allocated per event (maximum %,d)%n",
+                events, THREADS, eventsPerSecond, minEventsPerSecond, bytesPerEvent, maxBytesPerEvent );
+        assertTrue( "Throughput of " + (long) eventsPerSecond + " events/sec is below " + (long) minEventsPerSecond, eventsPerSecond >= minEventsPerSecond );
+        assertTrue( bytesPerEvent + " bytes allocated per event exceed " + maxBytesPerEvent, bytesPerEvent <= maxBytesPerEvent );
+    }
+
+    private void convert( int events, IntFunction<Map<String, String>> attributes, byte[] content )
+    {
+        enqueue( events, attributes, content );
+        runner.run( events / BATCH_SIZE + 1 );
+        assertConverted( events );
+    }
+
+    private void enqueue( int events, IntFunction<Map<String, String>> attributes, byte[] content )
+    {
+        for( int i = 0; i < events; i++ ) {
+            runner.enqueue( content, attributes.apply( i ) );
+        }
+    }
+
+    //Every event must have been converted, and the converted flowfiles are released before the next round
+    private void assertConverted( int events )
+    {
+        runner.assertQueueEmpty();
+        runner.assertTransferCount( processor.FAILURE, 0 );
+        assertEquals( events, runner.getFlowFilesForRelationship( processor.SUCCESS ).size() );
+        runner.clearTransferState();
+    }
+}
@@ -16,18 +16,39 @@
  */
 package com.cloudera.processors.cef;
 
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.lookup.LookupFailureException;
+import org.apache.nifi.lookup.LookupService;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
 import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.MockProcessContext;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
 
 import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 
 
 public class CefWriterTest {
@@ -259,7 +280,7 @@ public class CefWriterTest {
 // we know there's only one flowfile, so get it for our test...
         MockFlowFile flowfile = flowfiles.get( 0 );  assertNotNull( flowfile );
         String content = new String( runner.getContentAsByteArray( flowfile ) );
-        assertEquals("CEF:1|Security\\\\Policy|threatmanager\\|sample|1.0|100|worm \\= successfully stopped|10|", content);
+        assertEquals("CEF:1|Security\\\\Policy|threatmanager\\|sample|1.0|100|worm = successfully stopped|10|", content);
 
         if( VERBOSE )
         {
@@ -268,4 +289,1103 @@ public class CefWriterTest {
         }
     }
 
+    @Test
+    public void testSuccessBatch()
+    {
+        System.out.println( "\n--- testSuccessBatch() ------------------------------------------------------------------" );
+
+// set property values...
+        runner.setProperty( processor.BATCH_SIZE, "10" );
+        runner.setProperty( processor.SYSLOG_PREFIX, "CEF:1" );
+        runner.setProperty( processor.DEVICE_VENDOR, "Security" );
+        runner.setProperty( processor.DEVICE_PRODUCT, "threatmanager" );
+        runner.setProperty( processor.DEVICE_VERSION, "1.0" );
+        runner.setProperty( processor.DEVICE_CLASS_ID, "${class.id}" );
+        runner.setProperty( processor.EVENT_NAME, "worm successfully stopped" );
+        runner.setProperty( processor.EVENT_SEVERITY, "10" );
+// create several flowfiles that are pulled in a single session...
+        for( int i = 0; i < 3; i++ ) {
+            runner.enqueue( "This is a test file".getBytes(), Collections.singletonMap( "class.id", String.valueOf( 100 + i ) ) );
+        }
+        runner.run( 1 );
+        runner.assertQueueEmpty();
+
+// every flowfile is converted and routed on its own...
+        List<MockFlowFile> flowfiles = runner.getFlowFilesForRelationship( processor.SUCCESS );
+        assertEquals(3, flowfiles.size() );
+        for( int i = 0; i < 3; i++ ) {
+            flowfiles.get( i ).assertContentEquals( "CEF:1|Security|threatmanager|1.0|" + (100 + i) + "|worm successfully stopped|10|" );
+        }
+    }
+
+    private void setRequiredProperties()
+    {
+        runner.setProperty( processor.SYSLOG_PREFIX, "CEF:1" );
+        runner.setProperty( processor.DEVICE_VENDOR, "Security" );
+        runner.setProperty( processor.DEVICE_PRODUCT, "threatmanager" );
+        runner.setProperty( processor.DEVICE_VERSION, "1.0" );
+        runner.setProperty( processor.DEVICE_CLASS_ID, "100" );
+        runner.setProperty( processor.EVENT_NAME, "worm successfully stopped" );
+        runner.setProperty( processor.EVENT_SEVERITY, "10" );
+    }
+
+    @Test
+    public void testSuccessMultiLineMsg()
+    {
+        System.out.println( "\n--- testSuccessMultiLineMsg() ------------------------------------------------------------" );
+
+        runner.setProperty( processor.CONTENT_AS_MSG, processor.USE_CONTENT_AS_MSG );
+        setRequiredProperties();
+        runner.setProperty( "src", "10.0.0.1" );
+// lines are joined with spaces and escaped while the content is streamed...
+        runner.enqueue( "first line\r\nsecond=line\n\nthird \\ line|\n".getBytes( StandardCharsets.UTF_8 ) );
+        runner.run( 1 );
+        runner.assertAllFlowFilesTransferred( processor.SUCCESS, 1 );
+
+        runner.getFlowFilesForRelationship( processor.SUCCESS ).get( 0 ).assertContentEquals(
+                "CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|msg=first line second\\=line  third \\\\ line| src=10.0.0.1" );
+    }
+
+    @Test
+    public void testTruncateMsg()
+    {
+        System.out.println( "\n--- testTruncateMsg() --------------------------------------------------------------------" );
+
+        runner.setProperty( processor.CONTENT_AS_MSG, processor.USE_CONTENT_AS_MSG );
+        runner.setProperty( processor.MAX_MSG_SIZE, "10 B" );
+        setRequiredProperties();
+// the escaped "=" does not fit in the limit, so the msg is cut before it rather than in the middle of the escape sequence...
+        runner.enqueue( "123456789=abc".getBytes( StandardCharsets.UTF_8 ) );
+        runner.run( 1 );
+        runner.assertAllFlowFilesTransferred( processor.SUCCESS, 1 );
+
+        runner.getFlowFilesForRelationship( processor.SUCCESS ).get( 0 ).assertContentEquals(
+                "CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|msg=123456789" );
+    }
+
+    @Test
+    public void testOversizeMsgRoutedToFailure()
+    {
+        System.out.println( "\n--- testOversizeMsgRoutedToFailure() ------------------------------------------------------" );
+
+        runner.setProperty( processor.CONTENT_AS_MSG, processor.USE_CONTENT_AS_MSG );
+        runner.setProperty( processor.MAX_MSG_SIZE, "10 B" );
+        runner.setProperty( processor.MSG_SIZE_EXCEEDED_STRATEGY, processor.ROUTE_TO_FAILURE );
+        setRequiredProperties();
+        runner.enqueue( "This is a test file".getBytes( StandardCharsets.UTF_8 ) );
+        runner.run( 1 );
+        runner.assertAllFlowFilesTransferred( processor.FAILURE, 1 );
+
+// the original content is left untouched...
+        runner.getFlowFilesForRelationship( processor.FAILURE ).get( 0 ).assertContentEquals( "This is a test file" );
+    }
+
+    @Test
+    public void testComplexHeaderRequiresDateAndHost()
+    {
+        runner.setProperty( processor.COMPLEX_HEADER, processor.USE_COMPLEX_HEADER );
+        setRequiredProperties();
+        runner.setProperty( processor.EVENT_DATE, "${event.date}" );
+        runner.assertNotValid();
+
+        runner.setProperty( processor.EVENT_HOST, "host.example.com" );
+        runner.assertValid();
+    }
+
+    @Test
+    public void testExtensionOrder()
+    {
+        System.out.println( "\n--- testExtensionOrder() -----------------------------------------------------------------" );
+
+        setRequiredProperties();
+        runner.setProperty( "suser", "${user}" );
+        runner.setProperty( "src", "10.0.0.1" );
+        runner.setProperty( "act", "blocked" );
+        runner.setProperty( "dst", "10.0.0.2" );
+        runner.enqueue( "This is a test file".getBytes( StandardCharsets.UTF_8 ), Collections.singletonMap( "user", "admin" ) );
+        runner.run( 1 );
+// without a configured order the keys are sorted...
+        runner.getFlowFilesForRelationship( processor.SUCCESS ).get( 0 ).assertContentEquals(
+                "CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|act=blocked dst=10.0.0.2 src=10.0.0.1 suser=admin" );
+
+        runner.clearTransferState();
+        runner.setProperty( processor.EXTENSION_ORDER, "src, dst,unknown" );
+        runner.enqueue( "This is a test file".getBytes( StandardCharsets.UTF_8 ), Collections.singletonMap( "user", "admin" ) );
+        runner.run( 1 );
+// listed keys come first, the rest follow sorted...
+        runner.getFlowFilesForRelationship( processor.SUCCESS ).get( 0 ).assertContentEquals(
+                "CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|src=10.0.0.1 dst=10.0.0.2 act=blocked suser=admin" );
+    }
+
+    private void enqueueEvents( int count )
+    {
+        for( int i = 0; i < count; i++ ) {
+            runner.enqueue( "This is a test file".getBytes( StandardCharsets.UTF_8 ), Collections.singletonMap( "event.id", String.valueOf( i ) ) );
+        }
+    }
+
+    @Test
+    public void testBundleByRecordCount()
+    {
+        System.out.println( "\n--- testBundleByRecordCount() -------------------------------------------------------------" );
+
+        runner.setProperty( processor.OUTPUT_MODE, processor.BUNDLE_RECORDS );
+        runner.setProperty( processor.MAX_BUNDLE_RECORDS, "3" );
+        runner.setProperty( processor.MAX_BUNDLE_AGE, "1 hour" );
+        setRequiredProperties();
+        runner.setProperty( "cn1", "${event.id}" );
+// two flowfiles are not enough for a bundle, so they stay queued...
+        enqueueEvents( 2 );
+        runner.run( 1 );
+        runner.assertTransferCount( processor.SUCCESS, 0 );
+        runner.assertQueueNotEmpty();
+
+        enqueueEvents( 1 );
+        runner.run( 1 );
+        runner.assertQueueEmpty();
+        runner.assertAllFlowFilesTransferred( processor.SUCCESS, 1 );
+
+        MockFlowFile bundle = runner.getFlowFilesForRelationship( processor.SUCCESS ).get( 0 );
+        bundle.assertAttributeEquals( "record.count", "3" );
+        bundle.assertContentEquals( "CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|cn1=0\n"
+                + "CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|cn1=1\n"
+                + "CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|cn1=0\n" );
+    }
+
+    @Test
+    public void testBundleByAge() throws InterruptedException
+    {
+        System.out.println( "\n--- testBundleByAge() ----------------------------------------------------------------------" );
+
+        runner.setProperty( processor.OUTPUT_MODE, processor.BUNDLE_RECORDS );
+        runner.setProperty( processor.BUNDLE_FRAMING, processor.OCTET_COUNTING_FRAMING );
+        runner.setProperty( processor.MAX_BUNDLE_AGE, "10 millis" );
+        setRequiredProperties();
+        enqueueEvents( 2 );
+        Thread.sleep( 20 );
+        runner.run( 1 );
+        runner.assertQueueEmpty();
+        runner.assertAllFlowFilesTransferred( processor.SUCCESS, 1 );
+
+// every record is prefixed with its length in bytes...
+        String record = "CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|";
+        runner.getFlowFilesForRelationship( processor.SUCCESS ).get( 0 ).assertContentEquals(
+                record.length() + " " + record + record.length() + " " + record );
+    }
+
+    @Test
+    public void testBundleSplitBySize()
+    {
+        System.out.println( "\n--- testBundleSplitBySize() ----------------------------------------------------------------" );
+
+        runner.setProperty( processor.OUTPUT_MODE, processor.BUNDLE_RECORDS );
+        runner.setProperty( processor.MAX_BUNDLE_RECORDS, "5" );
+        runner.setProperty( processor.MAX_BUNDLE_SIZE, "150 B" );
+        setRequiredProperties();
+// each record takes 67 bytes, so only two of them fit in a bundle...
+        enqueueEvents( 5 );
+        runner.run( 1 );
+        runner.assertQueueEmpty();
+        runner.assertAllFlowFilesTransferred( processor.SUCCESS, 3 );
+
+        List<MockFlowFile> bundles = runner.getFlowFilesForRelationship( processor.SUCCESS );
+        bundles.get( 0 ).assertAttributeEquals( "record.count", "2" );
+        bundles.get( 1 ).assertAttributeEquals( "record.count", "2" );
+        bundles.get( 2 ).assertAttributeEquals( "record.count", "1" );
+    }
+
+    @Test
+    public void testBundleReadyBySize()
+    {
+        System.out.println( "\n--- testBundleReadyBySize() ----------------------------------------------------------------" );
+
+        runner.setProperty( processor.OUTPUT_MODE, processor.BUNDLE_RECORDS );
+        runner.setProperty( processor.MAX_BUNDLE_RECORDS, "5" );
+        runner.setProperty( processor.MAX_BUNDLE_SIZE, "150 B" );
+        runner.setProperty( processor.MAX_BUNDLE_AGE, "1 hour" );
+        setRequiredProperties();
+        enqueueEvents( 5 );
+        runner.run( 1, false );
+        runner.assertTransferCount( processor.SUCCESS, 3 );
+
+// the records written so far took 67 bytes each, so three queued flowfiles fill a bundle without the content as msg...
+        runner.clearTransferState();
+        enqueueEvents( 3 );
+        runner.run( 1, true, false );
+        runner.assertQueueEmpty();
+        runner.assertAllFlowFilesTransferred( processor.SUCCESS, 2 );
+    }
+
+    @Test
+    public void testBundleFailureIsIsolated()
+    {
+        System.out.println( "\n--- testBundleFailureIsIsolated() ----------------------------------------------------------" );
+
+        runner.setProperty( processor.OUTPUT_MODE, processor.BUNDLE_RECORDS );
+        runner.setProperty( processor.MAX_BUNDLE_RECORDS, "3" );
+        runner.setProperty( processor.CONTENT_AS_MSG, processor.USE_CONTENT_AS_MSG );
+        runner.setProperty( processor.MAX_MSG_SIZE, "10 B" );
+        runner.setProperty( processor.MSG_SIZE_EXCEEDED_STRATEGY, processor.ROUTE_TO_FAILURE );
+        setRequiredProperties();
+        runner.enqueue( "first" );
+        runner.enqueue( "This is a test file" );
+        runner.enqueue( "third" );
+        runner.run( 1 );
+        runner.assertQueueEmpty();
+
+// the oversize flowfile fails on its own, its neighbours are bundled...
+        runner.assertTransferCount( processor.FAILURE, 1 );
+        MockFlowFile failed = runner.getFlowFilesForRelationship( processor.FAILURE ).get( 0 );
+        failed.assertContentEquals( "This is a test file" );
+        failed.assertAttributeEquals( processor.ERROR_ATTRIBUTE, "msg Too Large" );
+        failed.assertAttributeEquals( processor.ERROR_FIELD_ATTRIBUTE, "msg" );
+        runner.assertTransferCount( processor.SUCCESS, 1 );
+        runner.getFlowFilesForRelationship( processor.SUCCESS ).get( 0 ).assertContentEquals(
+                "CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|msg=first\n"
+                + "CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|msg=third\n" );
+    }
+
+    @Test
+    public void testExtensionAttributePrefix()
+    {
+        System.out.println( "\n--- testExtensionAttributePrefix() ----------------------------------------------------------" );
+
+        setRequiredProperties();
+        runner.setProperty( processor.EXTENSION_ATTRIBUTE_PREFIX, "cef.ext." );
+        runner.setProperty( processor.EXTENSION_ORDER, "src" );
+        runner.setProperty( "act", "blocked" );
+        runner.setProperty( "suser", "${user}" );
+
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put( "user", "admin" );
+        attributes.put( "cef.ext.src", "10.0.0.1" );
+        attributes.put( "cef.ext.dst", "10.0.0.2" );
+        attributes.put( "cef.ext.request url", "http://example.com/?a=b" );
+        attributes.put( "cef.ext.act", "ignored" );
+        attributes.put( "other", "not mapped" );
+// the second flowfile is translated from the cached keys...
+        runner.enqueue( "This is a test file".getBytes( StandardCharsets.UTF_8 ), attributes );
+        runner.enqueue( "This is a test file".getBytes( StandardCharsets.UTF_8 ), attributes );
+        runner.run( 1 );
+        runner.assertAllFlowFilesTransferred( processor.SUCCESS, 2 );
+
+// mapped attributes are merged into the extension order, the dynamic property wins over cef.ext.act...
+        for( MockFlowFile flowfile : runner.getFlowFilesForRelationship( processor.SUCCESS ) ) {
+            flowfile.assertContentEquals( "CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|"
+                    + "src=10.0.0.1 act=blocked dst=10.0.0.2 request_url=http://example.com/?a\\=b suser=admin" );
+        }
+    }
+
+    @Test
+    public void testExtensionAttributeRegex()
+    {
+        System.out.println( "\n--- testExtensionAttributeRegex() -----------------------------------------------------------" );
+
+        setRequiredProperties();
+        runner.setProperty( processor.EXTENSION_ATTRIBUTE_REGEX, "siem\\.(.*)" );
+
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put( "siem.dst", "10.0.0.2" );
+        attributes.put( "siem.cs1", "a\nb" );
+        attributes.put( "not.siem.src", "10.0.0.1" );
+// names that are not valid keys are skipped rather than escaped into keys no parser reads back...
+        attributes.put( "siem.a=b", "equals" );
+        attributes.put( "siem.a\\b", "backslash" );
+        attributes.put( "siem.a|b", "pipe" );
+        runner.enqueue( "This is a test file".getBytes( StandardCharsets.UTF_8 ), attributes );
+        runner.run( 1 );
+
+        runner.getFlowFilesForRelationship( processor.SUCCESS ).get( 0 ).assertContentEquals(
+                "CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|cs1=a\\nb dst=10.0.0.2" );
+    }
+
+    @Test
+    public void testRoundTrip()
+    {
+        System.out.println( "\n--- testRoundTrip() ------------------------------------------------------------------------" );
+
+        runner.setProperty( processor.CONTENT_AS_MSG, processor.USE_CONTENT_AS_MSG );
+        runner.setProperty( processor.COMPLEX_HEADER, processor.USE_COMPLEX_HEADER );
+        runner.setProperty( processor.EVENT_DATE, "April 30 08:26:10" );
+        runner.setProperty( processor.EVENT_HOST, "host.example.com" );
+        runner.setProperty( processor.SYSLOG_PREFIX, "CEF:1" );
+        runner.setProperty( processor.DEVICE_VENDOR, "Security\\Policy" );
+        runner.setProperty( processor.DEVICE_PRODUCT, "threatmanager|sample" );
+        runner.setProperty( processor.DEVICE_VERSION, "1.0" );
+        runner.setProperty( processor.DEVICE_CLASS_ID, "100" );
+        runner.setProperty( processor.EVENT_NAME, "worm = successfully stopped" );
+        runner.setProperty( processor.EVENT_SEVERITY, "10" );
+        runner.setProperty( "filePath", "${path}" );
+        runner.setProperty( "cs1", "a=b | c" );
+        runner.enqueue( "key=value \\ pipe|".getBytes( StandardCharsets.UTF_8 ), Collections.singletonMap( "path", "C:\\temp\\x=y" ) );
+        runner.run( 1 );
+        runner.assertAllFlowFilesTransferred( processor.SUCCESS, 1 );
+
+// parse the record back instead of comparing its escaped form...
+        CefParser parser = new CefParser();
+        parser.parse( runner.getContentAsByteArray( runner.getFlowFilesForRelationship( processor.SUCCESS ).get( 0 ) ) );
+        assertEquals( "April 30 08:26:10", parser.eventDate() );
+        assertEquals( "host.example.com", parser.eventHost() );
+        assertEquals( "CEF:1", parser.header( 0 ) );
+        assertEquals( "Security\\Policy", parser.header( 1 ) );
+        assertEquals( "threatmanager|sample", parser.header( 2 ) );
+        assertEquals( "worm = successfully stopped", parser.header( 5 ) );
+
+        Map<String, String> expected = new HashMap<>();
+        expected.put( "msg", "key=value \\ pipe|" );
+        expected.put( "cs1", "a=b | c" );
+        expected.put( "filePath", "C:\\temp\\x=y" );
+        assertEquals( expected, parser.extensions() );
+    }
+
+    @Test
+    public void testMetricsCounters()
+    {
+        System.out.println( "\n--- testMetricsCounters() ----------------------------------------------------------" );
+
+        setRequiredProperties();
+        runner.setProperty( processor.EVENT_NAME, "${name}" );
+        runner.setProperty( "cs1", "${value}" );
+        runner.setProperty( processor.CONTENT_AS_MSG, processor.USE_CONTENT_AS_MSG );
+        runner.setProperty( processor.MAX_MSG_SIZE, "20 B" );
+        runner.setProperty( processor.MSG_SIZE_EXCEEDED_STRATEGY, processor.ROUTE_TO_FAILURE );
+        runner.setProperty( processor.METRICS_SUMMARY_INTERVAL, "1 ms" );
+
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put( "name", "worm|stopped" );
+        attributes.put( "value", "x=y\\z" );
+        runner.enqueue( "a=b", attributes );
+        runner.enqueue( "This is a test file that is too long for the msg", attributes );
+        runner.run( 1 );
+
+        runner.assertTransferCount( processor.SUCCESS, 1 );
+        runner.assertTransferCount( processor.FAILURE, 1 );
+
+// one escape in the header, two in the extension and one in the msg, the oversize flowfile gets its fields escaped before it fails...
+        assertEquals( Long.valueOf( 1 ), runner.getCounterValue( "CEF Records Written" ) );
+        assertEquals( Long.valueOf( 4 + 3 ), runner.getCounterValue( "CEF Escaped Characters" ) );
+        assertEquals( Long.valueOf( 1 ), runner.getCounterValue( "CEF Records < 256 B" ) );
+        assertEquals( Long.valueOf( 1 ), runner.getCounterValue( "CEF Failures: msg Too Large" ) );
+        assertNotNull( runner.getCounterValue( "CEF Header Nanos" ) );
+        assertNotNull( runner.getCounterValue( "CEF Content Read Nanos" ) );
+    }
+
+    @Test
+    public void testStageTimesDoNotExceedConversionTime()
+    {
+        System.out.println( "\n--- testStageTimesDoNotExceedConversionTime() ----------------------------------------" );
+
+        setRequiredProperties();
+        runner.setProperty( processor.CONTENT_AS_MSG, processor.USE_CONTENT_AS_MSG );
+        runner.setProperty( processor.MAX_MSG_SIZE, "8 MB" );
+
+        final StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 200000; i++) {
+            content.append( "line=" ).append( i ).append( '\n' );
+        }
+        for (int i = 0; i < 4; i++) {
+            runner.enqueue( content.toString() );
+        }
+        final long start = System.nanoTime();
+        runner.run( 1 );
+        final long elapsed = System.nanoTime() - start;
+
+        runner.assertTransferCount( processor.SUCCESS, 4 );
+// the content read is timed inside the write, so it must not be counted in both...
+        long stages = 0;
+        for (String stage : new String[]{ "Header", "Extensions", "Content Read", "Write" }) {
+            final Long nanos = runner.getCounterValue( "CEF " + stage + " Nanos" );
+            stages += nanos == null ? 0 : nanos;
+        }
+        assertTrue( runner.getCounterValue( "CEF Content Read Nanos" ) > 0 );
+        assertTrue( stages <= elapsed );
+    }
+
+    @Test
+    public void testUnknownExtensionKeyIsInvalid()
+    {
+        System.out.println( "\n--- testUnknownExtensionKeyIsInvalid() ----------------------------------------------------------" );
+
+        setRequiredProperties();
+        runner.setProperty( "src", "10.0.0.1" );
+        runner.setProperty( "sourceIp", "10.0.0.1" );
+        runner.assertValid();
+
+        runner.setProperty( processor.EXTENSION_KEY_VALIDATION, processor.VALIDATE_KEYS );
+        runner.assertNotValid();
+        runner.removeProperty( "sourceIp" );
+        runner.assertValid();
+
+// literal values of typed keys are checked up front...
+        runner.setProperty( processor.EXTENSION_KEY_VALIDATION, processor.VALIDATE_KEYS_AND_VALUES );
+        runner.setProperty( "dpt", "http" );
+        runner.assertNotValid();
+        runner.setProperty( "dpt", "${port}" );
+        runner.assertValid();
+    }
+
+    @Test
+    public void testExtensionValueCoercion()
+    {
+        System.out.println( "\n--- testExtensionValueCoercion() ----------------------------------------------------------" );
+
+        setRequiredProperties();
+        runner.setProperty( processor.EXTENSION_KEY_VALIDATION, processor.VALIDATE_KEYS_AND_VALUES );
+        runner.setProperty( "src", "${addr}" );
+        runner.setProperty( "smac", "${mac}" );
+        runner.setProperty( "dpt", "${port}" );
+        runner.setProperty( "suser", "${user}" );
+
+        final Map<String, String> valid = new HashMap<>();
+        valid.put( "addr", "010.0.0.1" );
+        valid.put( "mac", "00-0d-60-af-1b-61" );
+        valid.put( "port", "0443" );
+        valid.put( "user", "0443" );
+        runner.enqueue( "first", valid );
+
+        final Map<String, String> invalid = new HashMap<>( valid );
+        invalid.put( "port", "https" );
+        runner.enqueue( "second", invalid );
+        runner.run( 1 );
+
+// values of typed keys are written in their canonical form, strings as they are...
+        runner.assertTransferCount( processor.SUCCESS, 1 );
+        runner.getFlowFilesForRelationship( processor.SUCCESS ).get( 0 ).assertContentEquals(
+                "CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|dpt=443 smac=00:0D:60:AF:1B:61 src=10.0.0.1 suser=0443" );
+        runner.assertTransferCount( processor.FAILURE, 1 );
+        MockFlowFile failed = runner.getFlowFilesForRelationship( processor.FAILURE ).get( 0 );
+        failed.assertContentEquals( "second" );
+        failed.assertAttributeEquals( processor.ERROR_ATTRIBUTE, "Invalid Field" );
+        failed.assertAttributeEquals( processor.ERROR_FIELD_ATTRIBUTE, "dpt" );
+        failed.assertAttributeEquals( processor.ERROR_MESSAGE_ATTRIBUTE, "Value 'https' of extension key 'dpt' is not a valid Integer" );
+    }
+
+    @Test
+    public void testNativeTimestamps()
+    {
+        System.out.println( "\n--- testNativeTimestamps() ----------------------------------------------------------" );
+
+        setRequiredProperties();
+        runner.setProperty( processor.COMPLEX_HEADER, processor.USE_COMPLEX_HEADER );
+        runner.setProperty( processor.EVENT_HOST, "host.example.com" );
+        runner.assertNotValid();
+        runner.setProperty( processor.HEADER_DATE_FORMAT, processor.SYSLOG_TIMESTAMP );
+        runner.assertValid();
+
+        runner.setProperty( processor.EVENT_TIME_ATTRIBUTE, "event.time" );
+        runner.setProperty( processor.TIMESTAMP_FIELDS, "rt,end=end.time" );
+        runner.setProperty( processor.TIMESTAMP_FIELD_FORMAT, processor.CEF_TIMESTAMP );
+        runner.setProperty( "act", "blocked" );
+
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put( "event.time", "1700000000123" );
+        attributes.put( "end.time", "1700000005000" );
+        runner.enqueue( "first", attributes );
+        runner.enqueue( "second", Collections.singletonMap( "event.time", "yesterday" ) );
+        runner.run( 1 );
+
+// the header date and both fields come from the attributes, the invalid time fails...
+        runner.assertTransferCount( processor.SUCCESS, 1 );
+        runner.getFlowFilesForRelationship( processor.SUCCESS ).get( 0 ).assertContentEquals(
+                "Nov 14 22:13:20 host.example.com CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|"
+                + "act=blocked end=Nov 14 2023 22:13:25.000 UTC rt=Nov 14 2023 22:13:20.123 UTC" );
+        runner.assertTransferCount( processor.FAILURE, 1 );
+    }
+
+    @Test
+    public void testIsoEventTime()
+    {
+        System.out.println( "\n--- testIsoEventTime() ----------------------------------------------------------" );
+
+        setRequiredProperties();
+        runner.setProperty( processor.EVENT_TIME_ATTRIBUTE, "event.time" );
+        runner.setProperty( processor.EVENT_TIME_FORMAT, processor.ISO_8601 );
+        runner.setProperty( processor.TIME_ZONE, "Europe/Berlin" );
+        runner.setProperty( processor.TIMESTAMP_FIELDS, "rt" );
+        runner.enqueue( "with offset", Collections.singletonMap( "event.time", "2023-11-14T22:13:20.123Z" ) );
+        runner.enqueue( "local time", Collections.singletonMap( "event.time", "2023-11-14T23:13:20.123" ) );
+        runner.run( 1 );
+
+// times without an offset are read in the configured zone...
+        runner.assertAllFlowFilesTransferred( processor.SUCCESS, 2 );
+        for( MockFlowFile flowfile : runner.getFlowFilesForRelationship( processor.SUCCESS ) ) {
+            flowfile.assertContentEquals( "CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|rt=1700000000123" );
+        }
+
+        runner.setProperty( "rt", "now" );
+        runner.assertNotValid();
+    }
+
+    @Test
+    public void testSplitLines()
+    {
+        System.out.println( "\n--- testSplitLines() --------------------------------------------------------------------" );
+
+        setRequiredProperties();
+        runner.setProperty( processor.OUTPUT_MODE, processor.SPLIT_LINES );
+        runner.setProperty( "src", "${addr}" );
+        runner.enqueue( "first line\r\nsecond=line\n\n   \nthird \\ line|", Collections.singletonMap( "addr", "10.0.0.1" ) );
+        runner.run( 1 );
+        runner.assertAllFlowFilesTransferred( processor.SUCCESS, 1 );
+
+// carriage returns and blank lines are dropped, the fields are shared by every line...
+        MockFlowFile flowfile = runner.getFlowFilesForRelationship( processor.SUCCESS ).get( 0 );
+        flowfile.assertContentEquals(
+                "CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|msg=first line src=10.0.0.1\n"
+                + "CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|msg=second\\=line src=10.0.0.1\n"
+                + "CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|msg=third \\\\ line| src=10.0.0.1\n" );
+        flowfile.assertAttributeEquals( "record.count", "3" );
+    }
+
+    @Test
+    public void testSplitLinesCustomDelimiter()
+    {
+        System.out.println( "\n--- testSplitLinesCustomDelimiter() ------------------------------------------------------" );
+
+        setRequiredProperties();
+        runner.setProperty( processor.OUTPUT_MODE, processor.SPLIT_LINES );
+        runner.setProperty( processor.LINE_DELIMITER, "|\\t|" );
+        runner.setProperty( processor.BUNDLE_FRAMING, processor.OCTET_COUNTING_FRAMING );
+// a partial delimiter is part of the line, the match restarts inside it, the empty line is skipped and a carriage return is escaped...
+        runner.enqueue( "a||\t|b|\t\t|\t||\t|c\r" );
+        runner.run( 1 );
+        runner.assertAllFlowFilesTransferred( processor.SUCCESS, 1 );
+
+        String prefix = "CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|msg=";
+        String first = prefix + "a|";
+        String second = prefix + "b|\t\t";
+        String third = prefix + "c\\r";
+        runner.getFlowFilesForRelationship( processor.SUCCESS ).get( 0 ).assertContentEquals(
+                first.length() + " " + first + second.length() + " " + second + third.length() + " " + third );
+    }
+
+    @Test
+    public void testSplitLinesOversizeLine()
+    {
+        System.out.println( "\n--- testSplitLinesOversizeLine() ---------------------------------------------------------" );
+
+        setRequiredProperties();
+        runner.setProperty( processor.OUTPUT_MODE, processor.SPLIT_LINES );
+        runner.setProperty( processor.MAX_MSG_SIZE, "10 B" );
+        runner.enqueue( "short\n123456789=abc\n" );
+        runner.run( 1 );
+
+// only the oversize line is truncated...
+        runner.assertAllFlowFilesTransferred( processor.SUCCESS, 1 );
+        runner.getFlowFilesForRelationship( processor.SUCCESS ).get( 0 ).assertContentEquals(
+                "CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|msg=short\n"
+                + "CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|msg=123456789\n" );
+
+        runner.clearTransferState();
+        runner.setProperty( processor.MSG_SIZE_EXCEEDED_STRATEGY, processor.ROUTE_TO_FAILURE );
+        runner.enqueue( "short\n123456789=abc\n" );
+        runner.run( 1 );
+
+// ...or the whole flowfile fails with its content untouched
+        runner.assertAllFlowFilesTransferred( processor.FAILURE, 1 );
+        runner.getFlowFilesForRelationship( processor.FAILURE ).get( 0 ).assertContentEquals( "short\n123456789=abc\n" );
+        assertEquals( 1, runner.getCounterValue( "CEF Failures: msg Too Large" ).longValue() );
+    }
+
+    @Test
+    public void testSplitLinesMaxLineLength()
+    {
+        System.out.println( "\n--- testSplitLinesMaxLineLength() --------------------------------------------------------" );
+
+        setRequiredProperties();
+        runner.setProperty( processor.OUTPUT_MODE, processor.SPLIT_LINES );
+        runner.setProperty( processor.MAX_LINE_LENGTH, "8 B" );
+        runner.enqueue( "short\n1234567\u0434xyz\n" );
+        runner.run( 1 );
+
+// without a msg or record size a line is still bounded, and cut before the character the limit falls into...
+        runner.assertAllFlowFilesTransferred( processor.SUCCESS, 1 );
+        runner.getFlowFilesForRelationship( processor.SUCCESS ).get( 0 ).assertContentEquals(
+                "CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|msg=short\n"
+                + "CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|msg=1234567\n" );
+
+        runner.clearTransferState();
+        runner.setProperty( processor.MSG_SIZE_EXCEEDED_STRATEGY, processor.ROUTE_TO_FAILURE );
+        runner.enqueue( "short\n1234567\u0434xyz\n" );
+        runner.run( 1 );
+
+// ...or the flowfile fails like one with an oversize msg
+        runner.assertAllFlowFilesTransferred( processor.FAILURE, 1 );
+        assertEquals( 1, runner.getCounterValue( "CEF Failures: msg Too Large" ).longValue() );
+    }
+
+    private String manyLines()
+    {
+        StringBuilder sb = new StringBuilder();
+        for( int i = 0; i < 20000; i++ ) {
+            sb.append( "line " ).append( i ).append( i % 7 == 0 ? " key=value \\ pipe|" : "" ).append( i % 11 == 0 ? "\r\n" : "\n" );
+            if( i % 13 == 0 ) {
+                sb.append( "  \n" );
+            }
+            if( i % 997 == 0 ) {
+                sb.append( "long line " ).append( String.join( "", Collections.nCopies( 300, "x=" ) ) ).append( '\n' );
+            }
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testParallelConversionMatchesSerial()
+    {
+        System.out.println( "\n--- testParallelConversionMatchesSerial() -------------------------------------------------" );
+
+        setRequiredProperties();
+        runner.setProperty( processor.OUTPUT_MODE, processor.SPLIT_LINES );
+        runner.setProperty( processor.MAX_MSG_SIZE, "200 B" );
+        runner.setProperty( processor.CONVERSION_CHUNK_SIZE, "1 KB" );
+        runner.setProperty( "src", "10.0.0.1" );
+        String content = manyLines();
+        runner.enqueue( content );
+        runner.run( 1 );
+        runner.assertAllFlowFilesTransferred( processor.SUCCESS, 1 );
+        MockFlowFile serial = runner.getFlowFilesForRelationship( processor.SUCCESS ).get( 0 );
+
+// the chunks are converted on four threads and written back in their original order...
+        runner.clearTransferState();
+        runner.setProperty( processor.CONVERSION_THREADS, "4" );
+        runner.enqueue( content );
+        runner.run( 1 );
+        runner.assertAllFlowFilesTransferred( processor.SUCCESS, 1 );
+        MockFlowFile parallel = runner.getFlowFilesForRelationship( processor.SUCCESS ).get( 0 );
+
+        assertEquals( "20021", serial.getAttribute( "record.count" ) );
+        parallel.assertAttributeEquals( "record.count", "20021" );
+        parallel.assertContentEquals( new String( runner.getContentAsByteArray( serial ), StandardCharsets.UTF_8 ) );
+    }
+
+    @Test
+    public void testParallelConversionFailure()
+    {
+        System.out.println( "\n--- testParallelConversionFailure() -------------------------------------------------------" );
+
+        setRequiredProperties();
+        runner.setProperty( processor.OUTPUT_MODE, processor.SPLIT_LINES );
+        runner.setProperty( processor.MAX_MSG_SIZE, "200 B" );
+        runner.setProperty( processor.MSG_SIZE_EXCEEDED_STRATEGY, processor.ROUTE_TO_FAILURE );
+        runner.setProperty( processor.CONVERSION_CHUNK_SIZE, "1 KB" );
+        runner.setProperty( processor.CONVERSION_THREADS, "4" );
+        String content = manyLines();
+        runner.enqueue( content );
+        runner.run( 1 );
+
+// an oversize line in any chunk fails the whole flowfile...
+        runner.assertAllFlowFilesTransferred( processor.FAILURE, 1 );
+        runner.getFlowFilesForRelationship( processor.FAILURE ).get( 0 ).assertContentEquals( content );
+        assertEquals( 1, runner.getCounterValue( "CEF Failures: msg Too Large" ).longValue() );
+    }
+
+    @Test
+    public void testTruncateMsgToFitRecord()
+    {
+        System.out.println( "\n--- testTruncateMsgToFitRecord() ---------------------------------------------------------" );
+
+        setRequiredProperties();
+        runner.setProperty( processor.MAX_RECORD_SIZE, "89 B" );
+        runner.setProperty( "msg", "12345=6789" );
+        runner.setProperty( "src", "10.0.0.1" );
+// the msg gets the 6 bytes the header and src leave, and is cut before the escaped "=" rather than in the middle of it...
+        runner.enqueue( "" );
+        runner.run( 1 );
+        runner.assertAllFlowFilesTransferred( processor.SUCCESS, 1 );
+
+        runner.getFlowFilesForRelationship( processor.SUCCESS ).get( 0 ).assertContentEquals(
+                "CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|msg=12345 src=10.0.0.1" );
+    }
+
+    @Test
+    public void testTruncateStreamedMsgToFitRecord()
+    {
+        System.out.println( "\n--- testTruncateStreamedMsgToFitRecord() -------------------------------------------------" );
+
+        runner.setProperty( processor.CONTENT_AS_MSG, processor.USE_CONTENT_AS_MSG );
+        setRequiredProperties();
+        runner.setProperty( processor.MAX_RECORD_SIZE, "90 B" );
+        runner.setProperty( "src", "10.0.0.1" );
+        runner.enqueue( "This is a test file".getBytes( StandardCharsets.UTF_8 ) );
+        runner.run( 1 );
+        runner.assertAllFlowFilesTransferred( processor.SUCCESS, 1 );
+
+        MockFlowFile result = runner.getFlowFilesForRelationship( processor.SUCCESS ).get( 0 );
+        result.assertContentEquals( "CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|msg=This is src=10.0.0.1" );
+        assertEquals( 90, result.getSize() );
+    }
+
+    @Test
+    public void testDropLowPriorityFields()
+    {
+        System.out.println( "\n--- testDropLowPriorityFields() ----------------------------------------------------------" );
+
+        setRequiredProperties();
+        runner.setProperty( processor.MAX_RECORD_SIZE, "87 B" );
+        runner.setProperty( processor.RECORD_SIZE_EXCEEDED_STRATEGY, processor.TRUNCATE_AND_DROP_FIELDS );
+        runner.setProperty( processor.LOW_PRIORITY_EXTENSION_KEYS, "cs1, cs2" );
+        runner.setProperty( "cs1", "aaaaaaaaaa" );
+        runner.setProperty( "cs2", "bbbb" );
+        runner.setProperty( "src", "10.0.0.1" );
+// dropping cs1 is enough, so cs2 is kept...
+        runner.enqueue( "" );
+        runner.run( 1 );
+        runner.assertAllFlowFilesTransferred( processor.SUCCESS, 1 );
+
+        runner.getFlowFilesForRelationship( processor.SUCCESS ).get( 0 ).assertContentEquals(
+                "CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|cs2=bbbb src=10.0.0.1" );
+    }
+
+    @Test
+    public void testOversizeRecordRoutedToFailure()
+    {
+        System.out.println( "\n--- testOversizeRecordRoutedToFailure() --------------------------------------------------" );
+
+        runner.setProperty( processor.CONTENT_AS_MSG, processor.USE_CONTENT_AS_MSG );
+        setRequiredProperties();
+        runner.setProperty( processor.MAX_RECORD_SIZE, "76 B" );
+        runner.setProperty( processor.RECORD_SIZE_EXCEEDED_STRATEGY, processor.ROUTE_TO_FAILURE );
+        runner.enqueue( "This is a test file".getBytes( StandardCharsets.UTF_8 ) );
+        runner.run( 1 );
+        runner.assertAllFlowFilesTransferred( processor.FAILURE, 1 );
+
+        runner.getFlowFilesForRelationship( processor.FAILURE ).get( 0 ).assertContentEquals( "This is a test file" );
+        assertEquals( 1, runner.getCounterValue( "CEF Failures: Record Too Large" ).longValue() );
+    }
+
+    @Test
+    public void testLeef1Output()
+    {
+        System.out.println( "\n--- testLeef1Output() --------------------------------------------------------------------" );
+
+        runner.setProperty( processor.CONTENT_AS_MSG, processor.USE_CONTENT_AS_MSG );
+        setRequiredProperties();
+        runner.setProperty( processor.LEEF_OUTPUT, processor.LEEF_1_0 );
+        runner.setProperty( "src", "10.0.0.1" );
+        runner.setProperty( "suser", "${user}" );
+        runner.enqueue( "first line\nsecond=line".getBytes( StandardCharsets.UTF_8 ), Collections.singletonMap( "user", "jo\tsmith" ) );
+        runner.run( 1 );
+        runner.assertTransferCount( processor.SUCCESS, 1 );
+        runner.assertTransferCount( processor.LEEF, 1 );
+
+// both records are rendered from one evaluation, each escaped the way its format requires...
+        runner.getFlowFilesForRelationship( processor.SUCCESS ).get( 0 ).assertContentEquals(
+                "CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|msg=first line second\\=line src=10.0.0.1 suser=jo\tsmith" );
+        runner.getFlowFilesForRelationship( processor.LEEF ).get( 0 ).assertContentEquals(
+                "LEEF:1.0|Security|threatmanager|1.0|100|sev=10\tmsg=first line second=line\tsrc=10.0.0.1\tsuser=jo smith" );
+    }
+
+    @Test
+    public void testLeef2Output()
+    {
+        System.out.println( "\n--- testLeef2Output() --------------------------------------------------------------------" );
+
+        setRequiredProperties();
+        runner.setProperty( processor.LEEF_OUTPUT, processor.LEEF_2_0 );
+        runner.setProperty( processor.LEEF_DELIMITER, "^" );
+        runner.setProperty( "src", "10.0.0.1" );
+        runner.setProperty( "act", "blocked^dropped" );
+        runner.enqueue( "This is a test file".getBytes( StandardCharsets.UTF_8 ) );
+        runner.run( 1 );
+
+        runner.getFlowFilesForRelationship( processor.SUCCESS ).get( 0 ).assertContentEquals(
+                "CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|act=blocked^dropped src=10.0.0.1" );
+        runner.getFlowFilesForRelationship( processor.LEEF ).get( 0 ).assertContentEquals(
+                "LEEF:2.0|Security|threatmanager|1.0|100|^|sev=10^act=blocked dropped^src=10.0.0.1" );
+    }
+
+    @Test
+    public void testLeefOutputOnlyPerFlowFile()
+    {
+        setRequiredProperties();
+        runner.setProperty( processor.LEEF_OUTPUT, processor.LEEF_1_0 );
+        runner.assertValid();
+        runner.setProperty( processor.OUTPUT_MODE, processor.BUNDLE_RECORDS );
+        runner.assertNotValid();
+    }
+
+    @Test
+    public void testNonAsciiValuesWrittenAsUtf8()
+    {
+        System.out.println( "\n--- testNonAsciiValuesWrittenAsUtf8() -----------------------------------------------------" );
+
+        setRequiredProperties();
+        runner.setProperty( processor.DEVICE_VENDOR, "Sécurité|Ltd" );
+        runner.setProperty( "dhost", "${host}" );
+        runner.setProperty( "suser", "jörg=\uD83D\uDE00" );
+        runner.enqueue( "This is a test file".getBytes( StandardCharsets.UTF_8 ), Collections.singletonMap( "host", "сервер.example" ) );
+        runner.run( 1 );
+        runner.assertAllFlowFilesTransferred( processor.SUCCESS, 1 );
+
+// values are encoded to UTF-8 whatever the platform default charset...
+        assertArrayEquals( "CEF:1|Sécurité\\|Ltd|threatmanager|1.0|100|worm successfully stopped|10|dhost=сервер.example suser=jörg\\=\uD83D\uDE00"
+                .getBytes( StandardCharsets.UTF_8 ), runner.getContentAsByteArray( runner.getFlowFilesForRelationship( processor.SUCCESS ).get( 0 ) ) );
+    }
+
+    @Test
+    public void testHeaderValueCache()
+    {
+        System.out.println( "\n--- testHeaderValueCache() ---------------------------------------------------------------" );
+
+        setRequiredProperties();
+        runner.setProperty( processor.HEADER_CACHE_SIZE, "10" );
+        runner.setProperty( processor.EVENT_NAME, "${source.type:toUpper()}|event" );
+        for( String sourceType : new String[]{ "firewall", "proxy", "firewall", "firewall" } ) {
+            runner.enqueue( "This is a test file".getBytes( StandardCharsets.UTF_8 ), Collections.singletonMap( "source.type", sourceType ) );
+        }
+        runner.run( 1 );
+        runner.assertAllFlowFilesTransferred( processor.SUCCESS, 4 );
+
+// the escaped event name is evaluated once per source type and written from the cache for the others...
+        List<MockFlowFile> flowfiles = runner.getFlowFilesForRelationship( processor.SUCCESS );
+        flowfiles.get( 1 ).assertContentEquals( "CEF:1|Security|threatmanager|1.0|100|PROXY\\|event|10|" );
+        flowfiles.get( 3 ).assertContentEquals( "CEF:1|Security|threatmanager|1.0|100|FIREWALL\\|event|10|" );
+        assertEquals( Long.valueOf( 2 ), runner.getCounterValue( "CEF Header Cache Hits" ) );
+        assertEquals( Long.valueOf( 2 ), runner.getCounterValue( "CEF Header Cache Misses" ) );
+        assertEquals( Long.valueOf( 4 ), runner.getCounterValue( "CEF Escaped Characters" ) );
+    }
+
+    @Test
+    public void testFullHeaderValueCacheEvicts()
+    {
+        System.out.println( "\n--- testFullHeaderValueCacheEvicts() ----------------------------------------------------" );
+
+        setRequiredProperties();
+        runner.setProperty( processor.HEADER_CACHE_SIZE, "1" );
+        runner.setProperty( processor.EVENT_NAME, "${source.type:toUpper()}" );
+        for( String sourceType : new String[]{ "firewall", "proxy", "proxy", "firewall" } ) {
+            runner.enqueue( "This is a test file".getBytes( StandardCharsets.UTF_8 ), Collections.singletonMap( "source.type", sourceType ) );
+        }
+        runner.run( 1 );
+        runner.assertAllFlowFilesTransferred( processor.SUCCESS, 4 );
+
+// a new value evicts the one the full cache holds, so only the repeated proxy is a hit and every field is still right...
+        List<MockFlowFile> flowfiles = runner.getFlowFilesForRelationship( processor.SUCCESS );
+        flowfiles.get( 2 ).assertContentEquals( "CEF:1|Security|threatmanager|1.0|100|PROXY|10|" );
+        flowfiles.get( 3 ).assertContentEquals( "CEF:1|Security|threatmanager|1.0|100|FIREWALL|10|" );
+        assertEquals( Long.valueOf( 1 ), runner.getCounterValue( "CEF Header Cache Hits" ) );
+        assertEquals( Long.valueOf( 3 ), runner.getCounterValue( "CEF Header Cache Misses" ) );
+    }
+
+    @Test
+    public void testLookupEnrichment() throws InitializationException
+    {
+        System.out.println( "\n--- testLookupEnrichment() ---------------------------------------------------------------" );
+
+        setRequiredProperties();
+        runner.setProperty( processor.DEVICE_CLASS_ID, "${class.id}" );
+        InMemoryLookupService lookup = addLookupService();
+        lookup.put( "100", lookupRecord( "name", "worm stopped", "severity", "8", "cat", "malware" ) );
+        for( String classId : new String[]{ "100", "200", "100" } ) {
+            runner.enqueue( "This is a test file".getBytes( StandardCharsets.UTF_8 ), Collections.singletonMap( "class.id", classId ) );
+        }
+        runner.run( 1 );
+        runner.assertAllFlowFilesTransferred( processor.SUCCESS, 3 );
+
+// the class ID is the key, and an unknown one keeps the values of the properties...
+        List<MockFlowFile> flowfiles = runner.getFlowFilesForRelationship( processor.SUCCESS );
+        flowfiles.get( 0 ).assertContentEquals( "CEF:1|Security|threatmanager|1.0|100|worm stopped|8|cat=malware" );
+        flowfiles.get( 1 ).assertContentEquals( "CEF:1|Security|threatmanager|1.0|200|worm successfully stopped|10|" );
+        flowfiles.get( 2 ).assertContentEquals( "CEF:1|Security|threatmanager|1.0|100|worm stopped|8|cat=malware" );
+        assertEquals( List.of( "100", "200" ), lookup.lookups );
+        assertEquals( Long.valueOf( 1 ), runner.getCounterValue( "CEF Lookup Cache Hits" ) );
+        assertEquals( Long.valueOf( 2 ), runner.getCounterValue( "CEF Lookup Cache Misses" ) );
+    }
+
+    @Test
+    public void testLookupKeyAndPrecedence() throws InitializationException
+    {
+        System.out.println( "\n--- testLookupKeyAndPrecedence() ---------------------------------------------------------" );
+
+        setRequiredProperties();
+        runner.setProperty( processor.EXTENSION_ATTRIBUTE_PREFIX, "cef." );
+        runner.setProperty( processor.LEEF_OUTPUT, processor.LEEF_1_0 );
+        runner.setProperty( "cs1", "from property" );
+        InMemoryLookupService lookup = addLookupService();
+        runner.setProperty( processor.LOOKUP_KEY, "${signature}" );
+        lookup.put( "4625", lookupRecord( "deviceEventClassId", "4625", "name", "logon failed", "severity", "5", "cat", "authentication", "cs1", "from lookup" ) );
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put( "signature", "4625" );
+        attributes.put( "cef.cat", "from attribute" );
+        attributes.put( "cef.suser", "alice" );
+        runner.enqueue( "This is a test file".getBytes( StandardCharsets.UTF_8 ), attributes );
+        runner.run( 1 );
+
+// the lookup sets the whole header, dynamic properties win over its fields and its fields win over mapped attributes...
+        runner.getFlowFilesForRelationship( processor.SUCCESS ).get( 0 )
+                .assertContentEquals( "CEF:1|Security|threatmanager|1.0|4625|logon failed|5|cat=authentication cs1=from property suser=alice" );
+        runner.getFlowFilesForRelationship( processor.LEEF ).get( 0 )
+                .assertContentEquals( "LEEF:1.0|Security|threatmanager|1.0|4625|sev=5\tcat=authentication\tcs1=from property\tsuser=alice" );
+    }
+
+    @Test
+    public void testLookupCacheBounds() throws InitializationException, InterruptedException
+    {
+        System.out.println( "\n--- testLookupCacheBounds() --------------------------------------------------------------" );
+
+        setRequiredProperties();
+        runner.setProperty( processor.DEVICE_CLASS_ID, "${class.id}" );
+        InMemoryLookupService lookup = addLookupService();
+        runner.setProperty( processor.LOOKUP_CACHE_SIZE, "1" );
+        lookup.put( "100", lookupRecord( "name", "worm stopped" ) );
+        lookup.put( "200", lookupRecord( "name", "virus found" ) );
+        for( String classId : new String[]{ "100", "100", "200", "100" } ) {
+            runner.enqueue( "This is a test file".getBytes( StandardCharsets.UTF_8 ), Collections.singletonMap( "class.id", classId ) );
+        }
+        runner.run( 1 );
+        runner.assertAllFlowFilesTransferred( processor.SUCCESS, 4 );
+// a single cached result: the second key evicts the first...
+        assertEquals( List.of( "100", "200", "100" ), lookup.lookups );
+
+        lookup.lookups.clear();
+        runner.clearTransferState();
+        runner.setProperty( processor.LOOKUP_CACHE_TTL, "1 ms" );
+        runner.enqueue( "This is a test file".getBytes( StandardCharsets.UTF_8 ), Collections.singletonMap( "class.id", "100" ) );
+        runner.run( 1 );
+        Thread.sleep( 5 );
+        runner.enqueue( "This is a test file".getBytes( StandardCharsets.UTF_8 ), Collections.singletonMap( "class.id", "100" ) );
+        runner.run( 1 );
+// an expired result is looked up again...
+        assertEquals( List.of( "100", "100" ), lookup.lookups );
+        runner.assertAllFlowFilesTransferred( processor.SUCCESS, 2 );
+    }
+
+    @Test
+    public void testLookupConfigurationIsValidated() throws InitializationException
+    {
+        System.out.println( "\n--- testLookupConfigurationIsValidated() --------------------------------------------------" );
+
+        setRequiredProperties();
+        InMemoryLookupService lookup = addLookupService();
+        runner.setProperty( processor.LOOKUP_KEY, "${class.id:noSuchFunction()}" );
+// the lookup key must be a valid expression...
+        runner.assertNotValid();
+        runner.setProperty( processor.LOOKUP_KEY, "${class.id}" );
+        runner.assertValid();
+
+// ...and a service that needs more than the one coordinate is rejected before the processor is scheduled
+        lookup.requiredKeys = Set.of( "key", "region" );
+        runner.assertNotValid();
+    }
+
+    @Test
+    public void testLookupFailure() throws InitializationException
+    {
+        System.out.println( "\n--- testLookupFailure() ------------------------------------------------------------------" );
+
+        setRequiredProperties();
+        InMemoryLookupService lookup = addLookupService();
+        lookup.failure = new LookupFailureException( "reference table unavailable" );
+        runner.enqueue( "This is a test file".getBytes( StandardCharsets.UTF_8 ) );
+        runner.run( 1 );
+
+        runner.assertAllFlowFilesTransferred( processor.FAILURE, 1 );
+        assertEquals( Long.valueOf( 1 ), runner.getCounterValue( "CEF Failures: Lookup Failed" ) );
+    }
+
+    private InMemoryLookupService addLookupService() throws InitializationException
+    {
+        InMemoryLookupService lookup = new InMemoryLookupService();
+        runner.addControllerService( "lookup", lookup );
+        runner.enableControllerService( lookup );
+        runner.setProperty( processor.LOOKUP_SERVICE, "lookup" );
+        return lookup;
+    }
+
+    private static Record lookupRecord( String... fieldsAndValues )
+    {
+        List<RecordField> fields = new ArrayList<>();
+        Map<String, Object> values = new LinkedHashMap<>();
+        for( int i = 0; i < fieldsAndValues.length; i += 2 ) {
+            fields.add( new RecordField( fieldsAndValues[i], RecordFieldType.STRING.getDataType() ) );
+            values.put( fieldsAndValues[i], fieldsAndValues[i + 1] );
+        }
+        return new MapRecord( new SimpleRecordSchema( fields ), values );
+    }
+
+    //A reference table in memory, which records the keys it is asked for
+    private static class InMemoryLookupService extends AbstractControllerService implements LookupService<Record>
+    {
+        private final Map<String, Record> records = new HashMap<>();
+        private final List<String> lookups = Collections.synchronizedList( new ArrayList<>() );
+        private LookupFailureException failure;
+        private Set<String> requiredKeys = Set.of( "key" );
+
+        private void put( String key, Record record )
+        {
+            records.put( key, record );
+        }
+
+        @Override
+        public Optional<Record> lookup( Map<String, Object> coordinates ) throws LookupFailureException
+        {
+            if( failure != null ) {
+                throw failure;
+            }
+            String key = (String) coordinates.get( "key" );
+            lookups.add( key );
+            return Optional.ofNullable( records.get( key ) );
+        }
+
+        @Override
+        public Class<?> getValueType()
+        {
+            return Record.class;
+        }
+
+        @Override
+        public Set<String> getRequiredKeys()
+        {
+            return requiredKeys;
+        }
+    }
+
+    @Test
+    public void testBatchFailuresNameTheField()
+    {
+        System.out.println( "\n--- testBatchFailuresNameTheField() -------------------------------------------------------" );
+
+        setRequiredProperties();
+        runner.setProperty( processor.EVENT_TIME_ATTRIBUTE, "event.time" );
+        runner.setProperty( processor.TIMESTAMP_FIELDS, "rt" );
+        runner.setProperty( processor.EVENT_NAME, "worm first seen ${first.seen:toDate('yyyy-MM-dd'):format('MMM d')}" );
+        String[][] events = { { "1000", "2024-05-01" }, { "yesterday", "2024-05-02" }, { "3000", "May 3" }, { "4000", "2024-05-04" } };
+        for( String[] event : events ) {
+            Map<String, String> attributes = new HashMap<>();
+            attributes.put( "event.time", event[0] );
+            attributes.put( "first.seen", event[1] );
+            runner.enqueue( "This is a test file".getBytes( StandardCharsets.UTF_8 ), attributes );
+        }
+        runner.run( 1 );
+
+// every flowfile has exactly one outcome, and the bad ones do not fail their neighbours...
+        runner.assertQueueEmpty();
+        runner.assertTransferCount( processor.SUCCESS, 2 );
+        runner.getFlowFilesForRelationship( processor.SUCCESS ).get( 1 ).assertContentEquals(
+                "CEF:1|Security|threatmanager|1.0|100|worm first seen May 4|10|rt=4000" );
+        runner.assertTransferCount( processor.FAILURE, 2 );
+        List<MockFlowFile> failed = runner.getFlowFilesForRelationship( processor.FAILURE );
+        failed.get( 0 ).assertAttributeEquals( processor.ERROR_ATTRIBUTE, "Invalid Field" );
+        failed.get( 0 ).assertAttributeEquals( processor.ERROR_FIELD_ATTRIBUTE, "event.time" );
+        failed.get( 0 ).assertAttributeEquals( processor.ERROR_MESSAGE_ATTRIBUTE,
+                "Attribute 'event.time' holds 'yesterday', which is not a valid epoch millisecond time" );
+// a header field is named like in the CEF header...
+        failed.get( 1 ).assertAttributeEquals( processor.ERROR_FIELD_ATTRIBUTE, "name" );
+        assertEquals( Long.valueOf( 2 ), runner.getCounterValue( "CEF Failures: Invalid Field" ) );
+    }
+
+    @Test
+    public void testIdleTriggerDoesNotYield()
+    {
+        System.out.println( "\n--- testIdleTriggerDoesNotYield() --------------------------------------------------------" );
+
+        setRequiredProperties();
+        runner.run( 1 );
+// only AggregateCef is triggered on an empty queue, so an idle trigger of the other modes never delays the next flowfile...
+        assertFalse( ((MockProcessContext) runner.getProcessContext()).isYieldCalled() );
+        runner.setProperty( processor.OUTPUT_MODE, processor.BUNDLE_RECORDS );
+        runner.run( 1 );
+        assertFalse( ((MockProcessContext) runner.getProcessContext()).isYieldCalled() );
+        runner.assertTransferCount( processor.SUCCESS, 0 );
+    }
 }
@@ -0,0 +1,58 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ClockCacheTest {
+
+    @Test
+    public void testHotKeySurvivesOneOffKeys() {
+        final ClockCache<String, String> cache = new ClockCache<>(4);
+        cache.put("hot", "HOT");
+        //Far more one-off keys than the cache holds pass through, while the hot key keeps being used
+        for (int i = 0; i < 100; i++) {
+            cache.put("once" + i, "ONCE" + i);
+            assertEquals("HOT", cache.getIfPresent("hot"));
+        }
+        assertEquals(4, cache.size());
+        assertNull(cache.getIfPresent("once0"));
+        assertEquals("ONCE99", cache.getIfPresent("once99"));
+    }
+
+    @Test
+    public void testUnusedEntriesAreEvictedFirst() {
+        final ClockCache<String, String> cache = new ClockCache<>(3);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.put("c", "C");
+        cache.getIfPresent("a");
+        cache.getIfPresent("c");
+        //Replacing a cached value does not count as a new entry
+        cache.put("c", "C2");
+
+        cache.put("d", "D");
+        assertNull(cache.getIfPresent("b"));
+        assertEquals("A", cache.getIfPresent("a"));
+        assertEquals("C2", cache.getIfPresent("c"));
+        assertEquals("D", cache.getIfPresent("d"));
+        assertEquals(3, cache.size());
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParseCefTest {
+
+    private final ParseCef processor = new ParseCef();
+    private TestRunner runner;
+
+    @Before
+    public void init() {
+        runner = TestRunners.newTestRunner(ParseCef.class);
+    }
+
+    @Test
+    public void testParseToAttributes()
+    {
+        final String record = "April 30 08:26:10 host.example.com CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|src=10.0.0.1 msg=a\\=b\n";
+        runner.enqueue( record );
+        runner.run( 1 );
+        runner.assertAllFlowFilesTransferred( processor.SUCCESS, 1 );
+
+        MockFlowFile flowfile = runner.getFlowFilesForRelationship( processor.SUCCESS ).get( 0 );
+        flowfile.assertContentEquals( record );
+        flowfile.assertAttributeEquals( "cef.header.version", "CEF:1" );
+        flowfile.assertAttributeEquals( "cef.header.deviceVendor", "Security" );
+        flowfile.assertAttributeEquals( "cef.header.severity", "10" );
+        flowfile.assertAttributeEquals( "cef.header.eventDate", "April 30 08:26:10" );
+        flowfile.assertAttributeEquals( "cef.header.eventHost", "host.example.com" );
+        flowfile.assertAttributeEquals( "cef.extension.src", "10.0.0.1" );
+        flowfile.assertAttributeEquals( "cef.extension.msg", "a=b" );
+    }
+
+    @Test
+    public void testInvalidRecordRoutedToFailure()
+    {
+        runner.enqueue( "This is a test file" );
+        runner.run( 1 );
+        runner.assertAllFlowFilesTransferred( processor.FAILURE, 1 );
+    }
+
+    @Test
+    public void testOversizedRecordRoutedToFailure()
+    {
+        runner.setProperty( processor.MAX_RECORD_SIZE, "40 B" );
+// the content is not read, so an oversized flowfile fails whether or not it is valid CEF...
+        runner.enqueue( "CEF:0|Security|threatmanager|1.0|100|worm successfully stopped|10|src=10.0.0.1" );
+        runner.enqueue( "CEF:0|Security|fw|1.0|100|block|10|" );
+        runner.run( 1 );
+        runner.assertTransferCount( processor.FAILURE, 1 );
+        runner.assertTransferCount( processor.SUCCESS, 1 );
+        runner.getFlowFilesForRelationship( processor.SUCCESS ).get( 0 ).assertAttributeEquals( "cef.header.name", "block" );
+    }
+
+    @Test
+    public void testMaxRecordSizeFitsAnArray()
+    {
+// the content is read into a single array, which cannot hold 2 GB...
+        runner.setProperty( processor.MAX_RECORD_SIZE, "2 GB" );
+        runner.assertNotValid();
+        runner.setProperty( processor.MAX_RECORD_SIZE, "1 GB" );
+        runner.assertValid();
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.processors.cef;
+
+import org.apache.nifi.ssl.SSLContextService;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.SSLContext;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PutCefSyslogTest {
+
+    private static final String RECORD = "CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|src=10.0.0.1";
+
+    private final PutCefSyslog processor = new PutCefSyslog();
+    private TestRunner runner;
+    private TcpReceiver receiver;
+
+    @Before
+    public void init() throws IOException {
+        receiver = new TcpReceiver();
+        runner = TestRunners.newTestRunner(PutCefSyslog.class);
+        runner.setProperty( processor.HOSTNAME, "localhost" );
+        runner.setProperty( processor.PORT, String.valueOf( receiver.getPort() ) );
+        runner.setProperty( processor.TIMEOUT, "5 sec" );
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        receiver.close();
+    }
+
+    @Test
+    public void testSendOctetCounted() throws Exception
+    {
+        runner.enqueue( RECORD );
+        runner.run( 1 );
+        runner.assertAllFlowFilesTransferred( processor.SUCCESS, 1 );
+
+        assertEquals( RECORD.length() + " " + RECORD, receiver.await( RECORD.length() + 3 ) );
+        assertEquals( 1, runner.getProvenanceEvents().size() );
+    }
+
+    @Test
+    public void testSendBundleNewlineDelimited() throws Exception
+    {
+        runner.setProperty( processor.FRAMING, CefWriter.NEWLINE_FRAMING );
+        runner.setProperty( processor.INPUT_FORMAT, CefWriter.OCTET_COUNTING_FRAMING );
+// a bundle written by CefWriter is re-framed record by record...
+        runner.enqueue( RECORD.length() + " " + RECORD + "3 a=b" );
+        runner.run( 1 );
+        runner.assertAllFlowFilesTransferred( processor.SUCCESS, 1 );
+
+        assertEquals( RECORD + "\n" + "a=b\n", receiver.await( RECORD.length() + 5 ) );
+    }
+
+    @Test
+    public void testLargeFlowfilesAreStreamed() throws Exception
+    {
+        runner.setProperty( processor.MAX_PIPELINED_SIZE, "10 B" );
+        runner.setProperty( processor.INPUT_FORMAT, CefWriter.NEWLINE_FRAMING );
+// a flowfile larger than the pipelined size is framed record by record straight onto the connection...
+        runner.enqueue( RECORD + "\r\n" + "\n" + "a=b" );
+        runner.run( 1 );
+        runner.assertAllFlowFilesTransferred( processor.SUCCESS, 1 );
+
+        assertEquals( RECORD.length() + " " + RECORD + "3 a=b", receiver.await( RECORD.length() + 8 ) );
+        assertEquals( 1, runner.getProvenanceEvents().size() );
+    }
+
+    @Test
+    public void testMalformedLargeBundleRoutesToFailure()
+    {
+        runner.setProperty( processor.MAX_PIPELINED_SIZE, "10 B" );
+        runner.setProperty( processor.INPUT_FORMAT, CefWriter.OCTET_COUNTING_FRAMING );
+        runner.enqueue( "3 a=b100 too short" );
+        runner.run( 1 );
+        runner.assertAllFlowFilesTransferred( processor.FAILURE, 1 );
+    }
+
+    @Test
+    public void testConnectionsAreReused() throws Exception
+    {
+        runner.setProperty( processor.BATCH_SIZE, "1" );
+        runner.setProperty( processor.INPUT_FORMAT, CefWriter.NEWLINE_FRAMING );
+        runner.setProperty( processor.FRAMING, CefWriter.NEWLINE_FRAMING );
+        runner.setProperty( processor.CONNECTION_POOL_SIZE, "1" );
+        runner.enqueue( RECORD + "\n" );
+        runner.enqueue( RECORD + "\r\n" );
+        runner.run( 2 );
+        runner.assertAllFlowFilesTransferred( processor.SUCCESS, 2 );
+
+        assertEquals( RECORD + "\n" + RECORD + "\n", receiver.await( 2 * RECORD.length() + 2 ) );
+        assertEquals( 1, receiver.getConnections() );
+    }
+
+    @Test
+    public void testSendUdp() throws Exception
+    {
+        try (final DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout( 5000 );
+            runner.setProperty( processor.PROTOCOL, PutCefSyslog.UDP );
+            runner.setProperty( processor.PORT, String.valueOf( socket.getLocalPort() ) );
+            runner.setProperty( processor.INPUT_FORMAT, CefWriter.NEWLINE_FRAMING );
+            runner.enqueue( RECORD + "\n" + "a=b\n" );
+            runner.run( 1 );
+            runner.assertAllFlowFilesTransferred( processor.SUCCESS, 1 );
+
+// every record is a datagram of its own, without framing...
+            final DatagramPacket packet = new DatagramPacket( new byte[65535], 65535 );
+            socket.receive( packet );
+            assertEquals( RECORD, new String( packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8 ) );
+            socket.receive( packet );
+            assertEquals( "a=b", new String( packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8 ) );
+        }
+    }
+
+    @Test
+    public void testConnectionRefusedRoutesToRetry() throws Exception
+    {
+        receiver.close();
+        runner.setProperty( processor.TIMEOUT, "1 sec" );
+        runner.enqueue( RECORD );
+        runner.run( 1 );
+        runner.assertAllFlowFilesTransferred( processor.RETRY, 1 );
+        runner.getFlowFilesForRelationship( processor.RETRY ).get( 0 ).assertContentEquals( RECORD );
+    }
+
+    @Test
+    public void testAbandonedWritesReleaseTheirPermits() throws Exception
+    {
+// the receiver never answers the handshake, so the first writes time out and the last is given up on before it starts...
+        runner.setProperty( processor.PROTOCOL, PutCefSyslog.TLS );
+        setSslContextService();
+        runner.setProperty( processor.TIMEOUT, "1 sec" );
+        runner.setProperty( processor.CONNECTION_POOL_SIZE, "1" );
+        runner.setProperty( processor.MAX_IN_FLIGHT, "3" );
+        runner.setProperty( processor.BATCH_SIZE, "3" );
+        runner.enqueue( RECORD );
+        runner.enqueue( RECORD );
+        runner.enqueue( RECORD );
+        runner.run( 1, false );
+        runner.assertAllFlowFilesTransferred( processor.RETRY, 3 );
+
+// ...and once the started writes are done, every permit of the in-flight window is back
+        final PutCefSyslog putCefSyslog = (PutCefSyslog) runner.getProcessor();
+        final long deadline = System.currentTimeMillis() + 5000;
+        while ( putCefSyslog.availableInFlight() < 3 && System.currentTimeMillis() < deadline )
+            Thread.sleep( 10 );
+        assertEquals( 3, putCefSyslog.availableInFlight() );
+        runner.run( 1, true, false );
+    }
+
+    @Test( timeout = 60000 )
+    public void testStalledReceiverRoutesToRetry() throws Exception
+    {
+        try ( final StalledReceiver stalled = new StalledReceiver() ) {
+            runner.setProperty( processor.PORT, String.valueOf( stalled.getPort() ) );
+            runner.setProperty( processor.TIMEOUT, "1 sec" );
+            runner.setProperty( processor.MAX_IN_FLIGHT, "1" );
+            runner.setProperty( processor.BATCH_SIZE, "1" );
+            runner.setProperty( processor.MAX_PIPELINED_SIZE, "32 MB" );
+// the receiver accepts the connection but never reads, so the socket buffers fill and the writes block...
+            final String content = largeRecord( 16 * 1024 * 1024 );
+            runner.enqueue( content );
+            runner.enqueue( content );
+            runner.run( 2, false );
+            runner.assertAllFlowFilesTransferred( processor.RETRY, 2 );
+
+// ...until their connections are closed at the timeout, which gives every permit of the in-flight window back
+            final PutCefSyslog putCefSyslog = (PutCefSyslog) runner.getProcessor();
+            final long deadline = System.currentTimeMillis() + 5000;
+            while ( putCefSyslog.availableInFlight() < 1 && System.currentTimeMillis() < deadline )
+                Thread.sleep( 10 );
+            assertEquals( 1, putCefSyslog.availableInFlight() );
+
+// a flowfile streamed on the task thread is bounded by the same timeout
+            runner.clearTransferState();
+            runner.setProperty( processor.MAX_PIPELINED_SIZE, "10 B" );
+            runner.enqueue( content );
+            runner.run( 1, true, false );
+            runner.assertAllFlowFilesTransferred( processor.RETRY, 1 );
+        }
+    }
+
+    @Test
+    public void testTlsRequiresSslContextService() throws Exception
+    {
+        runner.setProperty( processor.PROTOCOL, PutCefSyslog.TLS );
+        runner.assertNotValid();
+        setSslContextService();
+        runner.assertValid();
+    }
+
+    @Test
+    public void testMalformedBundleRoutesToFailure()
+    {
+        runner.setProperty( processor.INPUT_FORMAT, CefWriter.OCTET_COUNTING_FRAMING );
+        runner.enqueue( "100 too short" );
+        runner.enqueue( "CEF:1|no octet count" );
+        runner.run( 1 );
+        runner.assertAllFlowFilesTransferred( processor.FAILURE, 2 );
+    }
+
+    //Secures TLS connections with the default SSL context of the JVM
+    private void setSslContextService() throws Exception {
+        final SSLContextService sslContextService = mock( SSLContextService.class );
+        when( sslContextService.getIdentifier() ).thenReturn( "ssl-context" );
+        when( sslContextService.createContext() ).thenReturn( SSLContext.getDefault() );
+        runner.addControllerService( "ssl-context", sslContextService );
+        runner.enableControllerService( sslContextService );
+        runner.setProperty( processor.SSL_CONTEXT_SERVICE, "ssl-context" );
+    }
+
+    private static String largeRecord( final int length )
+    {
+        final StringBuilder builder = new StringBuilder( length );
+        while ( builder.length() < length )
+            builder.append( RECORD );
+        return builder.toString();
+    }
+
+    //Accepts connections with a small receive buffer and never reads from them
+    private static final class StalledReceiver implements Closeable {
+        private final ServerSocket serverSocket = new ServerSocket();
+        private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+
+        private StalledReceiver() throws IOException {
+            serverSocket.setReceiveBufferSize( 4096 );
+            serverSocket.bind( new InetSocketAddress( "localhost", 0 ) );
+            final Thread acceptor = new Thread( () -> {
+                try {
+                    while ( true ) {
+                        sockets.add( serverSocket.accept() );
+                    }
+                } catch ( IOException e ) {
+                    //closed
+                }
+            } );
+            acceptor.setDaemon( true );
+            acceptor.start();
+        }
+
+        private int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+            for ( final Socket socket : sockets ) {
+                socket.close();
+            }
+        }
+    }
+
+    //Accepts any number of connections and collects everything sent on them
+    private static final class TcpReceiver implements Closeable {
+        private final ServerSocket serverSocket = new ServerSocket( 0 );
+        private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        private final AtomicInteger connections = new AtomicInteger();
+
+        private TcpReceiver() throws IOException {
+            final Thread acceptor = new Thread( () -> {
+                try {
+                    while ( true ) {
+                        final Socket socket = serverSocket.accept();
+                        connections.incrementAndGet();
+                        final Thread reader = new Thread( () -> read( socket ) );
+                        reader.setDaemon( true );
+                        reader.start();
+                    }
+                } catch ( IOException e ) {
+                    //closed
+                }
+            } );
+            acceptor.setDaemon( true );
+            acceptor.start();
+        }
+
+        private void read( final Socket socket ) {
+            try ( InputStream in = socket.getInputStream() ) {
+                final byte[] buffer = new byte[4096];
+                int read;
+                while ( ( read = in.read( buffer ) ) != -1 ) {
+                    synchronized ( received ) {
+                        received.write( buffer, 0, read );
+                    }
+                }
+            } catch ( IOException e ) {
+                //closed
+            }
+        }
+
+        private int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        private int getConnections() {
+            return connections.get();
+        }
+
+        private String await( final int bytes ) throws InterruptedException {
+            final long deadline = System.currentTimeMillis() + 5000;
+            while ( System.currentTimeMillis() < deadline ) {
+                synchronized ( received ) {
+                    if ( received.size() >= bytes ) {
+                        break;
+                    }
+                }
+                Thread.sleep( 10 );
+            }
+            synchronized ( received ) {
+                return new String( received.toByteArray(), StandardCharsets.UTF_8 );
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.serialization.cef;
+
+import org.apache.nifi.serialization.MalformedRecordException;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.util.NoOpProcessor;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+
+public class CefRecordReaderTest {
+
+    private TestRunner runner;
+    private CefRecordReader readerFactory;
+
+    @Before
+    public void init() throws Exception {
+        runner = TestRunners.newTestRunner(NoOpProcessor.class);
+        readerFactory = new CefRecordReader();
+        runner.addControllerService("cef-reader", readerFactory);
+        runner.enableControllerService(readerFactory);
+    }
+
+    private RecordReader reader(final String content) throws Exception {
+        return readerFactory.createRecordReader(Collections.emptyMap(), new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)), -1, runner.getLogger());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testReadsOneRecordPerLine() throws Exception {
+        try (final RecordReader reader = reader("CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|src=10.0.0.1 act=blocked\r\n"
+                + "\n"
+                + "April 30 08:26:10 host.example.com CEF:1|Security|threatmanager|1.0|101|worm \\| started|5|")) {
+            Record record = reader.nextRecord();
+            assertNull(record.getValue("eventDate"));
+            assertEquals("CEF:1", record.getValue("version"));
+            assertEquals("100", record.getValue("deviceEventClassId"));
+            final Map<String, Object> extensions = (Map<String, Object>) record.getValue("extensions");
+            assertEquals("10.0.0.1", extensions.get("src"));
+            assertEquals("blocked", extensions.get("act"));
+
+            record = reader.nextRecord();
+            assertEquals("April 30 08:26:10", record.getValue("eventDate"));
+            assertEquals("host.example.com", record.getValue("eventHost"));
+            assertEquals("worm | started", record.getValue("name"));
+            assertEquals(Collections.emptyMap(), record.getValue("extensions"));
+
+            assertNull(reader.nextRecord());
+        }
+    }
+
+    @Test
+    public void testLinesLongerThanTheBuffer() throws Exception {
+        final StringBuilder msg = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            msg.append("0123456789");
+        }
+        try (final RecordReader reader = reader("CEF:1|a|b|c|d|e|f|msg=" + msg + "\nCEF:1|a|b|c|d|e|f|cnt=2")) {
+            assertEquals(msg.toString(), ((Map<?, ?>) reader.nextRecord().getValue("extensions")).get("msg"));
+            assertEquals("2", ((Map<?, ?>) reader.nextRecord().getValue("extensions")).get("cnt"));
+            assertNull(reader.nextRecord());
+        }
+    }
+
+    @Test
+    public void testMalformedRecord() throws Exception {
+        try (final RecordReader reader = reader("CEF:1|a|b|c|d|e|f|\nnot cef\n")) {
+            reader.nextRecord();
+            final MalformedRecordException e = assertThrows(MalformedRecordException.class, reader::nextRecord);
+            assertEquals(true, e.getMessage().startsWith("Line 2 "));
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudera.serialization.cef;
+
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.util.NoOpProcessor;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class CefRecordSetWriterTest {
+
+    private static final RecordSchema SCHEMA = new SimpleRecordSchema(Arrays.asList(
+            new RecordField("name", RecordFieldType.STRING.getDataType()),
+            new RecordField("severity", RecordFieldType.INT.getDataType()),
+            new RecordField("host", RecordFieldType.STRING.getDataType()),
+            new RecordField("src", RecordFieldType.STRING.getDataType())));
+
+    private TestRunner runner;
+    private CefRecordSetWriter writerFactory;
+
+    @Before
+    public void init() throws Exception {
+        runner = TestRunners.newTestRunner(NoOpProcessor.class);
+        writerFactory = new CefRecordSetWriter();
+        runner.addControllerService("cef-writer", writerFactory);
+        runner.setProperty(writerFactory, CefRecordSetWriter.SYSLOG_PREFIX, "CEF:1");
+        runner.setProperty(writerFactory, CefRecordSetWriter.DEVICE_VENDOR, "Security");
+        runner.setProperty(writerFactory, CefRecordSetWriter.DEVICE_PRODUCT, "${product}");
+        runner.setProperty(writerFactory, CefRecordSetWriter.DEVICE_VERSION, "1.0");
+        runner.setProperty(writerFactory, CefRecordSetWriter.DEVICE_CLASS_ID, "100");
+        runner.setProperty(writerFactory, CefRecordSetWriter.EVENT_NAME, "/name");
+        runner.setProperty(writerFactory, CefRecordSetWriter.EVENT_SEVERITY, "/severity");
+    }
+
+    private static Record record(final String name, final int severity, final String host, final String src) {
+        final Map<String, Object> values = new HashMap<>();
+        values.put("name", name);
+        values.put("severity", severity);
+        values.put("host", host);
+        values.put("src", src);
+        return new MapRecord(SCHEMA, values);
+    }
+
+    private String write(final Record... records) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (final RecordSetWriter writer = writerFactory.createWriter(runner.getLogger(), SCHEMA, out, Collections.singletonMap("product", "threatmanager"))) {
+            writer.beginRecordSet();
+            for (final Record record : records) {
+                writer.write(record);
+            }
+            assertEquals(records.length, writer.finishRecordSet().getRecordCount());
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testWritesOneLinePerRecord() throws Exception {
+        runner.setProperty(writerFactory, "src", "/src");
+        runner.enableControllerService(writerFactory);
+
+        final String content = write(
+                record("worm successfully stopped", 10, "host1", "10.0.0.1"),
+                record("worm = started", 5, "host2", null));
+
+        assertEquals("CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|src=10.0.0.1\n"
+                + "CEF:1|Security|threatmanager|1.0|100|worm = started|5|\n", content);
+    }
+
+    @Test
+    public void testComplexHeader() throws Exception {
+        runner.setProperty(writerFactory, CefRecordSetWriter.COMPLEX_HEADER, CefRecordSetWriter.USE_COMPLEX_HEADER);
+        runner.setProperty(writerFactory, CefRecordSetWriter.EVENT_DATE, "April 30 08:26:10");
+        runner.setProperty(writerFactory, CefRecordSetWriter.EVENT_HOST, "/host");
+        runner.setProperty(writerFactory, "app", "syslog");
+        runner.enableControllerService(writerFactory);
+
+        final String content = write(record("worm successfully stopped", 10, "host.example.com", null));
+
+        assertEquals("April 30 08:26:10 host.example.com CEF:1|Security|threatmanager|1.0|100|worm successfully stopped|10|app=syslog\n", content);
+    }
+
+    @Test
+    public void testComplexHeaderRequiresDateAndHost() {
+        runner.setProperty(writerFactory, CefRecordSetWriter.COMPLEX_HEADER, CefRecordSetWriter.USE_COMPLEX_HEADER);
+        runner.assertNotValid(writerFactory);
+        runner.setProperty(writerFactory, CefRecordSetWriter.EVENT_DATE, "April 30 08:26:10");
+        runner.assertNotValid(writerFactory);
+        runner.setProperty(writerFactory, CefRecordSetWriter.EVENT_HOST, "/host");
+        runner.assertValid(writerFactory);
+    }
+
+    @Test
+    public void testInvalidRecordPath() {
+        runner.setProperty(writerFactory, CefRecordSetWriter.EVENT_NAME, "/name[");
+        runner.assertNotValid(writerFactory);
+    }
+}